@@ -0,0 +1,76 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.daporkchop.regionmerger.util.HeaderOps;
+import net.daporkchop.regionmerger.util.Sort;
+import net.daporkchop.regionmerger.util.SyntheticRegions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+import static net.daporkchop.regionmerger.Main.*;
+
+/**
+ * Measures the time taken by {@link Sort#selectAll(ByteBuf[], int, int[], int[])} and {@link Add#copyChunks(ByteBuf[], int[], int[], ByteBuf)} to
+ * merge a single region.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Thread)
+public class AddBenchmark {
+    @Param({ "1", "4", "8" })
+    public int sources;
+
+    @Param({ "0.25", "1.0" })
+    public double density;
+
+    @Param({ "256", "4096", "16384" })
+    public int chunkSize;
+
+    protected ByteBuf[] regions;
+    protected ByteBuf dst;
+    protected final int[] winners = new int[HeaderOps.CHUNKS];
+    protected final int[] offsets = new int[HeaderOps.CHUNKS];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(12345L);
+        this.regions = new ByteBuf[this.sources];
+        for (int i = 0; i < this.sources; i++) {
+            this.regions[i] = SyntheticRegions.region(random, this.density, this.chunkSize, false);
+        }
+        this.dst = Unpooled.directBuffer(HEADER_BYTES + 32 * 32 * (((this.chunkSize + 5 - 1) >> 12) + 1) * SECTOR_BYTES);
+    }
+
+    @Benchmark
+    public int copyChunks() {
+        Sort.YOUNGEST.selectAll(this.regions, this.sources, this.winners, this.offsets);
+        return Add.copyChunks(this.regions, this.winners, this.offsets, this.dst.clear().writeBytes(EMPTY_HEADERS));
+    }
+}
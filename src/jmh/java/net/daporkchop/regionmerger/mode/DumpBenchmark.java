@@ -0,0 +1,63 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.mode;
+
+import io.netty.buffer.ByteBuf;
+import net.daporkchop.regionmerger.util.SyntheticRegions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Measures the time taken by {@link Dump#formatRegion(StringBuilder, Dump.Type, ByteBuf, int, int)} to format the rows of a single region.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Thread)
+public class DumpBenchmark {
+    //Dump.Type isn't public, so it can't be used as a parameter directly
+    @Param({ "AGE", "SIZE", "SIZE_FAST" })
+    public String typeName;
+
+    @Param({ "0.25", "1.0" })
+    public double density;
+
+    protected Dump.Type type;
+    protected ByteBuf region;
+    protected final StringBuilder builder = new StringBuilder();
+
+    @Setup
+    public void setup() {
+        this.type = Dump.Type.valueOf(this.typeName);
+        this.region = SyntheticRegions.region(new Random(12345L), this.density, 1024, false);
+    }
+
+    @Benchmark
+    public int formatRegion() {
+        this.builder.setLength(0);
+        Dump.formatRegion(this.builder, this.type, this.region, 1234, -5678);
+        return this.builder.length();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.daporkchop.lib.compression.zlib.Zlib;
+import net.daporkchop.regionmerger.util.SyntheticRegions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+
+/**
+ * Measures the time taken by {@link Optimize}'s {@link Optimize.ChunkRecoder chunk recoders} to process a single chunk.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Thread)
+public class OptimizeBenchmark {
+    @Param({ "false", "true" })
+    public boolean recompress;
+
+    @Param({ "1024", "16384", "131072" })
+    public int chunkSize;
+
+    protected Optimize.ChunkRecoder recoder;
+    protected ByteBuf chunk;
+    protected ByteBuf dst;
+
+    @Setup
+    public void setup() {
+        this.recoder = Optimize.recoder(this.recompress, Zlib.LEVEL_DEFAULT);
+
+        byte[] data = SyntheticRegions.chunkData(new Random(12345L), this.chunkSize, true);
+        this.chunk = Unpooled.directBuffer(data.length + 1).writeByte(ID_ZLIB).writeBytes(data);
+        this.dst = Unpooled.directBuffer(this.chunkSize + (this.chunkSize >> 3) + 64);
+    }
+
+    @Benchmark
+    public int recode() throws IOException {
+        this.dst.clear();
+        this.recoder.recode(this.chunk.slice(), this.dst);
+        return this.dst.writerIndex();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * Measures the time taken by {@link Sort#select(ByteBuf[], int, int, int)} and {@link Sort#selectAll(ByteBuf[], int, int[], int[])} to select a single
+ * chunk.
+ * <p>
+ * Run with {@code --add-modules jdk.incubator.vector} on Java 21 or newer to measure the Vector API implementation of {@link HeaderOps}.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Thread)
+public class SortBenchmark {
+    @Param({ "1", "4", "16" })
+    public int sources;
+
+    @Param({ "0.25", "1.0" })
+    public double density;
+
+    @Param({ "YOUNGEST", "OLDEST", "INPUT_ORDER" })
+    public Sort sort;
+
+    protected ByteBuf[] regions;
+    protected final int[] winners = new int[HeaderOps.CHUNKS];
+    protected final int[] offsets = new int[HeaderOps.CHUNKS];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(12345L);
+        this.regions = new ByteBuf[this.sources];
+        for (int i = 0; i < this.sources; i++) {
+            this.regions[i] = SyntheticRegions.headers(random, this.density);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(32 * 32)
+    public void select(Blackhole blackhole) {
+        for (int x = 0; x < 32; x++) {
+            for (int z = 0; z < 32; z++) {
+                blackhole.consume(this.sort.select(this.regions, this.sources, x, z));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(32 * 32)
+    public void selectAll(Blackhole blackhole) {
+        this.sort.selectAll(this.regions, this.sources, this.winners, this.offsets);
+        blackhole.consume(this.winners);
+    }
+}
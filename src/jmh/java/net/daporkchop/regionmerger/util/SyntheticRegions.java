@@ -0,0 +1,110 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+import static net.daporkchop.regionmerger.Main.*;
+
+/**
+ * Generates region files with random contents for benchmarks.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class SyntheticRegions {
+    /**
+     * Generates the headers of a region.
+     *
+     * @param density the probability of each chunk being present
+     */
+    public ByteBuf headers(@NonNull Random random, double density) {
+        ByteBuf buf = Unpooled.buffer(HEADER_BYTES).writeBytes(EMPTY_HEADERS);
+        for (int x = 0; x < 32; x++) {
+            for (int z = 0; z < 32; z++) {
+                if (random.nextDouble() < density) {
+                    buf.setInt(getOffsetIndex(x, z), ((2 + random.nextInt(1 << 16)) << 8) | 1);
+                    buf.setInt(getTimestampIndex(x, z), random.nextInt(Integer.MAX_VALUE));
+                }
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Generates a complete region.
+     *
+     * @param density   the probability of each chunk being present
+     * @param chunkSize the uncompressed size of each chunk's data, in bytes
+     * @param compress  whether or not the chunk data should be compressed. If {@code false}, the data is stored as-is, but still flagged as zlib-compressed
+     */
+    public ByteBuf region(@NonNull Random random, double density, int chunkSize, boolean compress) {
+        ByteBuf buf = Unpooled.buffer(HEADER_BYTES).writeBytes(EMPTY_HEADERS);
+        for (int x = 0; x < 32; x++) {
+            for (int z = 0; z < 32; z++) {
+                if (random.nextDouble() < density) {
+                    byte[] data = chunkData(random, chunkSize, compress);
+
+                    int sector = buf.writerIndex() >> 12;
+                    buf.writeInt(data.length + 1).writeByte(ID_ZLIB).writeBytes(data);
+                    buf.writeBytes(EMPTY_SECTOR, 0, ((buf.writerIndex() - 1 >> 12) + 1 << 12) - buf.writerIndex()); //pad to next sector
+
+                    buf.setInt(getOffsetIndex(x, z), (sector << 8) | ((buf.writerIndex() >> 12) - sector));
+                    buf.setInt(getTimestampIndex(x, z), random.nextInt(Integer.MAX_VALUE));
+                }
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Generates chunk data which compresses roughly as well as real chunk NBT.
+     */
+    public byte[] chunkData(@NonNull Random random, int size, boolean compress) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (random.nextInt(16) * random.nextInt(3));
+        }
+        if (!compress) {
+            return data;
+        }
+
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] compressed = new byte[size + (size >> 3) + 64];
+            int length = deflater.deflate(compressed);
+            byte[] result = new byte[length];
+            System.arraycopy(compressed, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Measures the time taken to scan a world's directory for regions.
+ *
+ * @author DaPorkchop_
+ */
+@State(Scope.Benchmark)
+public class WorldBenchmark {
+    @Param({ "1024", "65536" })
+    public int regions;
+
+    protected Path directory;
+
+    @Setup
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("regionmerger-bench");
+
+        int side = (int) Math.ceil(Math.sqrt(this.regions));
+        for (int i = 0; i < this.regions; i++) {
+            Files.createFile(this.directory.resolve("r." + (i % side - (side >> 1)) + '.' + (i / side - (side >> 1)) + ".mca"));
+        }
+
+        //some files which aren't regions, as are found in real worlds
+        Files.createFile(this.directory.resolve("r.0.0.mca.tmp"));
+        Files.createFile(this.directory.resolve("r.0.0.mcr"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> stream = Files.walk(this.directory)) {
+            stream.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int scan() {
+        return new World(this.directory.toFile(), true).regions().size();
+    }
+}
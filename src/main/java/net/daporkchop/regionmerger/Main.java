@@ -27,14 +27,21 @@ import net.daporkchop.regionmerger.mode.Add;
 import net.daporkchop.regionmerger.mode.DeleteFromFile;
 import net.daporkchop.regionmerger.mode.Dump;
 import net.daporkchop.regionmerger.mode.FindMissing;
+import net.daporkchop.regionmerger.mode.Index;
 import net.daporkchop.regionmerger.mode.MapMode;
 import net.daporkchop.regionmerger.mode.Mode;
 import net.daporkchop.regionmerger.mode.Optimize;
+import net.daporkchop.regionmerger.mode.Prune;
+import net.daporkchop.regionmerger.mode.Synth;
 import net.daporkchop.regionmerger.option.Arguments;
+import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.Metrics;
 import net.daporkchop.regionmerger.util.Utils;
+import net.daporkchop.regionmerger.util.Workers;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -54,8 +61,11 @@ public class Main {
             this.put("deletefromfile", new DeleteFromFile());
             this.put("dump", new Dump());
             this.put("findmissing", new FindMissing());
+            this.put("index", new Index());
             this.put("map", new MapMode());
             this.put("optimize", new Optimize());
+            this.put("prune", new Prune());
+            this.put("synth", new Synth());
         }
     };
 
@@ -85,6 +95,19 @@ public class Main {
                     .info("    Shows this help message.");
 
             MODES.forEach((key, mode) -> mode.printUsage(log));
+            log.info("")
+                    .info("Global options:")
+                    .info("  --metrics <file>         Periodically writes a snapshot of all counters and timings to the given file. The snapshot is written")
+                    .info("                           as JSON if the file name ends with \".json\", and in Prometheus' text format otherwise.")
+                    .info("  --threads <count>        Sets the number of threads used for CPU-bound work. Default: " + Workers.DEFAULT_THREADS)
+                    .info("  --ioThreads <count>      Sets the number of threads used for I/O-bound work, such as scanning region headers.")
+                    .info("                           Lower it on slow or shared disks, raise it (e.g. to 128) on fast SSDs. Default: " + Workers.DEFAULT_IO_THREADS)
+                    .info("  --maxOpenFiles <count>   Sets the maximum number of region files which may be open at once. Default: " + Workers.DEFAULT_MAX_OPEN_FILES)
+                    .info("  --virtualThreads         Reads region headers using one virtual thread per region instead of the I/O threads, limited only by")
+                    .info("                           --maxOpenFiles. This also applies to headers fetched in batches, so --queueDepth is ignored.")
+                    .info("                           Requires Java 21 or newer, otherwise the I/O threads are used.")
+                    .info("  --queueDepth <count>     Sets the number of region headers which are read at once when they are fetched in batches, such as")
+                    .info("                           by findmissing, dump, map and add. Default: " + Workers.DEFAULT_QUEUE_DEPTH);
             return;
         }
 
@@ -97,8 +120,12 @@ public class Main {
         Arguments arguments = mode.arguments();
         arguments.load(Arrays.asList(Arrays.copyOfRange(args, 1, args.length)).iterator());
 
+        Workers.configure(arguments.get(Option.THREADS), arguments.get(Option.IO_THREADS), arguments.get(Option.MAX_OPEN_FILES),
+                arguments.get(Option.VIRTUAL_THREADS), arguments.get(Option.QUEUE_DEPTH));
+        Metrics.begin(mode.name(), arguments.has(Option.METRICS) ? Paths.get(arguments.get(Option.METRICS)) : null);
         long startTime = System.currentTimeMillis();
-        mode.run(arguments);
+        Workers.cpu().run(() -> mode.run(arguments));
         logger.success("Operation completed in %s", Utils.formatDuration(System.currentTimeMillis() - startTime));
+        Metrics.finish();
     }
 }
@@ -23,25 +23,25 @@ package net.daporkchop.regionmerger.mode;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import lombok.NonNull;
-import net.daporkchop.lib.common.function.io.IOConsumer;
-import net.daporkchop.lib.common.function.throwing.ERunnable;
 import net.daporkchop.lib.logging.Logger;
-import net.daporkchop.lib.math.vector.i.Vec2i;
 import net.daporkchop.regionmerger.option.Arguments;
 import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.ChunkMask;
+import net.daporkchop.regionmerger.util.HeaderFetcher;
+import net.daporkchop.regionmerger.util.HeaderOps;
+import net.daporkchop.regionmerger.util.Metrics;
+import net.daporkchop.regionmerger.util.RegionSet;
 import net.daporkchop.regionmerger.util.Sort;
 import net.daporkchop.regionmerger.util.Utils;
+import net.daporkchop.regionmerger.util.Workers;
 import net.daporkchop.regionmerger.util.World;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
 import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.stream.Collectors;
 
 import static net.daporkchop.lib.logging.Logging.*;
 import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
@@ -54,7 +54,6 @@ public class Add implements Mode {
     protected static final Option<Integer> PROGRESS_UPDATE_DELAY = Option.integer("p", 5000, 0, Integer.MAX_VALUE);
     protected static final Option<Sort> SORT = Option.ofEnum("-sort", Sort.class, Sort.YOUNGEST);
 
-    protected static final OpenOption[] READ_OPEN_OPTIONS = { StandardOpenOption.READ };
     protected static final OpenOption[] WRITE_OPEN_OPTIONS = { StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
 
     @Override
@@ -88,149 +87,185 @@ public class Add implements Mode {
 
         final Sort sort = args.get(SORT);
 
-        Collection<Vec2i> regionPositions = sources.stream()
-                .map(World::regions)
-                .flatMap(Collection::stream)
-                .collect(Collectors.toSet());
+        RegionSet regionPositions = new RegionSet();
+        sources.forEach(world -> regionPositions.addAll(world.regions()));
 
         logger.info("Loaded output world with %d existing regions.", dst.regions().size());
         logger.info("Loaded %d input worlds with a total of %d distinct regions.", sources.size(), regionPositions.size());
-        AtomicLong remainingRegions = new AtomicLong(regionPositions.size());
-        AtomicLong totalChunks = new AtomicLong(0L);
-
-        {
-            final int delay = args.get(PROGRESS_UPDATE_DELAY);
-            if (delay > 0) {
-                Thread t = new Thread((ERunnable) () -> {
-                    Logger channel = logger.channel("Progress");
-                    int total = regionPositions.size();
-                    while (true) {
-                        Thread.sleep(delay);
-                        long remaining = remainingRegions.get();
-                        channel.info("Processed %d/%d regions (%.3f%%, %d chunks)", total - remaining, total, (float) (total - remaining) / (float) total * 100.0f, totalChunks.get());
-                        if (remaining == 0) {
-                            return;
-                        }
-                    }
-                });
-                t.setDaemon(true);
-                t.start();
-            }
-        }
 
         ThreadLocal<ByteBuf[]> REGIONS_CACHE = ThreadLocal.withInitial(() -> new ByteBuf[sources.size() + 1]);
-        regionPositions.parallelStream()
-                .forEach((IOConsumer<Vec2i>) pos -> {
-                    File dstFile = dst.getAsFile(pos);
-                    ByteBuf[] regions = REGIONS_CACHE.get();
-                    int regionsCount = 0;
-                    BASE:
+        ThreadLocal<World[]> WORLDS_CACHE = ThreadLocal.withInitial(() -> new World[sources.size() + 1]);
+        ThreadLocal<boolean[]> FULL_CACHE = ThreadLocal.withInitial(() -> new boolean[sources.size() + 1]);
+        ThreadLocal<int[]> WINNERS_CACHE = ThreadLocal.withInitial(() -> new int[HeaderOps.CHUNKS]);
+        ThreadLocal<int[]> OFFSETS_CACHE = ThreadLocal.withInitial(() -> new int[HeaderOps.CHUNKS]);
+        try (Metrics.Progress progress = Metrics.progress("Processed", regionPositions.size(), args.get(PROGRESS_UPDATE_DELAY))) {
+            Workers.io().forEach(regionPositions, pos -> {
+                File dstFile = dst.getAsFile(pos);
+                ByteBuf[] regions = REGIONS_CACHE.get();
+                World[] worlds = WORLDS_CACHE.get();
+                boolean[] full = FULL_CACHE.get();
+                int[] winners = WINNERS_CACHE.get();
+                int[] offsets = OFFSETS_CACHE.get();
+                int regionsCount = 0;
+
+                //only read the headers at first, the rest of a region is only needed if it actually provides any chunks
+                try (HeaderFetcher fetcher = HeaderFetcher.acquire()) {
                     if (dst.regions().contains(pos)) {
-                        ByteBuf buf = null;
-                        try (FileChannel channel = FileChannel.open(dstFile.toPath(), READ_OPEN_OPTIONS)) {
-                            long size = channel.size();
-                            if (size > Integer.MAX_VALUE) {
-                                throw new IllegalStateException(String.format("Region too big: %s (%d bytes)", dst.getAsFile(pos).getAbsolutePath(), size));
-                            } else if (size < HEADER_BYTES) {
-                                throw new IllegalStateException(String.format("Region too small: %s (%d bytes)", dst.getAsFile(pos).getAbsolutePath(), size));
-                            }
-                            buf = PooledByteBufAllocator.DEFAULT.ioBuffer((int) size);
-                            do {
-                                buf.writeBytes(channel, (int) size - buf.writerIndex());
-                            } while (buf.writerIndex() != size);
-                        } catch (Exception e) {
-                            logger.warn(e);
-                            if (buf != null) {
-                                buf.release();
-                            }
-                            if (e instanceof RuntimeException) {
-                                throw e;
-                            } else {
-                                break BASE;
-                            }
-                        }
-                        regions[regionsCount++] = buf;
+                        fetcher.add(dst, pos);
                     }
-                    for (int i = 0; i < regions.length - 1; i++) {
-                        World world = sources.get(i);
+                    for (World world : sources) {
                         if (world.regions().contains(pos)) {
-                            ByteBuf buf = null;
-                            try (FileChannel channel = FileChannel.open(world.getAsFile(pos).toPath(), READ_OPEN_OPTIONS)) {
-                                long size = channel.size();
-                                if (size > Integer.MAX_VALUE) {
-                                    throw new IllegalStateException(String.format("Region too big: %s (%d bytes)", world.getAsFile(pos).getAbsolutePath(), size));
-                                }
-                                buf = PooledByteBufAllocator.DEFAULT.ioBuffer((int) size);
-                                do {
-                                    buf.writeBytes(channel, (int) size - buf.writerIndex());
-                                } while (buf.writerIndex() != size);
+                            fetcher.add(world, pos);
+                        }
+                    }
+                    fetcher.fetch(HEADER_BYTES);
+
+                    for (int slot = 0; slot < fetcher.count(); slot++) {
+                        if ((regions[regionsCount] = copyHeaders(fetcher, slot)) != null) {
+                            worlds[regionsCount++] = fetcher.world(slot);
+                        }
+                    }
+                }
+                Arrays.fill(full, false);
+
+                try {
+                    sort.selectAll(regions, regionsCount, winners, offsets);
+                    READ:
+                    for (int x = 0; x < 32; x++) {
+                        for (int z = 0; z < 32; z++) {
+                            int i = winners[ChunkMask.index(x, z)];
+                            if (i < 0 || full[i]) {
+                                continue;
+                            }
+                            ByteBuf region = regions[i];
+
+                            ByteBuf buf = PooledByteBufAllocator.DEFAULT.ioBuffer(HEADER_BYTES);
+                            try {
+                                worlds[i].readHeaders(pos, buf, Integer.MAX_VALUE);
                             } catch (Exception e) {
                                 logger.warn(e);
-                                if (buf != null) {
-                                    buf.release();
-                                }
+                                buf.release();
                                 if (e instanceof RuntimeException) {
                                     throw e;
-                                } else {
-                                    continue;
                                 }
+
+                                //drop the region and start over, as it may have already won some chunks
+                                region.release();
+                                System.arraycopy(regions, i + 1, regions, i, regionsCount - i - 1);
+                                System.arraycopy(worlds, i + 1, worlds, i, regionsCount - i - 1);
+                                System.arraycopy(full, i + 1, full, i, regionsCount - i - 1);
+                                regions[--regionsCount] = null;
+                                sort.selectAll(regions, regionsCount, winners, offsets);
+                                x = -1;
+                                continue READ;
                             }
-                            regions[regionsCount++] = buf;
+                            region.release();
+                            regions[i] = buf;
+                            full[i] = true;
                         }
                     }
+                } catch (Throwable t) {
+                    while (--regionsCount >= 0) {
+                        regions[regionsCount].release();
+                        regions[regionsCount] = null;
+                    }
+                    throw t;
+                }
 
-                    int chunks = 0;
-                    ByteBuf buf = PooledByteBufAllocator.DEFAULT.ioBuffer(SECTOR_BYTES * (2 + 32 * 32)).writeBytes(EMPTY_HEADERS);
+                int chunks;
+                ByteBuf buf = PooledByteBufAllocator.DEFAULT.ioBuffer(SECTOR_BYTES * (2 + 32 * 32)).writeBytes(EMPTY_HEADERS);
+                try {
+                    long startNanos = System.nanoTime();
                     try {
-                        try {
-                            int sector = 2;
-                            for (int x = 0; x < 32; x++) {
-                                for (int z = 0; z < 32; z++) {
-                                    ByteBuf region = sort.select(regions, regionsCount, x, z);
-
-                                    if (region != null) {
-                                        final int offsetIndex = getOffsetIndex(x, z);
-                                        final int timestampIndex = getTimestampIndex(x, z);
-
-                                        int chunkOffset = region.getInt(offsetIndex);
-                                        final int chunkPos = (chunkOffset >>> 8) * SECTOR_BYTES;
-                                        final int sizeBytes = region.getInt(chunkPos);
-
-                                        buf.setInt(timestampIndex, region.getInt(timestampIndex)); //copy timestamp
-
-                                        buf.writeBytes(region, chunkPos, sizeBytes + 4);
-                                        buf.writeBytes(EMPTY_SECTOR, 0, ((buf.writerIndex() - 1 >> 12) + 1 << 12) - buf.writerIndex()); //pad to next sector
-
-                                        final int chunkSectors = (buf.writerIndex() - 1 >> 12) + 1; //compute next chunk sector
-                                        buf.setInt(offsetIndex, (chunkSectors - sector) | (sector << 8)); //set offset value in region header
-                                        sector = chunkSectors;
-                                        chunks++;
-                                    }
-                                }
-                            }
-                        } finally {
-                            while (--regionsCount >= 0) {
-                                regions[regionsCount].release();
-                                regions[regionsCount] = null;
-                            }
+                        //the winners were selected from the headers alone, which are the same once the regions are fully loaded
+                        chunks = copyChunks(regions, winners, offsets, buf);
+                    } finally {
+                        Metrics.Phase.PROCESS.since(startNanos);
+                        while (--regionsCount >= 0) {
+                            regions[regionsCount].release();
+                            regions[regionsCount] = null;
                         }
+                    }
 
-                        if (chunks > 0) {
-                            Utils.writeAndReplace(dstFile.toPath(), buf);
+                    if (chunks > 0) {
+                        Utils.writeAndReplace(dstFile.toPath(), buf);
 
-                            totalChunks.getAndAdd(chunks);
-                        } else {
-                            logger.warn("Found no input chunks for region (%d,%d)", pos.getX(), pos.getY());
-                        }
-                    } finally {
-                        buf.release();
+                        Metrics.Counter.CHUNKS.add(chunks);
+                    } else {
+                        logger.warn("Found no input chunks for region (%d,%d)", pos.getX(), pos.getY());
                     }
-                    remainingRegions.getAndDecrement();
-                });
+                } finally {
+                    buf.release();
+                }
+                Metrics.Counter.REGIONS.increment();
+            });
+        }
 
         logger.success(
                 "Copied %d chunks (%.2f MB)",
-                totalChunks.get(),
+                Metrics.Counter.CHUNKS.get(),
                 regionPositions.stream().map(dst::getAsFile).mapToLong(File::length).sum() / (1024.0d * 1024.0d));
     }
+
+    /**
+     * Copies the headers which were read into the given slot of the given {@link HeaderFetcher}.
+     *
+     * @return a buffer containing the region's headers, or {@code null} if they couldn't be read
+     */
+    protected static ByteBuf copyHeaders(@NonNull HeaderFetcher fetcher, int slot) {
+        try {
+            long size = fetcher.length(slot);
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException(String.format("Region too big: %s (%d bytes)", fetcher.world(slot).getAsFile(fetcher.position(slot)).getAbsolutePath(), size));
+            } else if (size < HEADER_BYTES) {
+                throw new IllegalStateException(String.format("Region too small: %s (%d bytes)", fetcher.world(slot).getAsFile(fetcher.position(slot)).getAbsolutePath(), size));
+            }
+
+            ByteBuf headers = fetcher.headers(slot);
+            return PooledByteBufAllocator.DEFAULT.ioBuffer(HEADER_BYTES).writeBytes(headers, headers.readerIndex(), headers.readableBytes());
+        } catch (IOException e) {
+            logger.warn(e);
+            return null;
+        }
+    }
+
+    /**
+     * Copies the chunks selected by {@link Sort#selectAll(ByteBuf[], int, int[], int[])} from the given regions into a new region.
+     *
+     * @param regions the regions to copy chunks from. Every region which provides at least one chunk must be fully loaded, the others only need their headers
+     * @param winners the index of the region which provides each chunk, or a negative value if no region does
+     * @param offsets the offset of each chunk in the region which provides it
+     * @param dst     the buffer to write the new region to. Must already contain empty headers
+     * @return the number of copied chunks
+     */
+    protected static int copyChunks(@NonNull ByteBuf[] regions, @NonNull int[] winners, @NonNull int[] offsets, @NonNull ByteBuf dst) {
+        int chunks = 0;
+        int sector = 2;
+        for (int x = 0; x < 32; x++) {
+            for (int z = 0; z < 32; z++) {
+                int winner = winners[ChunkMask.index(x, z)];
+
+                if (winner >= 0) {
+                    final ByteBuf region = regions[winner];
+                    final int offsetIndex = getOffsetIndex(x, z);
+                    final int timestampIndex = getTimestampIndex(x, z);
+
+                    int chunkOffset = offsets[ChunkMask.index(x, z)];
+                    final int chunkPos = (chunkOffset >>> 8) * SECTOR_BYTES;
+                    final int sizeBytes = region.getInt(chunkPos);
+
+                    dst.setInt(timestampIndex, region.getInt(timestampIndex)); //copy timestamp
+
+                    dst.writeBytes(region, chunkPos, sizeBytes + 4);
+                    dst.writeBytes(EMPTY_SECTOR, 0, ((dst.writerIndex() - 1 >> 12) + 1 << 12) - dst.writerIndex()); //pad to next sector
+
+                    final int chunkSectors = (dst.writerIndex() - 1 >> 12) + 1; //compute next chunk sector
+                    dst.setInt(offsetIndex, (chunkSectors - sector) | (sector << 8)); //set offset value in region header
+                    sector = chunkSectors;
+                    chunks++;
+                }
+            }
+        }
+        return chunks;
+    }
 }
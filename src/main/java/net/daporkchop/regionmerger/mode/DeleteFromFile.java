@@ -21,31 +21,31 @@
 package net.daporkchop.regionmerger.mode;
 
 import lombok.NonNull;
-import net.daporkchop.lib.common.function.io.IOConsumer;
 import net.daporkchop.lib.common.misc.file.PFiles;
 import net.daporkchop.lib.logging.Logger;
 import net.daporkchop.lib.math.vector.i.Vec2i;
 import net.daporkchop.lib.unsafe.PUnsafe;
 import net.daporkchop.regionmerger.option.Arguments;
 import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.ChunkList;
+import net.daporkchop.regionmerger.util.ChunkMask;
+import net.daporkchop.regionmerger.util.ChunkMaskMap;
+import net.daporkchop.regionmerger.util.HeaderOps;
+import net.daporkchop.regionmerger.util.Metrics;
+import net.daporkchop.regionmerger.util.Utils;
+import net.daporkchop.regionmerger.util.Workers;
 import net.daporkchop.regionmerger.util.World;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.file.Files;
 import java.nio.file.OpenOption;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
-import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
-import static net.daporkchop.lib.common.util.PValidation.*;
 import static net.daporkchop.lib.logging.Logging.*;
 import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
 
@@ -54,15 +54,28 @@ import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
  */
 public class DeleteFromFile implements Mode {
     protected static final Option<String> FILE = Option.text("-file", null);
+    protected static final Option<Boolean> COMPACT = Option.flag("c");
+    protected static final Option<Integer> PROGRESS_UPDATE_DELAY = Option.integer("p", 5000, 0, Integer.MAX_VALUE);
     protected static final OpenOption[] DELETE_OPEN_OPTIONS = { StandardOpenOption.READ, StandardOpenOption.WRITE };
 
     @Override
     public void printUsage(@NonNull Logger logger) {
+        logger.info("  deletefromfile:")
+                .info("    Deletes all chunks listed in a CSV file (with a header line of either \"x,z\" or \"z,x\") from a world.")
+                .info("")
+                .info("    Usage:")
+                .info("      deletefromfile [options] <path>")
+                .info("")
+                .info("    Options:")
+                .info("      --file <file>  Sets the file containing the chunk positions to delete.")
+                .info("      -c             Compacts every modified region after deleting chunks from it, which actually frees the space used by the")
+                .info("                     deleted chunks.")
+                .info("      -p <time>      Sets the time (in ms) between progress updates. Set to 0 to disable. Default: 5000");
     }
 
     @Override
     public Arguments arguments() {
-        return new Arguments(true, false, FILE);
+        return new Arguments(true, false, FILE, COMPACT, PROGRESS_UPDATE_DELAY);
     }
 
     @Override
@@ -82,54 +95,66 @@ public class DeleteFromFile implements Mode {
             System.exit(1);
         }
 
-        Map<Vec2i, List<Integer>> missing;
-        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName))) {
-            String first = reader.readLine();
-            checkArg("x,z".equals(first) || "z,x".equals(first), first);
-
-            Matcher matcher = Pattern.compile(String.format("^(?<%s>-?\\d+),(?<%s>-?\\d+)$", first.charAt(0), first.charAt(2))).matcher("");
-            missing = reader.lines()
-                    .map(s -> {
-                        checkArg(matcher.reset(s).matches(), "invalid line: %s", s);
-                        return new Vec2i(Integer.parseInt(matcher.group("x")), Integer.parseInt(matcher.group("z")));
-                    })
-                    .distinct()
-                    .collect(Collectors.groupingBy(
-                            pos -> new Vec2i(pos.getX() >> 5, pos.getY() >> 5),
-                            Collectors.mapping(pos -> getOffsetIndex(pos.getX() & 0x1F, pos.getY() & 0x1F), Collectors.toList())));
-        }
-
-        logger.info("Loaded %d missing chunk positions in %d regions.", missing.values().stream().mapToInt(List::size).sum(), missing.size());
-
-        missing.entrySet().stream().parallel()
-                .filter(entry -> dst.regions().contains(entry.getKey()))
-                .forEach((IOConsumer<Map.Entry<Vec2i, List<Integer>>>) entry -> {
-                    File regionFile = dst.getAsFile(entry.getKey());
-
-                    boolean delete;
-                    try (FileChannel channel = FileChannel.open(regionFile.toPath(), DELETE_OPEN_OPTIONS)) {
-                        MappedByteBuffer headers = channel.map(FileChannel.MapMode.READ_WRITE, 0L, SECTOR_BYTES);
-                        entry.getValue().forEach(i -> headers.putInt(i, 0));
-
-                        //determine whether or not we should delete the file
-                        int count = 0;
-                        for (int x = 0; x < 32; x++) {
-                            for (int z = 0; z < 32; z++) {
-                                if (headers.getInt(getOffsetIndex(x, z)) != 0) {
-                                    count++;
-                                }
-                            }
+        ChunkMaskMap missing = ChunkList.read(Paths.get(fileName));
+
+        logger.info("Loaded %d missing chunk positions in %d regions.", missing.countChunks(), missing.size());
+
+        final boolean compact = args.get(COMPACT);
+        AtomicLong freedBytes = new AtomicLong();
+
+        ThreadLocal<long[]> MASK_CACHE = ThreadLocal.withInitial(() -> new long[ChunkMask.WORDS]);
+        try (Metrics.Progress progress = Metrics.progress("Processed", missing.size(), args.get(PROGRESS_UPDATE_DELAY))) {
+            Workers.scan().forEach(IntStream.range(0, missing.capacity()).spliterator(), slot -> {
+                if (!missing.isUsed(slot)) {
+                    return;
+                } else if (!dst.regions().contains(missing.regionX(slot), missing.regionZ(slot))) {
+                    Metrics.Counter.REGIONS.increment();
+                    return;
+                }
+
+                File regionFile = dst.getAsFile(new Vec2i(missing.regionX(slot), missing.regionZ(slot)));
+                long[] mask = missing.mask(slot, MASK_CACHE.get());
+
+                boolean delete;
+                long startNanos = System.nanoTime();
+                try (Workers.Permit permit = Workers.openFiles(1);
+                     FileChannel channel = FileChannel.open(regionFile.toPath(), DELETE_OPEN_OPTIONS)) {
+                    MappedByteBuffer headers = channel.map(FileChannel.MapMode.READ_WRITE, 0L, SECTOR_BYTES);
+                    headers.load();
+                    Metrics.Counter.BYTES_READ.add(SECTOR_BYTES);
+                    Metrics.Phase.READ.since(startNanos);
+
+                    startNanos = System.nanoTime();
+                    for (int word = 0; word < ChunkMask.WORDS; word++) {
+                        for (long bits = mask[word]; bits != 0L; bits &= bits - 1L) {
+                            headers.putInt(((word << 6) | Long.numberOfTrailingZeros(bits)) << 2, 0);
                         }
-                        delete = count == 0;
-
-                        PUnsafe.pork_releaseBuffer(headers.force());
                     }
 
-                    if (delete) {
-                        PFiles.rm(regionFile);
-                    }
-                });
+                    //determine whether or not we should delete the file
+                    delete = HeaderOps.INSTANCE.countPresent(headers) == 0;
+                    Metrics.Phase.PROCESS.since(startNanos);
+
+                    startNanos = System.nanoTime();
+                    PUnsafe.pork_releaseBuffer(headers.force());
+                    Metrics.Counter.BYTES_WRITTEN.add(SECTOR_BYTES);
+                    Metrics.Phase.WRITE.since(startNanos);
+                }
+
+                if (delete) {
+                    freedBytes.getAndAdd(regionFile.length());
+                    PFiles.rm(regionFile);
+                } else if (compact) {
+                    freedBytes.getAndAdd(Utils.compactRegion(regionFile.toPath()));
+                }
+                Metrics.Counter.REGIONS.increment();
+                Metrics.Counter.CHUNKS.add(ChunkMask.count(mask));
+            });
+        }
 
+        if (compact) {
+            logger.success("Freed %.2f MB", freedBytes.get() / (1024.0d * 1024.0d));
+        }
         logger.success("Done!");
     }
 }
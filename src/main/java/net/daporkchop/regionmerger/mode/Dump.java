@@ -25,7 +25,6 @@ import io.netty.buffer.ByteBufAllocator;
 import io.netty.util.ReferenceCountUtil;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
-import net.daporkchop.lib.common.function.io.IOConsumer;
 import net.daporkchop.lib.common.misc.file.PFiles;
 import net.daporkchop.lib.common.pool.handle.Handle;
 import net.daporkchop.lib.common.util.PorkUtil;
@@ -33,21 +32,23 @@ import net.daporkchop.lib.logging.Logger;
 import net.daporkchop.lib.math.vector.i.Vec2i;
 import net.daporkchop.regionmerger.option.Arguments;
 import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.ChunkMask;
+import net.daporkchop.regionmerger.util.HeaderFetcher;
+import net.daporkchop.regionmerger.util.Metrics;
+import net.daporkchop.regionmerger.util.RegionSet;
+import net.daporkchop.regionmerger.util.Workers;
 import net.daporkchop.regionmerger.util.World;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.OpenOption;
-import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 import static net.daporkchop.lib.logging.Logging.*;
 import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
@@ -63,8 +64,6 @@ public class Dump implements Mode {
     protected static final Option<String> OUTPUT = Option.text("-output", "timestamps.csv");
     protected static final Option<Boolean> OVERWRITE = Option.flag("o");
 
-    protected static final OpenOption[] READ_OPEN_OPTIONS = { StandardOpenOption.READ };
-
     @Override
     public void printUsage(@NonNull Logger logger) {
         logger.info("  dump:")
@@ -100,9 +99,10 @@ public class Dump implements Mode {
         }
 
         long totalRegions = sources.stream().map(World::regions).mapToInt(Collection::size).sum();
-        long distinctRegions = sources.stream().map(World::regions).flatMap(Collection::stream).distinct().count();
+        RegionSet distinctRegions = new RegionSet();
+        sources.forEach(world -> distinctRegions.addAll(world.regions()));
 
-        logger.info("Loaded %d input worlds with a total of %d regions (%d distinct regions).", sources.size(), totalRegions, distinctRegions);
+        logger.info("Loaded %d input worlds with a total of %d regions (%d distinct regions).", sources.size(), totalRegions, distinctRegions.size());
 
         final File outputFile = new File(args.get(OUTPUT));
         if (PFiles.checkFileExists(outputFile) && !args.get(OVERWRITE)) {
@@ -114,81 +114,81 @@ public class Dump implements Mode {
 
         logger.info("Starting...");
 
-        AtomicLong remainingRegions = new AtomicLong(totalRegions);
-
-        Thread notifierThread = null;
-        {
-            final int delay = args.get(PROGRESS_UPDATE_DELAY);
-            if (delay > 0) {
-                notifierThread = new Thread(() -> {
-                    Logger channel = logger.channel("Progress");
-                    while (true) {
-                        try {
-                            Thread.sleep(delay);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-
-                        long remaining = remainingRegions.get();
-                        channel.info("Processed %d/%d regions (%.3f%%)", totalRegions - remaining, totalRegions, (float) (totalRegions - remaining) / (float) totalRegions * 100.0f);
-                        if (remaining == 0L || Thread.interrupted()) {
-                            return;
-                        }
-                    }
-                });
-                notifierThread.setDaemon(true);
-                notifierThread.start();
-            }
-        }
-
-        try (OutputStream out = Files.newOutputStream(outputFile.toPath())) {
+        try (Metrics.Progress progress = Metrics.progress("Processed", totalRegions, args.get(PROGRESS_UPDATE_DELAY));
+             OutputStream out = Files.newOutputStream(outputFile.toPath())) {
             out.write(("chunkX,chunkZ," + type.name().toLowerCase(Locale.ROOT) + '\n').getBytes(StandardCharsets.US_ASCII));
 
-            sources.parallelStream().forEach(world -> world.regions().parallelStream().forEach((IOConsumer<Vec2i>) pos -> {
-                ByteBuf headers = null;
-                try {
-                    try (FileChannel channel = FileChannel.open(world.getAsFile(pos).toPath(), READ_OPEN_OPTIONS)) {
-                        int size = Math.min(type.maxDataSize, Math.toIntExact(channel.size()));
-                        headers = ByteBufAllocator.DEFAULT.ioBuffer(size, size);
-                        do {
-                            int writerIndex = headers.writerIndex();
-                            headers.writeBytes(channel, writerIndex, size - writerIndex);
-                        } while (headers.readableBytes() < size);
-                    }
-
-                    try (Handle<StringBuilder> handle = PorkUtil.STRINGBUILDER_POOL.get()) {
-                        StringBuilder builder = handle.get();
-                        builder.setLength(0);
-
-                        for (int x = 0; x < 32; x++) {
-                            for (int z = 0; z < 32; z++) {
-                                if (headers.getInt(getOffsetIndex(x, z)) != 0) {
-                                    builder.append((pos.getX() << 5) | x).append(',').append((pos.getY() << 5) | z).append(',')
-                                            .append(type.chunk(headers, pos.getX(), pos.getY(), x, z)).append('\n');
-                                }
+            //the worlds are processed one after the other, the regions of each one are spread over the whole scan pool
+            for (World world : sources) {
+                if (type.maxDataSize <= HEADER_BYTES) { //only the headers are needed, so they can be read in batches
+                    Vec2i[] positions = world.regions().toArray(new Vec2i[0]);
+                    int batches = (positions.length + HeaderFetcher.BATCH_SIZE - 1) / HeaderFetcher.BATCH_SIZE;
+                    Workers.scan().forEach(IntStream.range(0, batches).spliterator(), batch -> {
+                        try (HeaderFetcher fetcher = HeaderFetcher.acquire()) {
+                            for (int i = batch * HeaderFetcher.BATCH_SIZE, end = Math.min(i + HeaderFetcher.BATCH_SIZE, positions.length); i < end; i++) {
+                                fetcher.add(world, positions[i]);
                             }
-                        }
+                            fetcher.fetch(type.maxDataSize);
 
-                        if (builder.length() != 0) {
-                            byte[] data = builder.toString().getBytes(StandardCharsets.US_ASCII);
-                            synchronized (out) {
-                                out.write(data);
+                            for (int slot = 0; slot < fetcher.count(); slot++) {
+                                writeRegion(out, type, fetcher.headers(slot), fetcher.position(slot));
+                                Metrics.Counter.REGIONS.increment();
                             }
                         }
-                    }
-                } finally {
-                    ReferenceCountUtil.release(headers);
+                    });
+                } else {
+                    Workers.scan().forEach(world.regions(), pos -> {
+                        ByteBuf headers = null;
+                        try {
+                            headers = ByteBufAllocator.DEFAULT.ioBuffer(HEADER_BYTES);
+                            world.readHeaders(pos, headers, type.maxDataSize);
+                            writeRegion(out, type, headers, pos);
+                        } finally {
+                            ReferenceCountUtil.release(headers);
+                        }
+                        Metrics.Counter.REGIONS.increment();
+                    });
                 }
-                remainingRegions.getAndDecrement();
-            }));
+            }
         }
+    }
 
-        if (notifierThread != null) {
-            try {
-                notifierThread.interrupt();
-                notifierThread.join();
-            } catch (Exception e) {
-                logger.alert(e);
+    /**
+     * Formats the given region and appends it to the output.
+     */
+    protected static void writeRegion(@NonNull OutputStream out, @NonNull Type type, @NonNull ByteBuf headers, @NonNull Vec2i pos) throws IOException {
+        try (Handle<StringBuilder> handle = PorkUtil.STRINGBUILDER_POOL.get()) {
+            long startNanos = System.nanoTime();
+            StringBuilder builder = handle.get();
+            builder.setLength(0);
+            formatRegion(builder, type, headers, pos.getX(), pos.getY());
+            Metrics.Phase.PROCESS.since(startNanos);
+
+            if (builder.length() != 0) {
+                byte[] data = builder.toString().getBytes(StandardCharsets.US_ASCII);
+                synchronized (out) {
+                    out.write(data);
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends one CSV row for every chunk in the given region to the given {@link StringBuilder}.
+     */
+    protected static void formatRegion(@NonNull StringBuilder builder, @NonNull Type type, @NonNull ByteBuf headers, int rx, int rz) {
+        long[] present = new long[ChunkMask.WORDS];
+        ChunkMask.orPresent(headers.nioBuffer(0, SECTOR_BYTES), present);
+        if (ChunkMask.isEmpty(present)) {
+            return;
+        }
+
+        for (int x = 0; x < 32; x++) {
+            for (int z = 0; z < 32; z++) {
+                if (ChunkMask.get(present, x, z)) {
+                    builder.append((rx << 5) | x).append(',').append((rz << 5) | z).append(',')
+                            .append(type.chunk(headers, rx, rz, x, z)).append('\n');
+                }
             }
         }
     }
@@ -20,37 +20,47 @@
 
 package net.daporkchop.regionmerger.mode;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NonNull;
-import net.daporkchop.lib.common.function.io.IOFunction;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+import net.daporkchop.lib.common.function.io.IOConsumer;
 import net.daporkchop.lib.common.math.BinMath;
 import net.daporkchop.lib.common.misc.file.PFiles;
-import net.daporkchop.lib.common.misc.string.PStrings;
+import net.daporkchop.lib.common.pool.handle.Handle;
+import net.daporkchop.lib.common.util.PorkUtil;
 import net.daporkchop.lib.logging.Logger;
 import net.daporkchop.lib.math.vector.i.Vec2i;
-import net.daporkchop.lib.unsafe.PUnsafe;
-import net.daporkchop.regionmerger.util.World;
 import net.daporkchop.regionmerger.option.Arguments;
 import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.ChunkMask;
+import net.daporkchop.regionmerger.util.HeaderFetcher;
+import net.daporkchop.regionmerger.util.Metrics;
+import net.daporkchop.regionmerger.util.RegionSet;
+import net.daporkchop.regionmerger.util.Utils;
+import net.daporkchop.regionmerger.util.Workers;
+import net.daporkchop.regionmerger.util.World;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.IntSummaryStatistics;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collector;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
-import java.util.stream.Stream;
 
 import static java.lang.Math.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
@@ -67,12 +77,17 @@ public class FindMissing implements Mode {
     protected static final Option<Integer> MAX_Z = Option.integer("-maxZ", Integer.MIN_VALUE);
     protected static final Option<Boolean> REGION = Option.flag("r");
     protected static final Option<Boolean> OVERWRITE = Option.flag("o");
-    protected static final Option<Format> FORMAT = Option.ofEnum("-format", Format.class, Format.MISSINGCHUNKS_JSON);
+    protected static final Option<Format> FORMAT = Option.ofEnums("-format", PointFormat.MISSINGCHUNKS_JSON, PointFormat.class, RectFormat.class);
     protected static final Option<String> OUTPUT = Option.text("-output", "missingchunks.json");
+    protected static final Option<Integer> PROGRESS_UPDATE_DELAY = Option.integer("p", 5000, 0, Integer.MAX_VALUE);
 
-    protected static final OpenOption[] REGION_OPEN_OPTIONS = { StandardOpenOption.READ };
     protected static final OpenOption[] MISSINGCHUNKS_JSON_OPEN_OPTIONS = { StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
 
+    protected static final byte[] EMPTY_BLOCK = new byte[0];
+
+    protected static final int TILE_SHIFT = 4;
+    protected static final int TILE_SIZE = 1 << TILE_SHIFT;
+
     @Override
     public void printUsage(@NonNull Logger logger) {
         logger.info("  findmissing:")
@@ -86,16 +101,20 @@ public class FindMissing implements Mode {
                 .info("      --minZ <minZ>       Set the min Z coord to check (in regions) (inclusive)")
                 .info("      --maxX <minX>       Set the max X coord to check (in regions) (inclusive)")
                 .info("      --maxZ <minZ>       Set the max Z coord to check (in regions) (inclusive)")
-                .info("      --format <format>   Set the output format that will be used. Available options: missingchunks_json, geojson, geojson_negate_y")
+                .info("                          Any coordinates which aren't set are taken from the bounding box of all regions in the source worlds.")
+                .info("      --format <format>   Set the output format that will be used. Available options: missingchunks_json, geojson, geojson_negate_y,")
+                .info("                          rectangles_json, geojson_rectangles, geojson_rectangles_negate_y")
+                .info("                          The rectangle formats merge adjacent missing chunks (or regions) into rectangles, which is much more compact.")
                 .info("                          Default: missingchunks_json")
                 .info("      --output <file>     Sets the file that data will be written to. Default: missingchunks.json")
                 .info("      -r                  Scans for missing regions rather than missing chunks.")
-                .info("      -o                  Allows overwriting an existing output file.");
+                .info("      -o                  Allows overwriting an existing output file.")
+                .info("      -p <time>           Sets the time (in ms) between progress updates. Set to 0 to disable. Default: 5000");
     }
 
     @Override
     public Arguments arguments() {
-        return new Arguments(false, true, MIN_X, MIN_Z, MAX_X, MAX_Z, OVERWRITE, FORMAT, REGION, OUTPUT);
+        return new Arguments(false, true, MIN_X, MIN_Z, MAX_X, MAX_Z, OVERWRITE, FORMAT, REGION, OUTPUT, PROGRESS_UPDATE_DELAY);
     }
 
     @Override
@@ -107,28 +126,32 @@ public class FindMissing implements Mode {
     public void run(@NonNull Arguments args) throws IOException {
         final List<World> sources = args.getSources();
 
-        final int minX = args.get(MIN_X);
-        final int minZ = args.get(MIN_Z);
-        final int maxX = args.get(MAX_X);
-        final int maxZ = args.get(MAX_Z);
-        if (min(minX, min(minZ, min(maxX, maxZ))) == Integer.MIN_VALUE) {
-            throw new IllegalArgumentException("minX, minZ, maxX and maxZ must all be set!");
-        } else if (maxX < minX) {
+        RegionSet positions = new RegionSet();
+        sources.forEach(world -> positions.addAll(world.regions()));
+
+        logger.info("Loaded %d input worlds with a total of %d distinct regions.", sources.size(), positions.size());
+
+        //any bounds which aren't given are taken from the union of all source regions
+        if (positions.isEmpty() && !(args.has(MIN_X) && args.has(MIN_Z) && args.has(MAX_X) && args.has(MAX_Z))) {
+            throw new IllegalArgumentException("The source worlds contain no regions, so minX, minZ, maxX and maxZ must all be set!");
+        }
+        IntSummaryStatistics xs = positions.stream().mapToInt(Vec2i::getX).summaryStatistics();
+        IntSummaryStatistics zs = positions.stream().mapToInt(Vec2i::getY).summaryStatistics();
+
+        final int minX = args.has(MIN_X) ? args.get(MIN_X) : xs.getMin();
+        final int minZ = args.has(MIN_Z) ? args.get(MIN_Z) : zs.getMin();
+        final int maxX = args.has(MAX_X) ? args.get(MAX_X) : xs.getMax();
+        final int maxZ = args.has(MAX_Z) ? args.get(MAX_Z) : zs.getMax();
+        if (maxX < minX) {
             throw new IllegalArgumentException("maxX must be greater than or equal to minX!");
         } else if (maxZ < minZ) {
             throw new IllegalArgumentException("maxZ must be greater than or equal to minZ!");
         }
 
-        Set<Vec2i> positions = new HashSet<>(sources.stream().map(World::regions).mapToInt(Collection::size).sum());
-        sources.stream().map(World::regions).forEach(positions::addAll);
-
-        logger.info("Loaded %d input worlds with a total of %d distinct regions.", sources.size(), positions.size());
-
-        final int deltaX = (maxX + 1) - minX;
-        final int deltaZ = (maxZ + 1) - minZ;
+        logger.info("Searching regions from (%d,%d) to (%d,%d) (inclusive).", minX, minZ, maxX, maxZ);
 
         final Format format = args.get(FORMAT);
-        final boolean region = args.get(REGION);
+        final Search search = new Search(sources, positions, minX, minZ, maxX, maxZ, args.get(REGION));
 
         final File missingChunksJson = new File(args.get(OUTPUT));
         if (PFiles.checkFileExists(missingChunksJson) && !args.get(OVERWRITE)) {
@@ -139,106 +162,540 @@ public class FindMissing implements Mode {
              FileLock lock = missingChunksJsonChannel.tryLock()) {
             checkState(lock != null, "Unable to obtain lock on missingchunks.json!");
 
-            Stream<Vec2i> searchPositions = LongStream.rangeClosed(minX, maxX)
-                    .flatMap(x -> IntStream.rangeClosed(minZ, maxZ).mapToLong(z -> BinMath.packXY((int) x, z)))
-                    .mapToObj(pos -> new Vec2i(BinMath.unpackX(pos), BinMath.unpackY(pos)));
+            Utils.writeFully(missingChunksJsonChannel, ByteBuffer.wrap(format.prefix().getBytes(StandardCharsets.US_ASCII)));
 
-            Stream<Vec2i> missingPositionsStream;
-            if (region) {
-                missingPositionsStream = searchPositions.filter(pos -> !positions.contains(pos));
-            } else {
-                ThreadLocal<MappedByteBuffer[]> BUFFER_ARRAY_CACHE = ThreadLocal.withInitial(() -> new MappedByteBuffer[sources.size()]);
-                ThreadLocal<Vec2i[]> VEC2I_ARRAY_CACHE = ThreadLocal.withInitial(() -> new Vec2i[32 * 32]);
-                missingPositionsStream = searchPositions.parallel()
-                        .flatMap((IOFunction<Vec2i, Stream<Vec2i>>) regionPos -> {
-                            MappedByteBuffer[] buf = BUFFER_ARRAY_CACHE.get();
-                            int bufCount = 0;
-
-                            try {
-                                for (World world : sources) {
-                                    if (world.regions().contains(regionPos)) {
-                                        try (FileChannel channel = FileChannel.open(world.getAsFile(regionPos).toPath(), REGION_OPEN_OPTIONS)) {
-                                            if (channel.size() < SECTOR_BYTES) {
-                                                continue;
-                                            }
-                                            buf[bufCount++] = channel.map(FileChannel.MapMode.READ_ONLY, 0L, 4096L);
-                                        }
-                                    }
-                                }
+            //blocks are formatted with a leading separator, which needs to be skipped for the first entry in the output
+            AtomicBoolean first = new AtomicBoolean(true);
+            IOConsumer<byte[]> writer = block -> {
+                if (block.length != 0) {
+                    int skip = first.getAndSet(false) ? format.separator().length() : 0;
+                    Utils.writeFully(missingChunksJsonChannel, ByteBuffer.wrap(block, skip, block.length - skip));
+                }
+            };
 
-                                if (bufCount > 0) {
-                                    int missing = 0;
-                                    Vec2i[] arr = VEC2I_ARRAY_CACHE.get();
-                                    for (int x = 31; x >= 0; x--) {
-                                        LOOP_Z:
-                                        for (int z = 31; z >= 0; z--) {
-                                            for (int i = bufCount - 1; i >= 0; i--) {
-                                                if (buf[i].getInt(getOffsetIndex(x, z)) != 0) {
-                                                    continue LOOP_Z;
-                                                }
-                                            }
-                                            arr[missing++] = new Vec2i(regionPos.getX() * 32 + x, regionPos.getY() * 32 + z);
-                                        }
-                                    }
-                                    return missing == 0 ? Stream.empty() : Arrays.stream(Arrays.copyOf(arr, missing));
-                                } else {
-                                    //region doesn't exist in any input, so all chunks are missing
-                                    Vec2i[] result = new Vec2i[32 * 32];
-                                    for (int x = 31; x >= 0; x--) {
-                                        for (int z = 31; z >= 0; z--) {
-                                            result[x * 32 + z] = new Vec2i(regionPos.getX() * 32 + x, regionPos.getY() * 32 + z);
-                                        }
-                                    }
-                                    return Arrays.stream(result);
-                                }
-                            } finally {
-                                while (bufCount-- != 0) {
-                                    PUnsafe.pork_releaseBuffer(buf[bufCount]);
-                                    buf[bufCount] = null;
+            try (Metrics.Progress progress = Metrics.progress("Searched", search.totalRegions(), args.get(PROGRESS_UPDATE_DELAY))) {
+                format.search(search, writer);
+            }
+
+            Utils.writeFully(missingChunksJsonChannel, ByteBuffer.wrap(format.suffix().getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    /**
+     * The state of a single search.
+     * <p>
+     * The search area is split into square tiles of {@link #TILE_SIZE}x{@link #TILE_SIZE} regions. Tiles which don't contain a single source region are known to be missing
+     * entirely without having to look at each position in them, which keeps the cost of huge search areas proportional to the populated area rather than to
+     * the size of the search area. Likewise, when searching for missing regions, tiles in which every region is present are skipped.
+     */
+    protected static final class Search {
+        protected final List<World> sources;
+        protected final RegionSet positions;
+        protected final int minX;
+        protected final int minZ;
+        protected final int maxX;
+        protected final int maxZ;
+        protected final boolean region;
+        protected final int cellShift;
+
+        //the keys of all populated tiles, sorted by row and then by X coordinate, and the number of source regions in each of them (only counting
+        // regions inside the search area)
+        protected final long[] tiles;
+        protected final int[] tileCounts;
+        protected final long totalRegions;
+
+        protected final ThreadLocal<long[][]> masksCache = ThreadLocal.withInitial(() -> new long[TILE_SIZE][ChunkMask.WORDS]);
+
+        public Search(@NonNull List<World> sources, @NonNull RegionSet positions, int minX, int minZ, int maxX, int maxZ, boolean region) {
+            this.sources = sources;
+            this.positions = positions;
+            this.minX = minX;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxZ = maxZ;
+            this.region = region;
+            this.cellShift = region ? 0 : 5;
+
+            //sort the tile of every region inside the search area, then merge the runs of equal tiles
+            long[] keys = positions.keys()
+                    .filter(pos -> BinMath.unpackX(pos) >= minX && BinMath.unpackX(pos) <= maxX && BinMath.unpackY(pos) >= minZ && BinMath.unpackY(pos) <= maxZ)
+                    .map(pos -> tileKey(BinMath.unpackX(pos) >> TILE_SHIFT, BinMath.unpackY(pos) >> TILE_SHIFT))
+                    .sorted().toArray();
+            int count = 0;
+            int[] counts = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                if (count == 0 || keys[count - 1] != keys[i]) {
+                    keys[count++] = keys[i];
+                }
+                counts[count - 1]++;
+            }
+            this.tiles = Arrays.copyOf(keys, count);
+            this.tileCounts = Arrays.copyOf(counts, count);
+            this.totalRegions = keys.length;
+        }
+
+        /**
+         * @return a key for the given tile, such that sorting the keys orders the tiles by row and then by X coordinate
+         */
+        protected static long tileKey(int tileX, int tileZ) {
+            return ((long) tileZ << 32L) | ((tileX ^ Integer.MIN_VALUE) & 0xFFFFFFFFL);
+        }
+
+        protected static int tileX(long key) {
+            return (int) key ^ Integer.MIN_VALUE;
+        }
+
+        /**
+         * @return the index of the first populated tile in the given row of tiles, or of the first one in any later row if there is none
+         */
+        protected int firstTile(int tileZ) {
+            //the key of tile X Integer.MIN_VALUE can't be present, as tile coordinates are at most 28 bits
+            return ~Arrays.binarySearch(this.tiles, tileKey(Integer.MIN_VALUE, tileZ));
+        }
+
+        /**
+         * @return the number of source regions in the given tile
+         */
+        protected int tileCount(int tileX, int tileZ) {
+            int index = Arrays.binarySearch(this.tiles, tileKey(tileX, tileZ));
+            return index >= 0 ? this.tileCounts[index] : 0;
+        }
+
+        /**
+         * @return the number of source regions inside the search area
+         */
+        public long totalRegions() {
+            return this.totalRegions;
+        }
+
+        /**
+         * Counts all of the source regions in the given tile as processed.
+         */
+        protected void tileDone(int tileX, int tileZ) {
+            Metrics.Counter.REGIONS.add(this.tileCount(tileX, tileZ));
+        }
+
+        /**
+         * @return whether or not every region of the given tile inside the search area is present in at least one source world
+         */
+        protected boolean isTileFull(int tileX, int tileZ) {
+            int sizeX = min(this.maxX, (tileX << TILE_SHIFT) + TILE_SIZE - 1) - max(this.minX, tileX << TILE_SHIFT) + 1;
+            int sizeZ = min(this.maxZ, (tileZ << TILE_SHIFT) + TILE_SIZE - 1) - max(this.minZ, tileZ << TILE_SHIFT) + 1;
+            return this.tileCount(tileX, tileZ) == sizeX * sizeZ;
+        }
+
+        /**
+         * Computes the chunk masks of all the chunks in the given row or column of regions which are present in at least one source world.
+         * <p>
+         * The headers are read in batches from every source world which contains the regions, and the chunks present in each source are OR-ed together,
+         * so no per-chunk objects are allocated.
+         *
+         * @param masks the arrays to store the chunk masks of the regions in, in order of increasing coordinates
+         */
+        protected void presentChunks(int x0, int z0, int x1, int z1, @NonNull long[][] masks) throws IOException {
+            for (int i = 0, count = (x1 - x0 + 1) * (z1 - z0 + 1); i < count; i++) {
+                ChunkMask.clear(masks[i]);
+            }
+
+            try (HeaderFetcher fetcher = HeaderFetcher.acquire(SECTOR_BYTES, (f, slot) -> {
+                Vec2i regionPos = f.position(slot);
+                //only one of the two coordinates can differ from the start of the row or column
+                ChunkMask.orPresent(f.headers(slot).nioBuffer(0, SECTOR_BYTES), masks[regionPos.getX() - x0 + regionPos.getY() - z0]);
+            })) {
+                for (int regionX = x0; regionX <= x1; regionX++) {
+                    for (int regionZ = z0; regionZ <= z1; regionZ++) {
+                        Vec2i regionPos = null;
+                        for (World world : this.sources) {
+                            if (world.regions().contains(regionX, regionZ)) {
+                                fetcher.add(world, regionPos != null ? regionPos : (regionPos = new Vec2i(regionX, regionZ)));
+                            }
+                        }
+                    }
+                }
+                fetcher.flush();
+            }
+
+            for (int i = 0, count = (x1 - x0 + 1) * (z1 - z0 + 1); i < count; i++) {
+                Metrics.Counter.CHUNKS.add(ChunkMask.count(masks[i]));
+            }
+        }
+
+        /**
+         * Turns a chunk mask of the chunks which are present in a region into one of the chunks which are missing from it.
+         *
+         * @return whether or not any chunks are missing
+         */
+        protected static boolean missingChunks(@NonNull long[] mask) {
+            if (ChunkMask.isFull(mask)) {
+                return false;
+            }
+
+            //any chunk whose bit isn't set is missing
+            ChunkMask.invert(mask);
+            return true;
+        }
+
+        /**
+         * Finds all of the missing chunks (or regions) in the given tile, and formats them.
+         */
+        public byte[] tilePoints(@NonNull PointFormat format, int tileX, int tileZ) throws IOException {
+            boolean populated = this.tileCount(tileX, tileZ) != 0;
+            if (populated && this.region && this.isTileFull(tileX, tileZ)) {
+                this.tileDone(tileX, tileZ);
+                return EMPTY_BLOCK;
+            }
+
+            int x0 = max(this.minX, tileX << TILE_SHIFT);
+            int x1 = min(this.maxX, (tileX << TILE_SHIFT) + TILE_SIZE - 1);
+            int z0 = max(this.minZ, tileZ << TILE_SHIFT);
+            int z1 = min(this.maxZ, (tileZ << TILE_SHIFT) + TILE_SIZE - 1);
+
+            try (Handle<StringBuilder> handle = PorkUtil.STRINGBUILDER_POOL.get()) {
+                StringBuilder builder = handle.get();
+                builder.setLength(0);
+
+                long[][] masks = this.masksCache.get();
+                for (int regionX = x0; regionX <= x1; regionX++) {
+                    if (populated && !this.region) { //read the headers of the whole column at once
+                        this.presentChunks(regionX, z0, regionX, z1, masks);
+                    }
+                    for (int regionZ = z0; regionZ <= z1; regionZ++) {
+                        long[] mask = masks[regionZ - z0];
+                        if (this.region) {
+                            if (!populated || !this.positions.contains(regionX, regionZ)) {
+                                format.append(builder.append(format.separator), regionX, regionZ);
+                            }
+                            continue;
+                        } else if (!populated) { //the entire region is missing
+                            ChunkMask.fill(mask);
+                        } else if (!missingChunks(mask)) {
+                            continue;
+                        }
+
+                        for (int x = 0; x < 32; x++) {
+                            for (int z = 0; z < 32; z++) {
+                                if (ChunkMask.get(mask, x, z)) {
+                                    format.append(builder.append(format.separator), (regionX << 5) | x, (regionZ << 5) | z);
                                 }
                             }
-                        });
+                        }
+                    }
+                }
+                this.tileDone(tileX, tileZ);
+                return builder.toString().getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+
+        /**
+         * Finds all of the missing chunks (or regions) in the given row of tiles, and merges them into rectangles.
+         *
+         * @return a {@link RectSweep} whose step is the tile row, containing all of the rectangles
+         */
+        public RectSweep tileRow(int tileZ) throws IOException {
+            int z0 = max(this.minZ, tileZ << TILE_SHIFT);
+            int z1 = min(this.maxZ, (tileZ << TILE_SHIFT) + TILE_SIZE - 1);
+            int firstTile = this.firstTile(tileZ);
+            int lastTile = this.firstTile(tileZ + 1);
+
+            RectSweep columnSweep = new RectSweep(false);
+            long[][] masks = this.masksCache.get();
+            for (int regionZ = z0; regionZ <= z1; regionZ++) {
+                columnSweep.step(regionZ << this.cellShift, ((regionZ + 1) << this.cellShift) - 1);
+
+                RectSweep sweep = new RectSweep(true);
+                int regionX = this.minX;
+                for (int tile = firstTile; tile < lastTile; tile++) {
+                    int tileX = tileX(this.tiles[tile]);
+                    int x0 = max(this.minX, tileX << TILE_SHIFT);
+                    int x1 = min(this.maxX, (tileX << TILE_SHIFT) + TILE_SIZE - 1);
+                    if (regionX < x0) { //all regions between the previous populated tile and this one are missing
+                        this.addMissing(sweep, regionX, x0 - 1, regionZ);
+                    }
+                    if (!this.region) { //read the headers of the tile's whole row at once
+                        this.presentChunks(x0, regionZ, x1, regionZ, masks);
+                    }
+                    if (!this.region || !this.isTileFull(tileX, tileZ)) {
+                        for (int x = x0; x <= x1; x++) {
+                            this.addRegion(this.region ? null : masks[x - x0], sweep, x, regionZ);
+                        }
+                    }
+                    regionX = x1 + 1;
+                }
+                if (regionX <= this.maxX) {
+                    this.addMissing(sweep, regionX, this.maxX, regionZ);
+                }
+                sweep.finish();
+                sweep.done.forEach(columnSweep::add);
+            }
+            columnSweep.finish();
+            for (int tile = firstTile; tile < lastTile; tile++) {
+                Metrics.Counter.REGIONS.add(this.tileCounts[tile]);
+            }
+            columnSweep.start = z0 << this.cellShift;
+            columnSweep.end = ((z1 + 1) << this.cellShift) - 1;
+            return columnSweep;
+        }
+
+        protected void addMissing(@NonNull RectSweep sweep, int x0, int x1, int regionZ) {
+            int minX = x0 << this.cellShift;
+            int maxX = ((x1 + 1) << this.cellShift) - 1;
+            sweep.step(minX, maxX);
+            sweep.add(new Rect(minX, regionZ << this.cellShift, maxX, ((regionZ + 1) << this.cellShift) - 1));
+        }
+
+        /**
+         * @param present the chunks which are present in the region, or {@code null} when searching for missing regions
+         */
+        protected void addRegion(long[] present, @NonNull RectSweep sweep, int regionX, int regionZ) {
+            if (this.region) {
+                if (!this.positions.contains(regionX, regionZ)) {
+                    this.addMissing(sweep, regionX, regionX, regionZ);
+                }
+            } else {
+                sweep.step(regionX << 5, (regionX << 5) + 31);
+                if (missingChunks(present)) {
+                    ChunkMask.forEachRect(present, regionX << 5, regionZ << 5, (minX, minZ, maxX, maxZ) -> sweep.add(new Rect(minX, minZ, maxX, maxZ)));
+                }
+            }
+        }
+    }
+
+    /**
+     * A rectangle of missing chunks (or regions). All coordinates are inclusive.
+     */
+    @AllArgsConstructor
+    protected static final class Rect {
+        protected int minX;
+        protected int minZ;
+        protected int maxX;
+        protected int maxZ;
+    }
+
+    /**
+     * Merges rectangles which touch each other along one axis, as long as they cover exactly the same range on the other axis.
+     * <p>
+     * Rectangles are added in steps, where each step covers the range directly following the previous one along the sweep axis. Rectangles which touch the
+     * end of a step are kept open so that rectangles from the next step may extend them, all others are finished.
+     */
+    protected static final class RectSweep {
+        protected final boolean alongX;
+        protected final List<Rect> done = new ArrayList<>();
+
+        protected Map<Long, Rect> open = new HashMap<>();
+        protected Map<Long, Rect> nextOpen = new HashMap<>();
+        protected int start = Integer.MIN_VALUE;
+        protected int end = Integer.MIN_VALUE + 1;
+
+        public RectSweep(boolean alongX) {
+            this.alongX = alongX;
+        }
+
+        /**
+         * Begins the next step. Any rectangles which weren't extended during the previous step are finished.
+         * <p>
+         * Steps may be skipped (e.g. if there are no rectangles in them), in which case all open rectangles are finished.
+         */
+        public void step(int start, int end) {
+            this.done.addAll(this.open.values());
+            this.open.clear();
+            if (start != this.end + 1) { //steps aren't adjacent, so nothing can be extended
+                this.done.addAll(this.nextOpen.values());
+                this.nextOpen.clear();
+            }
+
+            Map<Long, Rect> open = this.open;
+            this.open = this.nextOpen;
+            this.nextOpen = open;
+
+            this.start = start;
+            this.end = end;
+        }
+
+        public void add(@NonNull Rect rect) {
+            int min = this.alongX ? rect.minX : rect.minZ;
+            int max = this.alongX ? rect.maxX : rect.maxZ;
+            long key = this.alongX ? BinMath.packXY(rect.minZ, rect.maxZ) : BinMath.packXY(rect.minX, rect.maxX);
+
+            Rect merged = min == this.start ? this.open.remove(key) : null;
+            if (merged != null) {
+                if (this.alongX) {
+                    merged.maxX = max;
+                } else {
+                    merged.maxZ = max;
+                }
+                rect = merged;
+            }
+
+            if (max == this.end) {
+                this.nextOpen.put(key, rect);
+            } else {
+                this.done.add(rect);
+            }
+        }
+
+        /**
+         * Finishes all rectangles which are still open.
+         */
+        public void finish() {
+            this.done.addAll(this.open.values());
+            this.done.addAll(this.nextOpen.values());
+            this.open.clear();
+            this.nextOpen.clear();
+        }
+
+        /**
+         * Formats and removes all rectangles which have been finished so far.
+         */
+        public byte[] drain(@NonNull RectFormat format) {
+            if (this.done.isEmpty()) {
+                return EMPTY_BLOCK;
             }
 
-            byte[] json = missingPositionsStream.collect(format.collector()).getBytes(StandardCharsets.UTF_8);
+            try (Handle<StringBuilder> handle = PorkUtil.STRINGBUILDER_POOL.get()) {
+                StringBuilder builder = handle.get();
+                builder.setLength(0);
 
-            int written = missingChunksJsonChannel.write(ByteBuffer.wrap(json));
-            if (written != json.length) {
-                throw new IllegalStateException(String.format("Only wrote %d/%d bytes!", written, json.length));
+                for (Rect rect : this.done) {
+                    format.appendRect(builder.append(format.separator), rect.minX, rect.minZ, rect.maxX, rect.maxZ);
+                }
+                this.done.clear();
+                return builder.toString().getBytes(StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+    /**
+     * An output format.
+     * <p>
+     * Formats either list every missing chunk (or region) on its own, or merge them into rectangles first. The two kinds of format need different searches,
+     * so each one runs the search itself.
+     */
+    protected interface Format {
+        String prefix();
+
+        /**
+         * @return the text which is placed before every entry except for the first one
+         */
+        String separator();
+
+        String suffix();
+
+        /**
+         * Searches the whole search area, and passes the formatted entries to the given writer in order.
+         */
+        void search(@NonNull Search search, @NonNull IOConsumer<byte[]> writer) throws IOException;
+    }
+
+    /**
+     * A {@link Format} which lists every missing chunk (or region) on its own.
+     */
+    @RequiredArgsConstructor
+    @Getter
+    @Accessors(fluent = true)
+    protected enum PointFormat implements Format {
+        MISSINGCHUNKS_JSON("[\n    ", ",\n    ", "\n]") {
+            @Override
+            void append(StringBuilder builder, int x, int z) {
+                builder.append("{\"x\":").append(x).append(",\"z\":").append(z).append('}');
             }
+        },
+        GEOJSON("{\"type\":\"FeatureCollection\",\"features\":[", ",", "]}") {
+            @Override
+            void append(StringBuilder builder, int x, int z) {
+                builder.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[").append(x).append(',').append(z)
+                        .append("]},\"properties\":{\"x\":").append(x).append(",\"z\":").append(z).append("}}");
+            }
+        },
+        GEOJSON_NEGATE_Y("{\"type\":\"FeatureCollection\",\"features\":[", ",", "]}") {
+            @Override
+            void append(StringBuilder builder, int x, int z) {
+                builder.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[").append(x).append(',').append(-z)
+                        .append("]},\"properties\":{\"x\":").append(x).append(",\"z\":").append(z).append("}}");
+            }
+        };
+
+        @NonNull
+        final String prefix;
+        @NonNull
+        final String separator;
+        @NonNull
+        final String suffix;
+
+        @Override
+        public void search(@NonNull Search search, @NonNull IOConsumer<byte[]> writer) throws IOException {
+            //the search is made up of reading lots of tiny region headers, so it runs on the scan pool
+            Workers.scan().forEachOrdered(
+                    LongStream.rangeClosed(search.minZ >> TILE_SHIFT, search.maxZ >> TILE_SHIFT)
+                            .flatMap(tileZ -> IntStream.rangeClosed(search.minX >> TILE_SHIFT, search.maxX >> TILE_SHIFT).mapToLong(tileX -> BinMath.packXY(tileX, (int) tileZ)))
+                            .spliterator(),
+                    tile -> search.tilePoints(this, BinMath.unpackX(tile), BinMath.unpackY(tile)),
+                    writer);
         }
+
+        abstract void append(StringBuilder builder, int x, int z);
     }
 
-    private enum Format {
-        MISSINGCHUNKS_JSON {
+    /**
+     * A {@link Format} which merges adjacent missing chunks (or regions) into rectangles.
+     */
+    @RequiredArgsConstructor
+    @Getter
+    @Accessors(fluent = true)
+    protected enum RectFormat implements Format {
+        RECTANGLES_JSON("[\n    ", ",\n    ", "\n]") {
             @Override
-            Collector<Vec2i, ?, String> collector() {
-                return Collectors.mapping(
-                        pos -> PStrings.fastFormat("{\"x\":%d,\"z\":%d}", pos.getX(), pos.getY()),
-                        Collectors.joining(",\n    ", "[\n    ", "\n]"));
+            void appendRect(StringBuilder builder, int minX, int minZ, int maxX, int maxZ) {
+                builder.append("{\"minX\":").append(minX).append(",\"minZ\":").append(minZ)
+                        .append(",\"maxX\":").append(maxX).append(",\"maxZ\":").append(maxZ).append('}');
             }
         },
-        GEOJSON {
+        GEOJSON_RECTANGLES("{\"type\":\"FeatureCollection\",\"features\":[", ",", "]}") {
             @Override
-            Collector<Vec2i, ?, String> collector() {
-                return Collectors.mapping(
-                        pos -> PStrings.fastFormat(
-                                "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[%1$d,%2$d]},\"properties\":{\"x\":%1$d,\"z\":%2$d}}",
-                                pos.getX(), pos.getY()),
-                        Collectors.joining(",", "{\"type\":\"FeatureCollection\",\"features\":[", "]}"));
+            void appendRect(StringBuilder builder, int minX, int minZ, int maxX, int maxZ) {
+                appendPolygon(builder, minX, minZ, maxX + 1, maxZ + 1, minX, minZ, maxX, maxZ);
             }
         },
-        GEOJSON_NEGATE_Y {
+        GEOJSON_RECTANGLES_NEGATE_Y("{\"type\":\"FeatureCollection\",\"features\":[", ",", "]}") {
             @Override
-            Collector<Vec2i, ?, String> collector() {
-                return Collectors.mapping(
-                        pos -> PStrings.fastFormat(
-                                "{\"type\":\"Feature\",\"geometry\":{\"type\":\"Point\",\"coordinates\":[%1$d,%2$d]},\"properties\":{\"x\":%1$d,\"z\":%3$d}}",
-                                pos.getX(), -pos.getY(), pos.getY()),
-                        Collectors.joining(",", "{\"type\":\"FeatureCollection\",\"features\":[", "]}"));
+            void appendRect(StringBuilder builder, int minX, int minZ, int maxX, int maxZ) {
+                appendPolygon(builder, minX, -(maxZ + 1), maxX + 1, -minZ, minX, minZ, maxX, maxZ);
             }
         };
 
-        abstract Collector<Vec2i, ?, String> collector();
+        /**
+         * Appends a GeoJSON feature with a rectangular polygon, whose exterior ring is counterclockwise as required by RFC 7946.
+         */
+        static void appendPolygon(StringBuilder builder, int x0, int y0, int x1, int y1, int minX, int minZ, int maxX, int maxZ) {
+            builder.append("{\"type\":\"Feature\",\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[")
+                    .append('[').append(x0).append(',').append(y0).append("],")
+                    .append('[').append(x1).append(',').append(y0).append("],")
+                    .append('[').append(x1).append(',').append(y1).append("],")
+                    .append('[').append(x0).append(',').append(y1).append("],")
+                    .append('[').append(x0).append(',').append(y0).append(']')
+                    .append("]]},\"properties\":{\"minX\":").append(minX).append(",\"minZ\":").append(minZ)
+                    .append(",\"maxX\":").append(maxX).append(",\"maxZ\":").append(maxZ).append("}}");
+        }
+
+        @NonNull
+        final String prefix;
+        @NonNull
+        final String separator;
+        @NonNull
+        final String suffix;
+
+        @Override
+        public void search(@NonNull Search search, @NonNull IOConsumer<byte[]> writer) throws IOException {
+            //each row of tiles is split into rectangles in parallel, which are then merged with the rectangles from the previous row in order
+            RectSweep rowSweep = new RectSweep(false);
+            Workers.scan().forEachOrdered(IntStream.rangeClosed(search.minZ >> TILE_SHIFT, search.maxZ >> TILE_SHIFT).spliterator(), search::tileRow, row -> {
+                rowSweep.step(row.start, row.end);
+                row.done.forEach(rowSweep::add);
+                writer.accept(rowSweep.drain(this));
+            });
+            rowSweep.finish();
+            writer.accept(rowSweep.drain(this));
+        }
+
+        abstract void appendRect(StringBuilder builder, int minX, int minZ, int maxX, int maxZ);
     }
 }
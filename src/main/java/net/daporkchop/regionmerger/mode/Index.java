@@ -0,0 +1,85 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.mode;
+
+import lombok.NonNull;
+import net.daporkchop.lib.common.function.io.IOConsumer;
+import net.daporkchop.lib.logging.Logger;
+import net.daporkchop.regionmerger.option.Arguments;
+import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.Metrics;
+import net.daporkchop.regionmerger.util.World;
+import net.daporkchop.regionmerger.util.WorldIndex;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.daporkchop.lib.logging.Logging.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class Index implements Mode {
+    protected static final Option<Integer> PROGRESS_UPDATE_DELAY = Option.integer("p", 5000, 0, Integer.MAX_VALUE);
+
+    @Override
+    public void printUsage(@NonNull Logger logger) {
+        logger.info("  index:")
+                .info("    Builds an index of the region headers of one or more worlds, which is stored in each world's directory.")
+                .info("    The add, dump, findmissing and map modes will read region headers from the index instead of the region files whenever possible.")
+                .info("    Regions which were modified since the index was built are detected and read from the region files as usual, so an index never")
+                .info("    has to be deleted. Re-indexing a world only reads the regions which were modified since it was last indexed.")
+                .info("")
+                .info("    Usage:")
+                .info("      index [options] <source> [source]...")
+                .info("")
+                .info("    Options:")
+                .info("      -p <time>  Sets the time (in ms) between progress updates. Set to 0 to disable. Default: 5000");
+    }
+
+    @Override
+    public Arguments arguments() {
+        return new Arguments(false, true, PROGRESS_UPDATE_DELAY);
+    }
+
+    @Override
+    public String name() {
+        return "index";
+    }
+
+    @Override
+    public void run(@NonNull Arguments args) throws IOException {
+        final List<World> sources = args.getSources();
+
+        long totalRegions = sources.stream().map(World::regions).mapToInt(Collection::size).sum();
+        logger.info("Loaded %d input worlds with a total of %d regions.", sources.size(), totalRegions);
+
+        AtomicLong readRegions = new AtomicLong(0L);
+
+        try (Metrics.Progress progress = Metrics.progress("Indexed", totalRegions, args.get(PROGRESS_UPDATE_DELAY))) {
+            sources.forEach((IOConsumer<World>) world -> readRegions.getAndAdd(WorldIndex.build(world)));
+        }
+
+        logger.success("Indexed %d regions (%d read from region files, %d unchanged)", totalRegions, readRegions.get(), totalRegions - readRegions.get());
+    }
+}
@@ -27,34 +27,52 @@ import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import net.daporkchop.lib.common.function.io.IOConsumer;
 import net.daporkchop.lib.common.function.throwing.ERunnable;
+import net.daporkchop.lib.common.math.BinMath;
 import net.daporkchop.lib.common.misc.file.PFiles;
 import net.daporkchop.lib.logging.Logger;
 import net.daporkchop.lib.math.vector.i.Vec2i;
 import net.daporkchop.regionmerger.option.Arguments;
 import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.ChunkMask;
+import net.daporkchop.regionmerger.util.HeaderFetcher;
+import net.daporkchop.regionmerger.util.HeaderOps;
+import net.daporkchop.regionmerger.util.Metrics;
+import net.daporkchop.regionmerger.util.PngWriter;
+import net.daporkchop.regionmerger.util.RegionCache;
+import net.daporkchop.regionmerger.util.RegionSet;
+import net.daporkchop.regionmerger.util.Sort;
+import net.daporkchop.regionmerger.util.TerrainRenderer;
+import net.daporkchop.regionmerger.util.TilePyramid;
+import net.daporkchop.regionmerger.util.TiledRaster;
+import net.daporkchop.regionmerger.util.Workers;
 import net.daporkchop.regionmerger.util.World;
 import org.gdal.gdal.Band;
 import org.gdal.gdal.ColorTable;
 import org.gdal.gdal.Dataset;
 import org.gdal.gdal.Driver;
-import org.gdal.gdal.TermProgressCallback;
 import org.gdal.gdal.gdal;
 
-import javax.imageio.ImageIO;
 import java.awt.Color;
-import java.awt.image.BufferedImage;
-import java.awt.image.IndexColorModel;
 import java.io.File;
 import java.io.IOException;
-import java.nio.channels.FileChannel;
-import java.nio.file.OpenOption;
-import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.IntSummaryStatistics;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 import static java.lang.Math.*;
 import static net.daporkchop.lib.common.math.PMath.*;
@@ -70,32 +88,55 @@ import static org.gdal.gdalconst.gdalconstConstants.*;
  */
 public class MapMode implements Mode {
     protected static final Option<Integer> PROGRESS_UPDATE_DELAY = Option.integer("p", 5000, 0, Integer.MAX_VALUE);
-    protected static final Option<Type> TYPE = Option.ofEnum("-type", Type.class, null);
+    protected static final Option<List<Type>> TYPE = Option.ofEnumList("-type", Type.class, null);
     protected static final Option<Format> FORMAT = Option.ofEnum("-format", Format.class, Format.PNG);
-    protected static final Option<String> OUTPUT = Option.text("-output", "map.png");
+    protected static final Option<String> OUTPUT = Option.text("-output", null);
     protected static final Option<Boolean> OVERWRITE = Option.flag("o");
+    protected static final Option<Boolean> FULL = Option.flag("f");
+    protected static final Option<String> CACHE = Option.text("-cache", null);
 
-    protected static final OpenOption[] READ_OPEN_OPTIONS = { StandardOpenOption.READ };
+    protected static final int TILE_SHIFT = 10;
+    protected static final int TILE_SIZE = 1 << TILE_SHIFT;
+    protected static final int REGION_TO_TILE_SHIFT = TILE_SHIFT - 5;
+
+    protected static final ThreadLocal<TerrainRenderer> TERRAIN_RENDERER = ThreadLocal.withInitial(TerrainRenderer::new);
+    protected static final ThreadLocal<int[]> WINNERS_CACHE = ThreadLocal.withInitial(() -> new int[HeaderOps.CHUNKS]);
+    protected static final ThreadLocal<int[]> OFFSETS_CACHE = ThreadLocal.withInitial(() -> new int[HeaderOps.CHUNKS]);
+    protected static final ThreadLocal<long[]> PRESENT_CACHE = ThreadLocal.withInitial(() -> new long[ChunkMask.WORDS]);
 
     @Override
     public void printUsage(@NonNull Logger logger) {
         logger.info("  map:")
-                .info("    Generates a map of the given input world based on some value.")
+                .info("    Generates a map of the given input world(s) based on some value.")
+                .info("    If multiple source worlds are given, a composite map is rendered: age and the sizes show the youngest version of each chunk,")
+                .info("    exists shows the union of all sources and count shows the number of sources that contain each chunk.")
                 .info("")
                 .info("    Usage:")
-                .info("      map [options] <source>")
+                .info("      map [options] <source> [source]...")
                 .info("")
                 .info("    Options:")
-                .info("      --type <type>      Sets the type of map that will be created. Options: age, exists, size, size_fast")
-                .info("      --output <file>    Sets the file that the map will be written to. Default: map.png")
-                .info("      --format <format>  Sets the image format that will be used. Default: png, Options: png, geotiff")
+                .info("      --type <type>      Sets the type of map that will be created. Options: age, count, exists, size, size_fast, terrain, preview, preview_4x4")
+                .info("                         terrain is a top-down view of the surface blocks at one pixel per block, and can't be written as a geotiff.")
+                .info("                         preview shows the size of each region file at one pixel per region, without opening any region files.")
+                .info("                         preview_4x4 shows the total size of the chunks in each 8x8 chunk area, using only the region headers.")
+                .info("                         Multiple comma-separated types may be given, in which case all maps are rendered in a single pass and")
+                .info("                         the type's name is appended to the name of each output file (e.g. map-age.png).")
+                .info("      --output <file>    Sets the file that the map will be written to, or the directory for tiles. Default: map.png, or map for tiles")
+                .info("      --format <format>  Sets the image format that will be used. Default: png, Options: png, geotiff, tiles")
+                .info("                         tiles writes a pyramid of 256x256 PNG tiles into the output directory, laid out as <zoom>/<x>/<y>.png")
+                .info("                         with zoom 0 at full resolution and negative zoom levels for the coarser levels. Reruns only")
+                .info("                         re-render the tiles covering regions which were modified, added or removed since the previous run,")
+                .info("                         keeping the previous run's color scale (values outside of it are clamped).")
                 .info("      -o                 Allows overwriting an existing output file.")
+                .info("      -f                 Forces a full re-render of an existing tile pyramid, recomputing the color scale.")
+                .info("      --cache <dir>      Caches the rendered pixels of every region in the given directory (one file per type). Subsequent runs")
+                .info("                         only read regions whose files were modified, added or removed since, and take everything else from the cache.")
                 .info("      -p <time>          Sets the time (in ms) between progress updates. Set to 0 to disable. Default: 5000");
     }
 
     @Override
     public Arguments arguments() {
-        return new Arguments(false, true, TYPE, FORMAT, OUTPUT, OVERWRITE, PROGRESS_UPDATE_DELAY);
+        return new Arguments(false, true, TYPE, FORMAT, OUTPUT, OVERWRITE, FULL, CACHE, PROGRESS_UPDATE_DELAY);
     }
 
     @Override
@@ -107,24 +148,42 @@ public class MapMode implements Mode {
     public void run(@NonNull Arguments args) throws IOException {
         final List<World> sources = args.getSources();
 
-        if (sources.size() != 1) {
-            logger.alert("Expected exactly 1 source world, but found %d!", sources.size());
+        if (sources.isEmpty()) {
+            logger.alert("Expected at least 1 source world!");
             System.exit(1);
         }
 
-        World world = sources.get(0);
-        Collection<Vec2i> regionPositions = world.regions();
+        RegionSet regionPositions = new RegionSet();
+        sources.forEach(world -> regionPositions.addAll(world.regions()));
 
         logger.info("Loaded %d input worlds with a total of %d distinct regions.", sources.size(), regionPositions.size());
 
-        final File imageFile = new File(args.get(OUTPUT));
-        if (PFiles.checkFileExists(imageFile) && !args.get(OVERWRITE)) {
-            throw new IllegalStateException(imageFile + " already exists (use -o to allow overwriting)");
+        final List<Type> types = args.get(TYPE);
+        final Format format = args.get(FORMAT);
+
+        if (types == null || types.isEmpty()) {
+            logger.alert("--type must be set!");
+            System.exit(1);
+        } else if (format == Format.GEOTIFF && types.contains(Type.TERRAIN)) {
+            logger.alert("terrain maps can't be written as a geotiff!");
+            System.exit(1);
         }
-        PFiles.rm(imageFile);
 
-        final Type type = args.get(TYPE);
-        final Format format = args.get(FORMAT);
+        final File output = new File(args.has(OUTPUT) ? args.get(OUTPUT) : format == Format.TILES ? "map" : "map.png");
+        final File[] imageFiles = new File[types.size()];
+        for (int i = 0; i < types.size(); i++) {
+            imageFiles[i] = outputFile(output, types.get(i), types.size() > 1);
+            if (format == Format.TILES) { //tile pyramids are updated in place
+                if (imageFiles[i].isFile()) {
+                    throw new IllegalStateException(imageFiles[i] + " is a file, tiles must be written to a directory (use --output to choose a different one)");
+                }
+            } else {
+                if (PFiles.checkFileExists(imageFiles[i]) && !args.get(OVERWRITE)) {
+                    throw new IllegalStateException(imageFiles[i] + " already exists (use -o to allow overwriting)");
+                }
+                PFiles.rm(imageFiles[i]);
+            }
+        }
 
         IntSummaryStatistics xs = regionPositions.stream().mapToInt(Vec2i::getX).summaryStatistics();
         IntSummaryStatistics zs = regionPositions.stream().mapToInt(Vec2i::getY).summaryStatistics();
@@ -133,154 +192,430 @@ public class MapMode implements Mode {
         final int sizeX = xs.getMax() - xs.getMin() + 1;
         final int sizeZ = zs.getMax() - zs.getMin() + 1;
 
-        Image image = type.createImage(format, minX, minZ, sizeX, sizeZ, imageFile);
-        ThreadLocal<int[]> pixelBuffer = ThreadLocal.withInitial(() -> new int[32 * 32]);
+        final Image[] images = new Image[types.size()];
+        RegionSet renderPositions = new RegionSet();
+        for (int i = 0; i < types.size(); i++) {
+            images[i] = types.get(i).createImage(format, minX, minZ, sizeX, sizeZ, imageFiles[i]);
+            renderPositions.addAll(images[i].selectRegions(sources, regionPositions, types.get(i), args.get(FULL)));
+        }
+
+        RegionCache[] caches = null;
+        if (args.get(CACHE) != null) {
+            File cacheDir = PFiles.ensureDirectoryExists(new File(args.get(CACHE)));
+            caches = new RegionCache[types.size()];
+            for (int i = 0; i < types.size(); i++) {
+                Type type = types.get(i);
+                caches[i] = new RegionCache(new File(cacheDir, type.name().toLowerCase(Locale.ROOT) + ".cache").toPath(), 1 << (type.regionShift << 1));
+                logger.info("Loaded %d cached %s regions.", caches[i].oldSize(), type.name().toLowerCase(Locale.ROOT));
+            }
+        }
+        final RegionCache[] finalCaches = caches;
+
+        //every region is only read once, so read as much as the most demanding type needs
+        final int maxDataSize = types.stream().mapToInt(type -> type.maxDataSize).max().getAsInt();
+        final int maxRegionShift = types.stream().mapToInt(type -> type.regionShift).max().getAsInt();
+        ThreadLocal<int[]> pixelBuffer = ThreadLocal.withInitial(() -> new int[1 << (maxRegionShift << 1)]);
+        ThreadLocal<ByteBuf[]> regionsCache = ThreadLocal.withInitial(() -> new ByteBuf[sources.size()]);
+        ThreadLocal<long[]> lengthsCache = ThreadLocal.withInitial(() -> new long[sources.size()]);
 
         logger.info("Starting...");
 
-        AtomicLong remainingRegions = new AtomicLong(regionPositions.size());
-
-        Thread notifierThread = null;
-        {
-            final int delay = args.get(PROGRESS_UPDATE_DELAY);
-            if (delay > 0) {
-                notifierThread = new Thread(() -> {
-                    Logger channel = logger.channel("Progress");
-                    int total = regionPositions.size();
-                    while (true) {
-                        try {
-                            Thread.sleep(delay);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
+        //group the regions by output tile, so that every tile is assembled by a single worker and written to the images in one piece.
+        // the tiles are sized for the type with the highest resolution, the other types get correspondingly smaller tiles. a tile never covers more
+        // than 32x32 regions, so that there are still enough of them to keep all workers busy when rendering at less than one pixel per chunk
+        final int groupShift = min(REGION_TO_TILE_SHIFT, TILE_SHIFT - maxRegionShift);
+        final long[] renderKeys = renderPositions.keys()
+                .map(pos -> renderKey(BinMath.unpackX(pos) - minX, BinMath.unpackY(pos) - minZ, groupShift))
+                .sorted().toArray();
+        final int[] tileStarts = IntStream.rangeClosed(0, renderKeys.length)
+                .filter(i -> i == 0 || i == renderKeys.length || renderKeys[i - 1] >>> (groupShift << 1) != renderKeys[i] >>> (groupShift << 1))
+                .toArray();
+        ThreadLocal<TileBuffer[]> tileBuffers = ThreadLocal.withInitial(() -> types.stream().map(type -> new TileBuffer()).toArray(TileBuffer[]::new));
+
+        try (Metrics.Progress progress = Metrics.progress("Processed", renderPositions.size(), args.get(PROGRESS_UPDATE_DELAY))) {
+            Workers.cpu().forEach(IntStream.range(0, tileStarts.length - 1).spliterator(), tile -> {
+                int start = tileStarts[tile];
+                int end = tileStarts[tile + 1];
+
+                TileBuffer[] buffers = tileBuffers.get();
+                for (int i = 0; i < buffers.length; i++) {
+                    int regionShift = types.get(i).regionShift;
+                    int tileShift = groupShift + regionShift;
+                    int tileX = (renderX(renderKeys[start], groupShift) >> groupShift) << tileShift;
+                    int tileZ = (renderZ(renderKeys[start], groupShift) >> groupShift) << tileShift;
+                    buffers[i].reset((minX << regionShift) + tileX, (minZ << regionShift) + tileZ,
+                            min(1 << tileShift, (sizeX << regionShift) - tileX), min(1 << tileShift, (sizeZ << regionShift) - tileZ), types.get(i).imageType.fill);
+                }
 
-                        long remaining = remainingRegions.get();
-                        channel.info("Processed %d/%d regions (%.3f%%)", total - remaining, total, (float) (total - remaining) / (float) total * 100.0f);
-                        if (remaining == 0 || Thread.interrupted()) {
-                            return;
-                        }
-                    }
-                });
-                notifierThread.setDaemon(true);
-                notifierThread.start();
+                for (int j = start; j < end; j++) {
+                    Vec2i pos = new Vec2i(minX + renderX(renderKeys[j], groupShift), minZ + renderZ(renderKeys[j], groupShift));
+                    this.renderRegion(sources, pos, types, buffers, finalCaches, maxDataSize, regionsCache.get(), lengthsCache.get(), pixelBuffer.get());
+                    Metrics.Counter.REGIONS.increment();
+                }
+
+                for (int i = 0; i < buffers.length; i++) {
+                    images[i].set(buffers[i].originX, buffers[i].originZ, buffers[i].sizeX, buffers[i].sizeZ, buffers[i].data);
+                }
+            });
+        }
+
+        if (caches != null) {
+            for (RegionCache cache : caches) {
+                cache.finish(regionPositions::containsKey);
             }
         }
 
-        regionPositions.stream().parallel()
-                .forEach((IOConsumer<Vec2i>) pos -> {
-                    ByteBuf headers = null;
-                    try {
-                        try (FileChannel channel = FileChannel.open(world.getAsFile(pos).toPath(), READ_OPEN_OPTIONS)) {
-                            int size = Math.min(type.maxDataSize, toInt(channel.size()));
-                            headers = ByteBufAllocator.DEFAULT.ioBuffer(size, size);
-                            do {
-                                int writerIndex = headers.writerIndex();
-                                headers.writeBytes(channel, writerIndex, size - writerIndex);
-                            } while (headers.readableBytes() < size);
-                        }
-                        type.region(image, headers, pos.getX(), pos.getY(), (pos.getX() - minX) << 5, (pos.getY() - minZ) << 5, pixelBuffer.get());
-                    } finally {
-                        ReferenceCountUtil.release(headers);
+        for (int i = 0; i < images.length; i++) {
+            types.get(i).finish(images[i]);
+            images[i].close();
+        }
+    }
+
+    protected void renderRegion(@NonNull List<World> sources, @NonNull Vec2i pos, @NonNull List<Type> types, @NonNull Image[] images, RegionCache[] caches,
+                                int maxDataSize, @NonNull ByteBuf[] regions, @NonNull long[] lengths, @NonNull int[] pixelBuffer) throws IOException {
+        long key = BinMath.packXY(pos.getX(), pos.getY());
+        long stamp = 0L;
+        int missing = (1 << images.length) - 1;
+        if (caches != null) { //take as many types as possible from the cache
+            stamp = stamp(sources, pos);
+            for (int i = 0; i < images.length; i++) {
+                if (caches[i].get(key, stamp, pixelBuffer)) {
+                    int shift = types.get(i).regionShift;
+                    images[i].set(pos.getX() << shift, pos.getY() << shift, 1 << shift, 1 << shift, pixelBuffer);
+                    missing &= ~(1 << i);
+                }
+            }
+            if (missing == 0) {
+                return;
+            }
+        }
+
+        HeaderFetcher fetcher = null;
+        int regionsCount = 0;
+        try {
+            if (maxDataSize != 0 && maxDataSize <= HEADER_BYTES) { //only the headers are needed, so they can be read from all sources at once
+                fetcher = HeaderFetcher.acquire();
+                for (World world : sources) {
+                    if (world.regions().contains(pos)) {
+                        fetcher.add(world, pos);
                     }
-                    remainingRegions.getAndDecrement();
-                });
+                }
 
-        if (notifierThread != null) {
-            try {
-                notifierThread.interrupt();
-                notifierThread.join();
-            } catch (Exception e) {
-                logger.alert(e);
+                //the types may need less of each region if it's only in a single source
+                int dataSize = 0;
+                for (int i = 0; i < images.length; i++) {
+                    if ((missing & (1 << i)) != 0) {
+                        dataSize = max(dataSize, types.get(i).dataSize(fetcher.count()));
+                    }
+                }
+                fetcher.fetch(dataSize);
+
+                //the headers are used straight from the fetcher's buffers, so it has to stay open until every type is rendered
+                for (int slot = 0; slot < fetcher.count(); slot++) {
+                    regions[regionsCount] = fetcher.headers(slot);
+                    lengths[regionsCount++] = fetcher.length(slot);
+                }
+            } else {
+                for (World world : sources) {
+                    if (!world.regions().contains(pos)) {
+                        continue;
+                    } else if (maxDataSize == 0) { //none of the types need the region's contents, don't bother opening it
+                        lengths[regionsCount++] = world.getAsFile(pos).length();
+                        continue;
+                    }
+
+                    ByteBuf headers = regions[regionsCount] = ByteBufAllocator.DEFAULT.ioBuffer(Math.min(maxDataSize, HEADER_BYTES));
+                    lengths[regionsCount++] = world.readHeaders(pos, headers, maxDataSize);
+                }
+            }
+
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < images.length; i++) {
+                if ((missing & (1 << i)) != 0) {
+                    types.get(i).region(images[i], regions, lengths, regionsCount, pos.getX(), pos.getY(), pixelBuffer);
+                    if (caches != null) {
+                        caches[i].put(key, stamp, pixelBuffer);
+                    }
+                }
+            }
+            Metrics.Phase.PROCESS.since(startNanos);
+        } finally {
+            for (int i = 0; i < regionsCount; i++) {
+                if (fetcher == null) { //buffers from the fetcher belong to it
+                    ReferenceCountUtil.release(regions[i]);
+                }
+                regions[i] = null;
+            }
+            if (fetcher != null) {
+                fetcher.close();
             }
         }
+    }
 
-        type.finish(image);
-        image.close();
+    /**
+     * Packs the position of a region relative to the corner of the map into a key, such that sorting the keys groups the regions by output tile, with the
+     * tiles and the regions in each tile ordered by Z and then by X coordinate.
+     * <p>
+     * Both coordinates are non-negative, so they only take up 31 bits each: the tile coordinates are stored in the high bits, and the
+     * {@code groupShift} low bits of each coordinate below them.
+     */
+    protected static long renderKey(int x, int z, int groupShift) {
+        int mask = (1 << groupShift) - 1;
+        return ((long) (z >> groupShift) << (31 + groupShift)) | ((long) (x >> groupShift) << (groupShift << 1)) | ((z & mask) << groupShift) | (x & mask);
     }
 
-    @RequiredArgsConstructor
-    enum Type {
-        AGE(8192) {
-            @Override
-            Image createImage(@NonNull Format format, int minX, int maxZ, int sizeX, int sizeZ, @NonNull File dst) throws IOException {
-                return format.createImage(ImageType.INT_SCALE, minX << 5, maxZ << 5, sizeX << 5, sizeZ << 5, 16, dst);
+    protected static int renderX(long key, int groupShift) {
+        int mask = (1 << groupShift) - 1;
+        return ((int) (key >>> (groupShift << 1)) & (Integer.MAX_VALUE >> groupShift)) << groupShift | ((int) key & mask);
+    }
+
+    protected static int renderZ(long key, int groupShift) {
+        int mask = (1 << groupShift) - 1;
+        return (int) (key >>> (31 + groupShift)) << groupShift | ((int) (key >>> groupShift) & mask);
+    }
+
+    /**
+     * Combines the modification times and lengths of a region's file in all of the sources, so that the result changes if the region is modified in, added
+     * to or removed from any of them.
+     */
+    protected static long stamp(@NonNull List<World> sources, @NonNull Vec2i pos) {
+        long stamp = 0L;
+        for (World world : sources) {
+            if (world.regions().contains(pos)) {
+                File file = world.getAsFile(pos);
+                stamp = (stamp * 31L + file.lastModified()) * 31L + file.length();
+            } else {
+                stamp = stamp * 31L - 1L;
             }
+        }
+        return stamp;
+    }
+
+    /**
+     * @return the file that the map of the given type should be written to
+     */
+    protected static File outputFile(@NonNull File file, @NonNull Type type, boolean multiple) {
+        if (!multiple) {
+            return file;
+        }
+
+        String name = file.getName();
+        String suffix = '-' + type.name().toLowerCase(Locale.ROOT);
+        int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), dot > 0 ? name.substring(0, dot) + suffix + name.substring(dot) : name + suffix);
+    }
 
+    @RequiredArgsConstructor
+    enum Type {
+        AGE(8192, ImageType.INT_SCALE, 5) {
             @Override
-            void region(Image image, ByteBuf buffer, int rx, int rz, int px, int pz, int[] pixelBuffer) throws IOException {
+            void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException {
+                int[] winners = WINNERS_CACHE.get();
+                Sort.YOUNGEST.selectAll(regions, count, winners, OFFSETS_CACHE.get());
                 for (int i = 0, z = 0; z < 32; z++) {
                     for (int x = 0; x < 32; x++, i++) {
-                        pixelBuffer[i] = buffer.getInt(getOffsetIndex(x, z)) != 0 ? buffer.getInt(getTimestampIndex(x, z)) : -1;
+                        pixelBuffer[i] = winners[i] >= 0 ? regions[winners[i]].getInt(getTimestampIndex(x, z)) : -1;
                     }
                 }
                 image.set(rx << 5, rz << 5, 32, 32, pixelBuffer);
             }
         },
-        EXISTS(4096) {
+        COUNT(4096, ImageType.INT_SCALE, 5) {
             @Override
-            Image createImage(@NonNull Format format, int minX, int maxZ, int sizeX, int sizeZ, @NonNull File dst) throws IOException {
-                return format.createImage(ImageType.BOOLEAN, minX << 5, maxZ << 5, sizeX << 5, sizeZ << 5, 16, dst);
+            void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException {
+                Arrays.fill(pixelBuffer, 0, HeaderOps.CHUNKS, 0);
+                for (int j = 0; j < count; j++) {
+                    HeaderOps.INSTANCE.addPresent(regions[j].nioBuffer(0, SECTOR_BYTES), pixelBuffer);
+                }
+                for (int i = 0; i < HeaderOps.CHUNKS; i++) {
+                    if (pixelBuffer[i] == 0) {
+                        pixelBuffer[i] = -1;
+                    }
+                }
+                image.set(rx << 5, rz << 5, 32, 32, pixelBuffer);
             }
-
+        },
+        EXISTS(4096, ImageType.BOOLEAN, 5) {
             @Override
-            void region(Image image, ByteBuf buffer, int rx, int rz, int px, int pz, int[] pixelBuffer) throws IOException {
+            void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException {
+                long[] present = PRESENT_CACHE.get();
+                ChunkMask.clear(present);
+                for (int j = 0; j < count; j++) {
+                    ChunkMask.orPresent(regions[j].nioBuffer(0, SECTOR_BYTES), present);
+                }
                 for (int i = 0, z = 0; z < 32; z++) {
                     for (int x = 0; x < 32; x++, i++) {
-                        pixelBuffer[i] = buffer.getInt(getOffsetIndex(x, z)) == 0 ? 0xFF000000 : 0xFFFFFFFF;
+                        pixelBuffer[i] = ChunkMask.get(present, x, z) ? 0xFFFFFFFF : 0xFF000000;
                     }
                 }
                 image.set(rx << 5, rz << 5, 32, 32, pixelBuffer);
             }
         },
-        SIZE(Integer.MAX_VALUE) {
+        SIZE(Integer.MAX_VALUE, ImageType.INT_SCALE, 5) {
+            @Override
+            void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException {
+                int[] winners = WINNERS_CACHE.get();
+                int[] offsets = OFFSETS_CACHE.get();
+                Sort.YOUNGEST.selectAll(regions, count, winners, offsets);
+                for (int i = 0; i < HeaderOps.CHUNKS; i++) {
+                    pixelBuffer[i] = winners[i] >= 0 ? regions[winners[i]].getInt((offsets[i] >> 8) * SECTOR_BYTES) : -1;
+                }
+                image.set(rx << 5, rz << 5, 32, 32, pixelBuffer);
+            }
+        },
+        SIZE_FAST(8192, ImageType.INT_SCALE, 5) {
             @Override
-            Image createImage(@NonNull Format format, int minX, int maxZ, int sizeX, int sizeZ, @NonNull File dst) throws IOException {
-                return format.createImage(ImageType.INT_SCALE, minX << 5, maxZ << 5, sizeX << 5, sizeZ << 5, 16, dst);
+            int dataSize(int sources) {
+                return sources == 1 ? SECTOR_BYTES : HEADER_BYTES;
             }
 
             @Override
-            void region(Image image, ByteBuf buffer, int rx, int rz, int px, int pz, int[] pixelBuffer) throws IOException {
-                for (int i = 0, z = 0; z < 32; z++) {
-                    for (int x = 0; x < 32; x++, i++) {
-                        int offset = buffer.getInt(getOffsetIndex(x, z));
-                        pixelBuffer[i] = offset != 0 ? buffer.getInt((offset >> 8) * SECTOR_BYTES) : -1;
-                    }
+            void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException {
+                //a single region doesn't need to be sorted, every chunk in it is used
+                int[] winners = WINNERS_CACHE.get();
+                int[] offsets = OFFSETS_CACHE.get();
+                (count == 1 ? Sort.INPUT_ORDER : Sort.YOUNGEST).selectAll(regions, count, winners, offsets);
+                for (int i = 0; i < HeaderOps.CHUNKS; i++) {
+                    pixelBuffer[i] = winners[i] >= 0 ? (offsets[i] & 0xFF) * SECTOR_BYTES : -1;
                 }
                 image.set(rx << 5, rz << 5, 32, 32, pixelBuffer);
             }
         },
-        SIZE_FAST(4096) {
+        TERRAIN(Integer.MAX_VALUE, ImageType.ARGB, 9) {
+            @Override
+            void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException {
+                TERRAIN_RENDERER.get().render(regions, count, pixelBuffer);
+                image.set(rx << 9, rz << 9, TerrainRenderer.SIZE, TerrainRenderer.SIZE, pixelBuffer);
+            }
+        },
+        PREVIEW(0, ImageType.INT_SCALE, 0) {
+            @Override
+            void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException {
+                long length = 0L;
+                for (int i = 0; i < count; i++) {
+                    length = max(length, lengths[i]);
+                }
+                pixelBuffer[0] = toInt(length);
+                image.set(rx, rz, 1, 1, pixelBuffer);
+            }
+        },
+        PREVIEW_4X4(8192, ImageType.INT_SCALE, 2) {
             @Override
-            Image createImage(@NonNull Format format, int minX, int maxZ, int sizeX, int sizeZ, @NonNull File dst) throws IOException {
-                return format.createImage(ImageType.INT_SCALE, minX << 5, maxZ << 5, sizeX << 5, sizeZ << 5, 16, dst);
+            int dataSize(int sources) {
+                return sources == 1 ? SECTOR_BYTES : HEADER_BYTES;
             }
 
             @Override
-            void region(Image image, ByteBuf buffer, int rx, int rz, int px, int pz, int[] pixelBuffer) throws IOException {
-                for (int i = 0, z = 0; z < 32; z++) {
-                    for (int x = 0; x < 32; x++, i++) {
-                        int offset = buffer.getInt(getOffsetIndex(x, z));
-                        pixelBuffer[i] = offset != 0 ? (offset & 0xFF) * SECTOR_BYTES : -1;
+            void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException {
+                //a single region doesn't need to be sorted, every chunk in it is used
+                int[] offsets = OFFSETS_CACHE.get();
+                (count == 1 ? Sort.INPUT_ORDER : Sort.YOUNGEST).selectAll(regions, count, WINNERS_CACHE.get(), offsets);
+                long[] present = PRESENT_CACHE.get();
+                ChunkMask.clear(present);
+                for (int j = 0; j < count; j++) {
+                    ChunkMask.orPresent(regions[j].nioBuffer(0, SECTOR_BYTES), present);
+                }
+
+                //each pixel covers 8x8 chunks, so every row of a pixel is summed at once
+                for (int i = 0, bz = 0; bz < 4; bz++) {
+                    for (int bx = 0; bx < 4; bx++, i++) {
+                        int sectors = 0;
+                        int bits = 0;
+                        for (int z = bz << 3; z < (bz + 1) << 3; z++) {
+                            sectors += HeaderOps.INSTANCE.sumSectors(offsets, ChunkMask.index(bx << 3, z), 8);
+                            bits |= (ChunkMask.row(present, z) >>> (bx << 3)) & 0xFF;
+                        }
+                        pixelBuffer[i] = bits != 0 ? sectors * SECTOR_BYTES : -1;
                     }
                 }
-                image.set(rx << 5, rz << 5, 32, 32, pixelBuffer);
+                image.set(rx << 2, rz << 2, 4, 4, pixelBuffer);
             }
         };
 
+        /**
+         * The number of bytes which need to be read from the start of each of a region's files, no matter how many sources contain the region.
+         */
         private final int maxDataSize;
+        @NonNull
+        private final ImageType imageType;
+        /**
+         * The base-2 logarithm of the number of pixels along each edge of a region.
+         */
+        private final int regionShift;
+
+        Image createImage(@NonNull Format format, int minX, int minZ, int sizeX, int sizeZ, @NonNull File dst) throws IOException {
+            int shift = this.regionShift;
+            return format.createImage(this.imageType, minX << shift, minZ << shift, sizeX << shift, sizeZ << shift, (32 * 16) >> shift, dst);
+        }
 
-        abstract Image createImage(@NonNull Format format, int minX, int maxZ, int sizeX, int sizeZ, @NonNull File dst) throws IOException;
+        /**
+         * @param sources the number of sources which contain the region
+         * @return the number of bytes which need to be read from the start of each of the region's files. Never more than {@link #maxDataSize}
+         */
+        int dataSize(int sources) {
+            return this.maxDataSize;
+        }
 
-        abstract void region(Image image, ByteBuf buffer, int rx, int rz, int px, int pz, int[] pixelBuffer) throws IOException;
+        /**
+         * Renders a single region.
+         * <p>
+         * The whole region must be passed to {@link Image#set(int, int, int, int, int[])} at once using {@code pixelBuffer}, which is then stored in the render
+         * cache as-is.
+         *
+         * @param regions the data of the region from every source which contains it, or {@code null}s if {@link #maxDataSize} of all types is {@code 0}
+         * @param lengths the length of the region's file in every source which contains it
+         * @param count   the number of sources which contain the region
+         */
+        abstract void region(Image image, ByteBuf[] regions, long[] lengths, int count, int rx, int rz, int[] pixelBuffer) throws IOException;
 
         void finish(Image image) {
         }
     }
 
+    @RequiredArgsConstructor
     enum ImageType {
-        BOOLEAN,
-        BOOLEAN_WITH_TRANSPARENCY,
-        INT_SCALE;
+        BOOLEAN(0) {
+            @Override
+            IntUnaryOperator argb(int min, int max) {
+                return value -> (value & 0x00FFFFFF) != 0 ? 0xFFFFFFFF : 0xFF000000;
+            }
+        },
+        BOOLEAN_WITH_TRANSPARENCY(-1) {
+            @Override
+            IntUnaryOperator argb(int min, int max) {
+                return value -> value < 0 ? 0 : value == 0 ? 0xFF000000 : 0xFFFFFFFF;
+            }
+        },
+        INT_SCALE(-1) {
+            @Override
+            IntUnaryOperator argb(int min, int max) {
+                return value -> {
+                    if (value < 0) {
+                        return 0;
+                    }
+                    int v = clamp(floorI((double) (value - min) * 511.0d / (max - min)), 0, 511);
+                    return 0xFF000000 | ((clamp(511 - v, 0, 255) << 16) | (clamp(v, 0, 255) << 8));
+                };
+            }
+        },
+        ARGB(0) {
+            @Override
+            IntUnaryOperator argb(int min, int max) {
+                return value -> value;
+            }
+        };
+
+        /**
+         * The value of every pixel which was never set.
+         */
+        final int fill;
+
+        /**
+         * @param min the minimum value, only used by {@link #INT_SCALE}
+         * @param max the maximum value, only used by {@link #INT_SCALE}
+         * @return a function which converts pixel values to ARGB colors
+         */
+        abstract IntUnaryOperator argb(int min, int max);
     }
 
     @RequiredArgsConstructor
@@ -290,79 +625,64 @@ public class MapMode implements Mode {
             Image createImage(@NonNull ImageType type, int minX, int minZ, int sizeX, int sizeZ, int scale, @NonNull File dst) throws IOException {
                 logger.info("Creating %dx%d image buffer...", sizeX, sizeZ);
 
-                switch (type) {
-                    case BOOLEAN:
-                        return new Image() {
-                            final BufferedImage image = new BufferedImage(sizeX, sizeZ, BufferedImage.TYPE_BYTE_BINARY);
-
-                            @Override
-                            public synchronized void set(int x, int z, int sizeX, int sizeZ, int[] data) {
-                                this.image.setRGB(x - minX, z - minZ, sizeX, sizeZ, data, 0, sizeX);
-                            }
-
-                            @Override
-                            public void close() throws IOException {
-                                logger.info("Writing image...");
-                                ImageIO.write(this.image, "png", dst);
-                            }
-                        };
-                    case BOOLEAN_WITH_TRANSPARENCY:
-                        return new Image() {
-                            final byte[] arr = { 0, (byte) 0xFF };
-                            final BufferedImage image = new BufferedImage(sizeX, sizeZ, BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(2, 2, this.arr, this.arr, this.arr, 2));
-
-                            @Override
-                            public synchronized void set(int x, int z, int sizeX, int sizeZ, int[] data) {
-                                this.image.setRGB(x - minX, z - minZ, sizeX, sizeZ, data, 0, sizeX);
-                            }
-
-                            @Override
-                            public void close() throws IOException {
-                                logger.info("Writing image...");
-                                ImageIO.write(this.image, "png", dst);
-                            }
-                        };
-                    case INT_SCALE:
-                        return new Image() {
-                            final int _sizeX = sizeX;
-                            final int[] arr = new int[sizeX * sizeZ];
+                //the raster is kept in a scratch file, and rows are converted to their final colors while the png is being encoded
+                final TiledRaster raster = new TiledRaster(dst.toPath().resolveSibling(dst.getName() + ".raster.tmp"), sizeX, sizeZ, type.fill);
+                return new Image() {
+                    @Override
+                    public void set(int x, int z, int sizeX, int sizeZ, int[] data) {
+                        raster.set(x - minX, z - minZ, sizeX, sizeZ, data);
+                    }
 
-                            {
-                                Arrays.fill(this.arr, -1);
-                            }
+                    @Override
+                    public void close() throws IOException {
+                        try (PngWriter writer = this.createWriter()) {
+                            IntUnaryOperator pixel = this.pixelFunction();
 
-                            @Override
-                            public void set(int x, int z, int sizeX, int sizeZ, int[] data) {
-                                for (int dz = 0; dz < sizeZ; dz++) {
-                                    System.arraycopy(data, dz * sizeX, this.arr, (z - minZ + dz) * this._sizeX + (x - minX), sizeX);
+                            logger.info("Writing image...");
+                            writer.write((z, row) -> {
+                                raster.getRow(0, z, sizeX, row, 0);
+                                for (int x = 0; x < sizeX; x++) {
+                                    row[x] = pixel.applyAsInt(row[x]);
                                 }
+                            });
+                        } finally {
+                            raster.close();
+                        }
+                    }
+
+                    PngWriter createWriter() throws IOException {
+                        switch (type) {
+                            case BOOLEAN:
+                                return new PngWriter(dst.toPath(), sizeX, sizeZ, 1, PngWriter.COLOR_GRAYSCALE, Deflater.DEFAULT_COMPRESSION);
+                            case BOOLEAN_WITH_TRANSPARENCY: {
+                                PngWriter writer = new PngWriter(dst.toPath(), sizeX, sizeZ, 2, PngWriter.COLOR_INDEXED, Deflater.DEFAULT_COMPRESSION);
+                                writer.palette(0, 0xFF000000, 0xFFFFFFFF);
+                                return writer;
                             }
+                            case INT_SCALE:
+                            case ARGB:
+                                return new PngWriter(dst.toPath(), sizeX, sizeZ, 8, PngWriter.COLOR_RGBA, Deflater.DEFAULT_COMPRESSION);
+                        }
+                        throw new IllegalArgumentException(type.name());
+                    }
 
-                            @Override
-                            public void close() throws IOException {
+                    IntUnaryOperator pixelFunction() {
+                        switch (type) {
+                            case BOOLEAN:
+                                return value -> (value & 0x00FFFFFF) != 0 ? 1 : 0;
+                            case BOOLEAN_WITH_TRANSPARENCY:
+                                return value -> value < 0 ? 0 : value == 0 ? 1 : 2;
+                            case INT_SCALE: {
                                 logger.info("scaling colors...");
-                                IntSummaryStatistics stats = Arrays.stream(this.arr).filter(i -> i >= 0).summaryStatistics();
-                                int min = stats.getMin();
-                                int max = stats.getMax();
-
-                                for (int i = 0; i < this.arr.length; i++) {
-                                    int color = 0;
-                                    int value = this.arr[i];
-                                    if (value >= 0) {
-                                        int v = clamp(floorI((double) (value - min) * 511.0d / (max - min)), 0, 511);
-                                        color = 0xFF000000 | ((clamp(511 - v, 0, 255) << 16) | (clamp(v, 0, 255) << 8));
-                                    }
-                                    this.arr[i] = color;
-                                }
-
-                                logger.info("Writing image...");
-                                BufferedImage image = new BufferedImage(sizeX, sizeZ, BufferedImage.TYPE_INT_ARGB);
-                                image.setRGB(0, 0, sizeX, sizeZ, this.arr, 0, sizeX);
-                                ImageIO.write(image, "png", dst);
+                                IntSummaryStatistics stats = raster.nonNegativeStatistics();
+                                return type.argb(stats.getMin(), stats.getMax());
                             }
-                        };
-                }
-                throw new IllegalArgumentException(type.name());
+                            case ARGB:
+                                return type.argb(0, 0);
+                        }
+                        throw new IllegalArgumentException(type.name());
+                    }
+                };
             }
         },
         GEOTIFF("tiff") {
@@ -372,7 +692,7 @@ public class MapMode implements Mode {
 
                 gdal.AllRegister();
 
-                int tileSize = 1024;
+                int tileSize = min(TILE_SIZE, (32 << REGION_TO_TILE_SHIFT) * 16 / scale); //the size of the pieces the image is written in
                 String[] options = {
                         "TILED=YES",
                         "NBITS=" + (type == ImageType.BOOLEAN ? "1" : type == ImageType.BOOLEAN_WITH_TRANSPARENCY ? "2" : "32"),
@@ -401,38 +721,26 @@ public class MapMode implements Mode {
                 });
                 Band band = dataset.GetRasterBand(1);
 
-                Runnable finish = () -> {
-                    logger.info("Flushing image...");
-                    dataset.FlushCache();
-
-                    int[] overviews = IntStream.range(1, 32).filter(i -> (i & 3) == 0 && (max(sizeX, sizeZ) >> i) >= tileSize).map(i -> 1 << i).toArray();
-                    logger.info("Generating %d overviews...", overviews.length);
-                    if (overviews.length != 0) {
-                        dataset.BuildOverviews("AVERAGE", overviews, new TermProgressCallback());
-                    }
-
-                    logger.info("Finishing image...");
-                    dataset.delete();
-                };
+                int[] overviews = IntStream.range(1, 32).filter(i -> (i & 3) == 0 && (max(sizeX, sizeZ) >> i) >= tileSize).map(i -> 1 << i).toArray();
 
                 switch (type) {
                     case BOOLEAN:
                         return new Image() {
+                            final GeoTiffWriter writer = new GeoTiffWriter(dataset, band, overviews, tileSize, false, 0);
+
                             @Override
-                            public synchronized void set(int x, int z, int sizeX, int sizeZ, int[] data) {
+                            public void set(int x, int z, int sizeX, int sizeZ, int[] data) {
                                 for (int i = 0, lim = sizeX * sizeZ; i < lim; i++) {
                                     int val = data[i];
                                     data[i] = val == 0 ? 0 : 1;
                                 }
 
-                                synchronized (this) {
-                                    band.WriteRaster(x - minX, z - minZ, sizeX, sizeZ, data);
-                                }
+                                this.writer.write(x - minX, z - minZ, sizeX, sizeZ, data);
                             }
 
                             @Override
                             public void close() throws IOException {
-                                finish.run();
+                                this.writer.finish();
                             }
                         };
                     case BOOLEAN_WITH_TRANSPARENCY:
@@ -446,6 +754,8 @@ public class MapMode implements Mode {
                                 band.SetColorTable(colorTable);
                             }
 
+                            final GeoTiffWriter writer = new GeoTiffWriter(dataset, band, overviews, tileSize, true, 0);
+
                             @Override
                             public void set(int x, int z, int sizeX, int sizeZ, int[] data) {
                                 for (int i = 0, lim = sizeX * sizeZ; i < lim; i++) {
@@ -453,14 +763,12 @@ public class MapMode implements Mode {
                                     data[i] = val < 0 ? 0 : val == 0 ? 1 : 2;
                                 }
 
-                                synchronized (this) {
-                                    band.WriteRaster(x - minX, z - minZ, sizeX, sizeZ, data);
-                                }
+                                this.writer.write(x - minX, z - minZ, sizeX, sizeZ, data);
                             }
 
                             @Override
                             public void close() throws IOException {
-                                finish.run();
+                                this.writer.finish();
                             }
                         };
                     case INT_SCALE:
@@ -472,27 +780,35 @@ public class MapMode implements Mode {
                                 band.Fill(this.nodata);
                             }
 
+                            final GeoTiffWriter writer = new GeoTiffWriter(dataset, band, overviews, tileSize, true, this.nodata);
+
                             @Override
-                            public synchronized void set(int x, int z, int sizeX, int sizeZ, int[] data) {
+                            public void set(int x, int z, int sizeX, int sizeZ, int[] data) {
                                 for (int i = 0, lim = sizeX * sizeZ; i < lim; i++) {
                                     int val = data[i];
                                     data[i] = val < 0 ? this.nodata : val;
                                 }
 
-                                synchronized (this) {
-                                    band.WriteRaster(x - minX, z - minZ, sizeX, sizeZ, data);
-                                }
+                                this.writer.write(x - minX, z - minZ, sizeX, sizeZ, data);
                             }
 
                             @Override
                             public void close() throws IOException {
-                                finish.run();
+                                this.writer.finish();
                             }
                         };
                 }
 
                 throw new IllegalArgumentException(type.name());
             }
+        },
+        TILES("") {
+            @Override
+            Image createImage(@NonNull ImageType type, int minX, int minZ, int sizeX, int sizeZ, int scale, @NonNull File dst) throws IOException {
+                logger.info("Creating %dx%d tile pyramid...", sizeX, sizeZ);
+                PFiles.ensureDirectoryExists(dst);
+                return new TilesImage(type, minX, minZ, sizeX, sizeZ, dst.toPath());
+            }
         };
 
         @NonNull
@@ -504,7 +820,346 @@ public class MapMode implements Mode {
     interface Image extends AutoCloseable {
         void set(int x, int z, int sizeX, int sizeZ, int[] data);
 
+        /**
+         * Selects the regions which actually need to be rendered into this image.
+         *
+         * @param sources the source worlds
+         * @param regions the positions of all regions in any of the source worlds
+         * @param type    the type of map being rendered
+         * @param full    whether or not a full re-render was requested
+         */
+        default Collection<Vec2i> selectRegions(@NonNull List<World> sources, @NonNull Collection<Vec2i> regions, @NonNull Type type, boolean full) throws IOException {
+            return regions;
+        }
+
         @Override
         void close() throws IOException;
     }
+
+    /**
+     * Collects the regions of a single output tile into an array.
+     */
+    static final class TileBuffer implements Image {
+        final int[] data = new int[TILE_SIZE * TILE_SIZE];
+        int originX;
+        int originZ;
+        int sizeX;
+        int sizeZ;
+
+        void reset(int originX, int originZ, int sizeX, int sizeZ, int fill) {
+            this.originX = originX;
+            this.originZ = originZ;
+            this.sizeX = sizeX;
+            this.sizeZ = sizeZ;
+            Arrays.fill(this.data, 0, sizeX * sizeZ, fill);
+        }
+
+        @Override
+        public void set(int x, int z, int sizeX, int sizeZ, int[] data) {
+            int offsetX = x - this.originX;
+            int offsetZ = z - this.originZ;
+            for (int dz = 0; dz < sizeZ; dz++) {
+                System.arraycopy(data, dz * sizeX, this.data, (offsetZ + dz) * this.sizeX + offsetX, sizeX);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    /**
+     * Renders into a {@link TilePyramid}, keeping a manifest of the modification times of all regions in order to only re-render the tiles covering regions
+     * which changed since the last run.
+     */
+    static final class TilesImage implements Image {
+        static final String MANIFEST_NAME = "tiles.manifest";
+
+        final ImageType type;
+        final int minX;
+        final int minZ;
+        final int sizeX;
+        final int sizeZ;
+        final Path root;
+        final TilePyramid pyramid;
+        final TiledRaster raster;
+
+        Map<Long, Long> mtimes = Collections.emptyMap();
+        Set<Long> dirtyTiles = Collections.emptySet();
+        String typeName;
+        int regionShift;
+        boolean scaleKnown;
+        int min;
+        int max;
+
+        TilesImage(@NonNull ImageType type, int minX, int minZ, int sizeX, int sizeZ, @NonNull Path root) throws IOException {
+            this.type = type;
+            this.minX = minX;
+            this.minZ = minZ;
+            this.sizeX = sizeX;
+            this.sizeZ = sizeZ;
+            this.root = root;
+            this.pyramid = new TilePyramid(root);
+            this.raster = new TiledRaster(root.resolve("raster.tmp"), sizeX, sizeZ, type.fill);
+        }
+
+        @Override
+        public Collection<Vec2i> selectRegions(@NonNull List<World> sources, @NonNull Collection<Vec2i> regions, @NonNull Type type, boolean full) throws IOException {
+            this.typeName = type.name();
+            this.regionShift = type.regionShift;
+            this.mtimes = regions.parallelStream().collect(Collectors.toConcurrentMap(pos -> BinMath.packXY(pos.getX(), pos.getY()), pos -> stamp(sources, pos)));
+
+            Map<Long, Long> oldMtimes = new HashMap<>();
+            Path manifest = this.root.resolve(MANIFEST_NAME);
+            if (!full && Files.exists(manifest)) {
+                List<String> lines = Files.readAllLines(manifest, StandardCharsets.US_ASCII);
+                String[] header = lines.get(0).split(" ");
+                if (this.typeName.equals(header[0])) {
+                    this.scaleKnown = true;
+                    this.min = Integer.parseInt(header[1]);
+                    this.max = Integer.parseInt(header[2]);
+
+                    for (int i = 1; i < lines.size(); i++) {
+                        String[] split = lines.get(i).split(" ");
+                        oldMtimes.put(BinMath.packXY(Integer.parseInt(split[0]), Integer.parseInt(split[1])), Long.parseLong(split[2]));
+                    }
+                } else {
+                    logger.warn("Existing tiles were rendered with type %s, doing a full re-render.", header[0]);
+                }
+            }
+
+            //every region which was added, modified or removed invalidates the tile containing it
+            this.dirtyTiles = Stream.concat(
+                    this.mtimes.entrySet().stream().filter(e -> !e.getValue().equals(oldMtimes.get(e.getKey()))).map(Map.Entry::getKey),
+                    oldMtimes.keySet().stream().filter(pos -> !this.mtimes.containsKey(pos)))
+                    .flatMap(this::tilesOf)
+                    .collect(Collectors.toSet());
+
+            List<Vec2i> selected = regions.stream()
+                    .filter(pos -> this.tilesOf(BinMath.packXY(pos.getX(), pos.getY())).anyMatch(this.dirtyTiles::contains))
+                    .collect(Collectors.toList());
+            logger.info("%d tiles are out of date, re-rendering %d/%d regions.", this.dirtyTiles.size(), selected.size(), regions.size());
+            return selected;
+        }
+
+        /**
+         * @return the positions of the pyramid tiles covered by the given region
+         */
+        Stream<Long> tilesOf(long region) {
+            int x = BinMath.unpackX(region);
+            int z = BinMath.unpackY(region);
+            int shift = TilePyramid.TILE_SHIFT - this.regionShift;
+            if (shift >= 0) {
+                return Stream.of(BinMath.packXY(x >> shift, z >> shift));
+            }
+
+            //the region is larger than a single tile
+            int count = 1 << -shift;
+            return IntStream.range(0, count * count).mapToObj(i -> BinMath.packXY((x << -shift) + i % count, (z << -shift) + i / count));
+        }
+
+        @Override
+        public void set(int x, int z, int sizeX, int sizeZ, int[] data) {
+            this.raster.set(x - this.minX, z - this.minZ, sizeX, sizeZ, data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (!this.scaleKnown && this.type == ImageType.INT_SCALE) {
+                    IntSummaryStatistics stats = this.raster.nonNegativeStatistics();
+                    if (stats.getCount() != 0L) {
+                        this.min = stats.getMin();
+                        this.max = stats.getMax();
+                    }
+                }
+
+                logger.info("Writing %d tiles...", this.dirtyTiles.size());
+                IntUnaryOperator argb = this.type.argb(this.min, this.max);
+                this.dirtyTiles.parallelStream().forEach((IOConsumer<Long>) pos -> this.writeTile(BinMath.unpackX(pos), BinMath.unpackY(pos), argb));
+
+                if (!this.dirtyTiles.isEmpty()) {
+                    //the coarser levels need to cover every tile which exists now, as well as every tile which may have been deleted
+                    IntSummaryStatistics xs = new IntSummaryStatistics();
+                    IntSummaryStatistics zs = new IntSummaryStatistics();
+                    this.mtimes.keySet().stream().flatMap(this::tilesOf).forEach(pos -> {
+                        xs.accept(BinMath.unpackX(pos));
+                        zs.accept(BinMath.unpackY(pos));
+                    });
+                    this.dirtyTiles.forEach(pos -> {
+                        xs.accept(BinMath.unpackX(pos));
+                        zs.accept(BinMath.unpackY(pos));
+                    });
+
+                    logger.info("Building zoom levels...");
+                    int lowestZoom = this.pyramid.buildLevels(this.dirtyTiles, xs.getMin(), zs.getMin(), xs.getMax(), zs.getMax());
+                    logger.info("Tile pyramid has zoom levels %d to 0.", lowestZoom);
+                }
+
+                this.writeManifest();
+            } finally {
+                this.raster.close();
+            }
+        }
+
+        void writeTile(int tx, int tz, @NonNull IntUnaryOperator argb) throws IOException {
+            final int tileSize = TilePyramid.TILE_SIZE;
+            int[] tile = new int[tileSize * tileSize];
+
+            //clip the tile to the raster's bounds, everything outside of it stays transparent
+            int tileX = (tx << TilePyramid.TILE_SHIFT) - this.minX;
+            int tileZ = (tz << TilePyramid.TILE_SHIFT) - this.minZ;
+            int startX = max(tileX, 0);
+            int endX = min(tileX + tileSize, this.sizeX);
+            if (startX < endX) {
+                for (int z = max(tileZ, 0), endZ = min(tileZ + tileSize, this.sizeZ); z < endZ; z++) {
+                    int offset = (z - tileZ) * tileSize + (startX - tileX);
+                    this.raster.getRow(startX, z, endX - startX, tile, offset);
+                    for (int i = offset, lim = offset + endX - startX; i < lim; i++) {
+                        tile[i] = tile[i] == this.type.fill ? 0 : argb.applyAsInt(tile[i]);
+                    }
+                }
+            }
+            this.pyramid.write(0, tx, tz, tile);
+        }
+
+        void writeManifest() throws IOException {
+            StringBuilder builder = new StringBuilder();
+            builder.append(this.typeName).append(' ').append(this.min).append(' ').append(this.max).append('\n');
+            this.mtimes.forEach((pos, mtime) -> builder.append(BinMath.unpackX(pos)).append(' ').append(BinMath.unpackY(pos)).append(' ').append(mtime).append('\n'));
+
+            Path manifest = this.root.resolve(MANIFEST_NAME);
+            Path tmp = this.root.resolve(MANIFEST_NAME + ".tmp");
+            Files.write(tmp, builder.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Writes tiles to a GeoTIFF, computing the image's overview levels from each tile as it is written rather than re-reading the whole image afterwards.
+     * <p>
+     * Overview levels whose factor is at most the tile size are reduced from each tile directly, by the thread which wrote it. A tile contributes to only a
+     * single pixel of each coarser level, so those are accumulated into a small grid of sums and written once all tiles are done.
+     * <p>
+     * Every tile must be aligned to the tile grid. Like GDAL's {@code AVERAGE} resampling, pixels with the no-data value are ignored.
+     */
+    static final class GeoTiffWriter {
+        final Dataset dataset;
+        final Band band;
+        final int tileSize;
+        final boolean hasNodata;
+        final int nodata;
+
+        final int[] factors;
+        final Band[] overviews;
+        final long[][] sums;
+        final int[][] counts;
+
+        GeoTiffWriter(@NonNull Dataset dataset, @NonNull Band band, @NonNull int[] factors, int tileSize, boolean hasNodata, int nodata) {
+            this.dataset = dataset;
+            this.band = band;
+            this.tileSize = tileSize;
+            this.hasNodata = hasNodata;
+            this.nodata = nodata;
+            this.factors = factors;
+
+            logger.info("Creating %d overviews...", factors.length);
+            if (factors.length != 0) {
+                dataset.BuildOverviews("NONE", factors); //only allocates the overview levels, they're filled in as the tiles are written
+            }
+
+            this.overviews = new Band[factors.length];
+            this.sums = new long[factors.length][];
+            this.counts = new int[factors.length][];
+            for (int i = 0; i < factors.length; i++) {
+                this.overviews[i] = band.GetOverview(i);
+                if (factors[i] > tileSize) {
+                    int cells = this.overviews[i].getXSize() * this.overviews[i].getYSize();
+                    this.sums[i] = new long[cells];
+                    this.counts[i] = new int[cells];
+                }
+            }
+        }
+
+        void write(int x, int z, int sizeX, int sizeZ, @NonNull int[] data) {
+            checkArg(x % this.tileSize == 0 && z % this.tileSize == 0, "tile at (%d,%d) isn't aligned to the tile grid", x, z);
+
+            synchronized (this) {
+                this.band.WriteRaster(x, z, sizeX, sizeZ, data);
+            }
+
+            for (int i = 0; i < this.factors.length; i++) {
+                int factor = this.factors[i];
+                Band overview = this.overviews[i];
+                int ox = x / factor;
+                int oz = z / factor;
+
+                if (factor > this.tileSize) { //the whole tile falls into a single pixel
+                    long sum = 0L;
+                    int count = 0;
+                    for (int j = 0, lim = sizeX * sizeZ; j < lim; j++) {
+                        if (!this.hasNodata || data[j] != this.nodata) {
+                            sum += data[j];
+                            count++;
+                        }
+                    }
+
+                    int cell = oz * overview.getXSize() + ox;
+                    synchronized (this.sums[i]) {
+                        this.sums[i][cell] += sum;
+                        this.counts[i][cell] += count;
+                    }
+                    continue;
+                }
+
+                int outSizeX = min((sizeX - 1) / factor + 1, overview.getXSize() - ox);
+                int outSizeZ = min((sizeZ - 1) / factor + 1, overview.getYSize() - oz);
+                int[] out = new int[outSizeX * outSizeZ];
+                for (int dz = 0; dz < outSizeZ; dz++) {
+                    for (int dx = 0; dx < outSizeX; dx++) {
+                        long sum = 0L;
+                        int count = 0;
+                        for (int pz = dz * factor, pzLim = min(pz + factor, sizeZ); pz < pzLim; pz++) {
+                            for (int px = dx * factor, pxLim = min(px + factor, sizeX); px < pxLim; px++) {
+                                int value = data[pz * sizeX + px];
+                                if (!this.hasNodata || value != this.nodata) {
+                                    sum += value;
+                                    count++;
+                                }
+                            }
+                        }
+                        out[dz * outSizeX + dx] = this.average(sum, count);
+                    }
+                }
+
+                synchronized (this) {
+                    overview.WriteRaster(ox, oz, outSizeX, outSizeZ, out);
+                }
+            }
+        }
+
+        int average(long sum, int count) {
+            return count == 0 ? this.nodata : (int) ((sum + (count >> 1)) / count);
+        }
+
+        void finish() {
+            for (int i = 0; i < this.factors.length; i++) {
+                if (this.sums[i] != null) {
+                    int[] out = new int[this.sums[i].length];
+                    for (int j = 0; j < out.length; j++) {
+                        out[j] = this.average(this.sums[i][j], this.counts[i][j]);
+                    }
+                    synchronized (this) {
+                        this.overviews[i].WriteRaster(0, 0, this.overviews[i].getXSize(), this.overviews[i].getYSize(), out);
+                    }
+                }
+            }
+
+            logger.info("Flushing image...");
+            this.dataset.FlushCache();
+
+            logger.info("Finishing image...");
+            this.dataset.delete();
+        }
+    }
 }
@@ -23,8 +23,6 @@ package net.daporkchop.regionmerger.mode;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.PooledByteBufAllocator;
 import lombok.NonNull;
-import net.daporkchop.lib.common.function.io.IOConsumer;
-import net.daporkchop.lib.common.function.throwing.ERunnable;
 import net.daporkchop.lib.compression.context.PDeflater;
 import net.daporkchop.lib.compression.context.PInflater;
 import net.daporkchop.lib.compression.zlib.Zlib;
@@ -36,7 +34,9 @@ import net.daporkchop.mcworldlib.format.anvil.region.RegionFile;
 import net.daporkchop.mcworldlib.format.anvil.region.impl.MemoryMappedRegionFile;
 import net.daporkchop.regionmerger.option.Arguments;
 import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.Metrics;
 import net.daporkchop.regionmerger.util.Utils;
+import net.daporkchop.regionmerger.util.Workers;
 import net.daporkchop.regionmerger.util.World;
 
 import java.io.File;
@@ -44,7 +44,6 @@ import java.io.IOException;
 import java.nio.file.OpenOption;
 import java.nio.file.StandardOpenOption;
 import java.util.Collection;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static net.daporkchop.lib.logging.Logging.*;
@@ -101,12 +100,85 @@ public class Optimize implements Mode {
         long initialSize = regionsAsFiles.parallelStream().mapToLong(File::length).sum();
         logger.info("Initial size: %.2f MB", initialSize / (1024.0d * 1024.0d));
 
-        ChunkRecoder recoder;
+        ChunkRecoder recoder = recoder(recompress, level);
+        if (recompress) {
+            logger.info("Reordering and recompressing %d regions at DEFLATE level %d...", regionsAsFiles.size(), level);
+        } else {
+            logger.info("Reordering %d regions...", regionsAsFiles.size());
+        }
+
+        try (Metrics.Progress progress = Metrics.progress("Optimized", regionsAsFiles.size(), args.get(PROGRESS_UPDATE_DELAY))) {
+            //recompressing is limited by the CPU, merely reordering chunks is limited by the disk
+            (recompress ? Workers.cpu() : Workers.io()).forEach(regionsAsFiles, file -> {
+                ByteBuf dst = PooledByteBufAllocator.DEFAULT.ioBuffer(SECTOR_BYTES * (2 + 32 * 32)).writeBytes(EMPTY_SECTOR).writeBytes(EMPTY_SECTOR);
+                try {
+                    int sector = 2;
+                    int chunks = 0;
+
+                    //chunks are read from the memory-mapped region and recoded one at a time, so only the time spent in region.read() counts towards the read phase
+                    long startNanos = System.nanoTime();
+                    long readNanos = 0L;
+                    long readBytes = 0L;
+                    try (Workers.Permit permit = Workers.openFiles(1);
+                         RegionFile region = new MemoryMappedRegionFile(file, true)) {
+                        readNanos += System.nanoTime() - startNanos;
+                        for (int x = 0; x < 32; x++) {
+                            for (int z = 0; z < 32; z++) {
+                                long readStartNanos = System.nanoTime();
+                                try (RawChunk chunk = region.read(x, z)) {
+                                    readNanos += System.nanoTime() - readStartNanos;
+                                    if (chunk != null) { //chunk exists
+                                        readBytes += chunk.data().readableBytes();
+                                        dst.setInt(getTimestampIndex(x, z), (int) (chunk.timestamp() / 1000L)); //copy timestamp
+
+                                        recoder.recode(chunk.data(), dst);
+                                        dst.writeBytes(EMPTY_SECTOR, 0, ((dst.writerIndex() - 1 >> 12) + 1 << 12) - dst.writerIndex()); //pad to next sector
+
+                                        final int chunkSectors = (dst.writerIndex() - 1 >> 12) + 1; //compute next chunk sector
+                                        dst.setInt(getOffsetIndex(x, z), (chunkSectors - sector) | (sector << 8)); //set offset value in region header
+                                        sector = chunkSectors;
+                                        chunks++;
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    Metrics.Counter.BYTES_READ.add(readBytes);
+                    Metrics.Phase.READ.record(readNanos);
+                    Metrics.Phase.PROCESS.record(System.nanoTime() - startNanos - readNanos);
+
+                    if (chunks == 0 && !file.delete()) {
+                        throw new IllegalStateException(String.format("Couldn't delete file \"%s\"!", file.getAbsolutePath()));
+                    } else {
+                        Utils.writeAndReplace(file.toPath(), dst);
+                    }
+                    Metrics.Counter.REGIONS.increment();
+                    Metrics.Counter.CHUNKS.add(chunks);
+                } finally {
+                    dst.release();
+                }
+            });
+        }
+
+        int oldCount = regionsAsFiles.size();
+        regionsAsFiles.removeIf(f -> !f.exists());
+        long finalSize = regionsAsFiles.parallelStream().mapToLong(File::length).sum();
+        logger.success("Processed %d regions (deleting %d empty regions)", oldCount, oldCount - regionsAsFiles.size());
+        logger.success("Shrunk by %.2f MB (%.3f%%)", (initialSize - finalSize) / (1024.0d * 1024.0d), (1.0d - (double) finalSize / (double) initialSize) * 100.0d);
+    }
+
+    /**
+     * Creates a {@link ChunkRecoder} which writes chunks to the optimized region.
+     *
+     * @param recompress whether or not chunks should be re-compressed. If {@code false}, the chunk data is copied as-is
+     * @param level      the DEFLATE level to re-compress chunks at
+     */
+    protected static ChunkRecoder recoder(boolean recompress, int level) {
         if (recompress) {
             ThreadLocal<PInflater> inflaterCache = ThreadLocal.withInitial(() -> Zlib.PROVIDER.inflater(Zlib.PROVIDER.inflateOptions().withMode(ZlibMode.AUTO)));
             ZlibDeflaterOptions deflaterOptions = Zlib.PROVIDER.deflateOptions().withLevel(level);
             ThreadLocal<PDeflater> deflaterCache = ThreadLocal.withInitial(() -> Zlib.PROVIDER.deflater(deflaterOptions));
-            recoder = (src, dst) -> {
+            return (src, dst) -> {
                 byte mode = src.readByte();
                 if (mode != ID_ZLIB && mode != ID_GZIP) {
                     throw new IllegalArgumentException(String.format("Invalid chunk version: %d", mode & 0xFF));
@@ -118,94 +190,27 @@ public class Optimize implements Mode {
                 ByteBuf tmp = PooledByteBufAllocator.DEFAULT.ioBuffer(2097152);
                 try {
                     inflaterCache.get().decompressGrowing(src, tmp);
+                    Metrics.Counter.BYTES_INFLATED.add(tmp.readableBytes());
                     deflaterCache.get().compressGrowing(tmp, dst);
+                    Metrics.Counter.BYTES_DEFLATED.add(dst.writerIndex() - oldIndex - 5);
                     dst.setInt(oldIndex, dst.writerIndex() - oldIndex - 4);
                 } finally {
                     tmp.release();
                 }
             };
-            logger.info("Reordering and recompressing %d regions at DEFLATE level %d...", regionsAsFiles.size(), level);
         } else {
             //simply copy without anything else
-            recoder = (src, dst) -> {
+            return (src, dst) -> {
                 dst.writeInt(src.readableBytes()).writeBytes(src);
                 if (src.isReadable()) {
                     throw new IllegalStateException("Couldn't copy entire chunk into output buffer!");
                 }
             };
-            logger.info("Reordering %d regions...", regionsAsFiles.size());
         }
-
-        AtomicLong remainingRegions = new AtomicLong(regionsAsFiles.size());
-        AtomicLong totalChunks = new AtomicLong(0L);
-
-        {
-            final int delay = args.get(PROGRESS_UPDATE_DELAY);
-            if (delay > 0) {
-                Thread t = new Thread((ERunnable) () -> {
-                    Logger channel = logger.channel("Progress");
-                    int total = regionsAsFiles.size();
-                    while (true) {
-                        Thread.sleep(delay);
-                        long remaining = remainingRegions.get();
-                        channel.info("Optimized %d/%d regions (%.3f%%, %d chunks)", total - remaining, total, (float) (total - remaining) / (float) total * 100.0f, totalChunks.get());
-                        if (remaining == 0) {
-                            return;
-                        }
-                    }
-                });
-                t.setDaemon(true);
-                t.start();
-            }
-        }
-
-        regionsAsFiles.parallelStream().forEach((IOConsumer<File>) file -> {
-            ByteBuf dst = PooledByteBufAllocator.DEFAULT.ioBuffer(SECTOR_BYTES * (2 + 32 * 32)).writeBytes(EMPTY_SECTOR).writeBytes(EMPTY_SECTOR);
-            try {
-                int sector = 2;
-                int chunks = 0;
-
-                try (RegionFile region = new MemoryMappedRegionFile(file, true)) {
-                    for (int x = 0; x < 32; x++) {
-                        for (int z = 0; z < 32; z++) {
-                            try (RawChunk chunk = region.read(x, z)) {
-                                if (chunk != null) { //chunk exists
-                                    dst.setInt(getTimestampIndex(x, z), (int) (chunk.timestamp() / 1000L)); //copy timestamp
-
-                                    recoder.recode(chunk.data(), dst);
-                                    dst.writeBytes(EMPTY_SECTOR, 0, ((dst.writerIndex() - 1 >> 12) + 1 << 12) - dst.writerIndex()); //pad to next sector
-
-                                    final int chunkSectors = (dst.writerIndex() - 1 >> 12) + 1; //compute next chunk sector
-                                    dst.setInt(getOffsetIndex(x, z), (chunkSectors - sector) | (sector << 8)); //set offset value in region header
-                                    sector = chunkSectors;
-                                    chunks++;
-                                }
-                            }
-                        }
-                    }
-                }
-
-                if (chunks == 0 && !file.delete()) {
-                    throw new IllegalStateException(String.format("Couldn't delete file \"%s\"!", file.getAbsolutePath()));
-                } else {
-                    Utils.writeAndReplace(file.toPath(), dst);
-                }
-                remainingRegions.getAndDecrement();
-                totalChunks.getAndAdd(chunks);
-            } finally {
-                dst.release();
-            }
-        });
-
-        int oldCount = regionsAsFiles.size();
-        regionsAsFiles.removeIf(f -> !f.exists());
-        long finalSize = regionsAsFiles.parallelStream().mapToLong(File::length).sum();
-        logger.success("Processed %d regions (deleting %d empty regions)", oldCount, oldCount - regionsAsFiles.size());
-        logger.success("Shrunk by %.2f MB (%.3f%%)", (initialSize - finalSize) / (1024.0d * 1024.0d), (1.0d - (double) finalSize / (double) initialSize) * 100.0d);
     }
 
     @FunctionalInterface
-    private interface ChunkRecoder {
+    interface ChunkRecoder {
         void recode(@NonNull ByteBuf src, @NonNull ByteBuf dst) throws IOException;
     }
 }
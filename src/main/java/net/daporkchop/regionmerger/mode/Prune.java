@@ -0,0 +1,228 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2024 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.mode;
+
+import lombok.NonNull;
+import net.daporkchop.lib.common.misc.file.PFiles;
+import net.daporkchop.lib.logging.Logger;
+import net.daporkchop.lib.unsafe.PUnsafe;
+import net.daporkchop.regionmerger.option.Arguments;
+import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.Metrics;
+import net.daporkchop.regionmerger.util.Utils;
+import net.daporkchop.regionmerger.util.Workers;
+import net.daporkchop.regionmerger.util.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+
+/**
+ * Deletes all chunks from a world which match a set of criteria that can be evaluated using only the region headers (and chunk length prefixes).
+ *
+ * @author DaPorkchop_
+ */
+public class Prune implements Mode {
+    protected static final Option<Integer> OLDER_THAN = Option.integer("-olderThan", null);
+    protected static final Option<Integer> RADIUS = Option.integer("-radius", null, 0, Integer.MAX_VALUE);
+    protected static final Option<Integer> CENTER_X = Option.integer("-centerX", 0);
+    protected static final Option<Integer> CENTER_Z = Option.integer("-centerZ", 0);
+    protected static final Option<Integer> SMALLER_THAN = Option.integer("-smallerThan", null, 0, Integer.MAX_VALUE);
+    protected static final Option<Boolean> COMPACT = Option.flag("c");
+    protected static final Option<Integer> PROGRESS_UPDATE_DELAY = Option.integer("p", 5000, 0, Integer.MAX_VALUE);
+    protected static final OpenOption[] PRUNE_OPEN_OPTIONS = { StandardOpenOption.READ, StandardOpenOption.WRITE };
+
+    @Override
+    public void printUsage(@NonNull Logger logger) {
+        logger.info("  prune:")
+                .info("    Deletes all chunks from a world which match all of the given criteria. At least one criterion must be given.")
+                .info("")
+                .info("    Usage:")
+                .info("      prune [options] <path>")
+                .info("")
+                .info("    Options:")
+                .info("      --olderThan <time>      Matches chunks whose timestamp (in seconds since the epoch) is less than the given value.")
+                .info("      --radius <chunks>       Matches chunks whose distance from the center (in chunks) is greater than the given value.")
+                .info("      --centerX <chunk>       Sets the X coordinate of the center chunk used by --radius. Default: 0")
+                .info("      --centerZ <chunk>       Sets the Z coordinate of the center chunk used by --radius. Default: 0")
+                .info("      --smallerThan <bytes>   Matches chunks whose compressed size (in bytes) is less than the given value.")
+                .info("      -c                      Compacts every modified region after deleting chunks from it, which actually frees the space used by")
+                .info("                              the deleted chunks.")
+                .info("      -p <time>               Sets the time (in ms) between progress updates. Set to 0 to disable. Default: 5000");
+    }
+
+    @Override
+    public Arguments arguments() {
+        return new Arguments(true, false, OLDER_THAN, RADIUS, CENTER_X, CENTER_Z, SMALLER_THAN, COMPACT, PROGRESS_UPDATE_DELAY);
+    }
+
+    @Override
+    public String name() {
+        return "prune";
+    }
+
+    @Override
+    public void run(@NonNull Arguments args) throws IOException {
+        final World dst = args.getDestination();
+
+        logger.info("Loaded output world with %d existing regions.", dst.regions().size());
+
+        if (!args.has(OLDER_THAN) && !args.has(RADIUS) && !args.has(SMALLER_THAN)) {
+            logger.error("At least one of --olderThan, --radius or --smallerThan must be set!");
+            System.exit(1);
+        }
+
+        final boolean olderThan = args.has(OLDER_THAN);
+        final int maxTimestamp = olderThan ? args.get(OLDER_THAN) : 0;
+        final boolean radius = args.has(RADIUS);
+        final long radiusSq = radius ? (long) args.get(RADIUS) * args.get(RADIUS) : 0L;
+        final int centerX = args.get(CENTER_X);
+        final int centerZ = args.get(CENTER_Z);
+        final boolean smallerThan = args.has(SMALLER_THAN);
+        final int minSize = smallerThan ? args.get(SMALLER_THAN) : 0;
+        final boolean compact = args.get(COMPACT);
+
+        AtomicLong prunedChunks = new AtomicLong();
+        AtomicLong deletedRegions = new AtomicLong();
+        AtomicLong freedBytes = new AtomicLong();
+
+        //unless regions are compacted, pruning only touches the region headers (and chunk length prefixes), so it runs on the scan pool
+        try (Metrics.Progress progress = Metrics.progress("Pruned", dst.regions().size(), args.get(PROGRESS_UPDATE_DELAY))) {
+            Workers.scan().forEach(dst.regions(), pos -> {
+                if (radius && farthestDistanceSq(pos.getX(), pos.getY(), centerX, centerZ) <= radiusSq) { //skip regions which are entirely within the radius
+                    Metrics.Counter.REGIONS.increment();
+                    return;
+                }
+
+                File regionFile = dst.getAsFile(pos);
+
+                int pruned = 0;
+                int remaining = 0;
+                long startNanos = System.nanoTime();
+                try (Workers.Permit permit = Workers.openFiles(1);
+                     FileChannel channel = FileChannel.open(regionFile.toPath(), PRUNE_OPEN_OPTIONS)) {
+                    long size = channel.size();
+                    if (size < HEADER_BYTES) {
+                        logger.warn("Skipping region %s: file is too small (%d bytes)", regionFile, size);
+                        Metrics.Counter.REGIONS.increment();
+                        return;
+                    }
+
+                    //only the headers are mapped, the chunk length prefixes are read one at a time
+                    MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_BYTES);
+                    ByteBuffer lengthBuffer = smallerThan ? ByteBuffer.allocate(4) : null;
+                    try {
+                        buf.load();
+                        Metrics.Counter.BYTES_READ.add(HEADER_BYTES);
+                        Metrics.Phase.READ.since(startNanos);
+
+                        startNanos = System.nanoTime();
+                        for (int x = 0; x < 32; x++) {
+                            for (int z = 0; z < 32; z++) {
+                                int offsetIndex = getOffsetIndex(x, z);
+                                int offset = buf.getInt(offsetIndex);
+                                if (offset == 0) {
+                                    continue;
+                                }
+
+                                if ((!olderThan || buf.getInt(getTimestampIndex(x, z)) < maxTimestamp)
+                                    && (!radius || distanceSq((pos.getX() << 5) | x, (pos.getY() << 5) | z, centerX, centerZ) > radiusSq)
+                                    && (!smallerThan || chunkSize(channel, lengthBuffer, offset, size) < minSize)) {
+                                    buf.putInt(offsetIndex, 0);
+                                    buf.putInt(getTimestampIndex(x, z), 0);
+                                    pruned++;
+                                } else {
+                                    remaining++;
+                                }
+                            }
+                        }
+                        Metrics.Phase.PROCESS.since(startNanos);
+
+                        if (pruned != 0) {
+                            startNanos = System.nanoTime();
+                            buf.force();
+                            Metrics.Counter.BYTES_WRITTEN.add(HEADER_BYTES);
+                            Metrics.Phase.WRITE.since(startNanos);
+                        }
+                    } finally {
+                        PUnsafe.pork_releaseBuffer(buf);
+                    }
+                }
+
+                Metrics.Counter.REGIONS.increment();
+                if (pruned == 0) {
+                    return;
+                }
+                prunedChunks.getAndAdd(pruned);
+                Metrics.Counter.CHUNKS.add(pruned);
+
+                if (remaining == 0) {
+                    freedBytes.getAndAdd(regionFile.length());
+                    PFiles.rm(regionFile);
+                    deletedRegions.getAndIncrement();
+                } else if (compact) {
+                    freedBytes.getAndAdd(Utils.compactRegion(regionFile.toPath()));
+                }
+            });
+        }
+
+        logger.success("Pruned %d chunks, deleted %d empty regions.", prunedChunks.get(), deletedRegions.get());
+        if (compact) {
+            logger.success("Freed %.2f MB", freedBytes.get() / (1024.0d * 1024.0d));
+        }
+    }
+
+    protected static long distanceSq(int x, int z, int centerX, int centerZ) {
+        long dx = (long) x - centerX;
+        long dz = (long) z - centerZ;
+        return dx * dx + dz * dz;
+    }
+
+    /**
+     * @return the squared distance from the center to the chunk in the given region which is farthest away from it
+     */
+    protected static long farthestDistanceSq(int rx, int rz, int centerX, int centerZ) {
+        long dx = Math.max(Math.abs((long) (rx << 5) - centerX), Math.abs((long) ((rx << 5) | 31) - centerX));
+        long dz = Math.max(Math.abs((long) (rz << 5) - centerZ), Math.abs((long) ((rz << 5) | 31) - centerZ));
+        return dx * dx + dz * dz;
+    }
+
+    /**
+     * @return the size of the chunk at the given offset, as indicated by its length prefix
+     */
+    protected static int chunkSize(@NonNull FileChannel channel, @NonNull ByteBuffer lengthBuffer, int offset, long size) throws IOException {
+        long pos = (long) (offset >>> 8) * SECTOR_BYTES;
+        lengthBuffer.clear();
+        if (pos + 4L > size || channel.read(lengthBuffer, pos) != 4) { //the chunk is outside of the file, treat it as empty
+            return 0;
+        }
+        Metrics.Counter.BYTES_READ.add(4L);
+        return lengthBuffer.getInt(0);
+    }
+}
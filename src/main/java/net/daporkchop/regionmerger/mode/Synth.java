@@ -0,0 +1,376 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.mode;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import lombok.NonNull;
+import net.daporkchop.lib.compression.context.PDeflater;
+import net.daporkchop.lib.compression.zlib.Zlib;
+import net.daporkchop.lib.logging.Logger;
+import net.daporkchop.lib.math.vector.i.Vec2i;
+import net.daporkchop.regionmerger.option.Arguments;
+import net.daporkchop.regionmerger.option.Option;
+import net.daporkchop.regionmerger.util.Metrics;
+import net.daporkchop.regionmerger.util.NBT;
+import net.daporkchop.regionmerger.util.Utils;
+import net.daporkchop.regionmerger.util.Workers;
+import net.daporkchop.regionmerger.util.World;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+import static net.daporkchop.regionmerger.Main.*;
+import static net.daporkchop.regionmerger.util.NBT.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class Synth implements Mode {
+    //chunks must fit into 255 sectors, this leaves plenty of room for the terrain
+    protected static final int MAX_PADDING = 1000000;
+
+    protected static final Option<Integer> SEED = Option.integer("-seed", 0);
+    protected static final Option<Integer> REGIONS = Option.integer("-regions", 256, 1, Integer.MAX_VALUE);
+    protected static final Option<Integer> WORLDS = Option.integer("-worlds", 1, 1, 1024);
+    protected static final Option<Integer> OVERLAP = Option.integer("-overlap", 50, 0, 100);
+    protected static final Option<Integer> DENSITY = Option.integer("-density", 90, 0, 100);
+    protected static final Option<Integer> SIZE = Option.integer("-size", 4096, 0, MAX_PADDING);
+    protected static final Option<Integer> SIZE_SPREAD = Option.integer("-sizeSpread", 50, 0, 400);
+    protected static final Option<Integer> TIME_SPREAD = Option.integer("-timeSpread", 30 * 24 * 60 * 60, 0, Integer.MAX_VALUE);
+    protected static final Option<Integer> FRAGMENTATION = Option.integer("-fragmentation", 0, 0, 100);
+    protected static final Option<Integer> LEVEL = Option.integer("l", 1, -1, 9);
+    protected static final Option<Boolean> OVERWRITE = Option.flag("o");
+    protected static final Option<Integer> PROGRESS_UPDATE_DELAY = Option.integer("p", 5000, 0, Integer.MAX_VALUE);
+
+    //all timestamps are relative to a fixed point in time, so that the output doesn't depend on when it was generated
+    protected static final int BASE_TIME = 1600000000;
+
+    protected static final int SEA_LEVEL = 62;
+    protected static final byte STONE = 1;
+    protected static final byte GRASS = 2;
+    protected static final byte DIRT = 3;
+    protected static final byte WATER = 9;
+    protected static final byte SAND = 12;
+
+    protected static final byte[] EMPTY_NAME = NBT.name("");
+    protected static final byte[] DATA_VERSION = NBT.name("DataVersion");
+    protected static final byte[] LEVEL_TAG = NBT.name("Level");
+    protected static final byte[] X_POS = NBT.name("xPos");
+    protected static final byte[] Z_POS = NBT.name("zPos");
+    protected static final byte[] LAST_UPDATE = NBT.name("LastUpdate");
+    protected static final byte[] TERRAIN_POPULATED = NBT.name("TerrainPopulated");
+    protected static final byte[] HEIGHT_MAP = NBT.name("HeightMap");
+    protected static final byte[] SECTIONS = NBT.name("Sections");
+    protected static final byte[] Y = NBT.name("Y");
+    protected static final byte[] BLOCKS = NBT.name("Blocks");
+    protected static final byte[] PADDING = NBT.name("RegionMergerPadding");
+
+    @Override
+    public void printUsage(@NonNull Logger logger) {
+        logger.info("  synth:")
+                .info("    Generates one or more synthetic worlds for performance testing. The output only depends on the options, so the same")
+                .info("    worlds can be generated again anywhere. Chunks are in the 1.12 format and contain simple terrain, so they can be rendered")
+                .info("    by the map mode.")
+                .info("")
+                .info("    Usage:")
+                .info("      synth [options] <destination>")
+                .info("")
+                .info("    Options:")
+                .info("      --seed <seed>             Sets the seed used to generate the worlds. Default: 0")
+                .info("      --regions <count>         Sets the number of regions to generate in each world. Default: 256")
+                .info("      --worlds <count>          Sets the number of worlds to generate. If greater than 1, the worlds are written to numbered")
+                .info("                                subdirectories of the destination. Default: 1")
+                .info("      --overlap <percent>       Sets the percentage of regions each world shares with the previous one. Default: 50")
+                .info("      --density <percent>       Sets the probability of each chunk being present. Default: 90")
+                .info("      --size <bytes>            Sets the average number of incompressible bytes to add to each chunk, on top of the terrain.")
+                .info("                                Default: 4096")
+                .info("      --sizeSpread <percent>    Sets the spread of the (log-normally distributed) chunk sizes. Default: 50")
+                .info("      --timeSpread <seconds>    Sets the range of chunk timestamps. Default: 2592000 (30 days)")
+                .info("      --fragmentation <percent> Sets the probability of each chunk being followed by unused sectors. If greater than 0,")
+                .info("                                chunks are also stored in random order. Default: 0")
+                .info("      -l <level>                Sets the DEFLATE level used to compress chunks, from 0-9. -1 is automatic. Default: 1")
+                .info("      -o                        Allows generating into worlds which already contain regions.")
+                .info("      -p <time>                 Sets the time (in ms) between progress updates. Set to 0 to disable. Default: 5000");
+    }
+
+    @Override
+    public Arguments arguments() {
+        return new Arguments(true, false, SEED, REGIONS, WORLDS, OVERLAP, DENSITY, SIZE, SIZE_SPREAD, TIME_SPREAD, FRAGMENTATION, LEVEL, OVERWRITE, PROGRESS_UPDATE_DELAY);
+    }
+
+    @Override
+    public String name() {
+        return "synth";
+    }
+
+    @Override
+    public void run(@NonNull Arguments args) throws IOException {
+        final World dst = args.getDestination();
+        final int worldCount = args.get(WORLDS);
+        final int regionCount = args.get(REGIONS);
+
+        List<World> worlds = worldCount == 1
+                ? Collections.singletonList(dst)
+                : IntStream.range(0, worldCount).mapToObj(i -> new World(new File(dst.path(), String.valueOf(i)), false)).collect(Collectors.toList());
+        if (!args.get(OVERWRITE)) {
+            for (World world : worlds) {
+                if (!world.regions().isEmpty()) {
+                    throw new IllegalStateException(world.path() + " already contains regions (use -o to allow overwriting)");
+                }
+            }
+        }
+
+        //the regions of each world form a square, each one shifted along the X axis so that it overlaps the previous one by the requested amount
+        final int side = (int) ceil(sqrt(regionCount));
+        final int shift = (int) round(side * (100 - args.get(OVERLAP)) / 100.0d);
+
+        final long totalRegions = (long) worldCount * regionCount;
+
+        logger.info("Generating %d worlds with %d regions each...", worldCount, regionCount);
+
+        final int seed = args.get(SEED);
+        final int density = args.get(DENSITY);
+        final int size = args.get(SIZE);
+        final double sizeSpread = args.get(SIZE_SPREAD) / 100.0d;
+        final int timeSpread = args.get(TIME_SPREAD);
+        final int fragmentation = args.get(FRAGMENTATION);
+        final int level = args.get(LEVEL);
+        ThreadLocal<Generator> generatorCache = ThreadLocal.withInitial(() -> new Generator(seed, density, size, sizeSpread, timeSpread, fragmentation, level));
+
+        try (Metrics.Progress progress = Metrics.progress("Generated", totalRegions, args.get(PROGRESS_UPDATE_DELAY))) {
+            Workers.cpu().forEach(LongStream.range(0L, totalRegions).spliterator(), i -> {
+                int world = (int) (i / regionCount);
+                int index = (int) (i % regionCount);
+                Vec2i pos = new Vec2i(index % side - (side >> 1) + world * shift, index / side - (side >> 1));
+
+                ByteBuf region = PooledByteBufAllocator.DEFAULT.ioBuffer(SECTOR_BYTES * (2 + 32 * 32)).writeBytes(EMPTY_HEADERS);
+                try {
+                    long startNanos = System.nanoTime();
+                    int chunks = generatorCache.get().region(region, world, pos.getX(), pos.getY());
+                    Metrics.Phase.PROCESS.since(startNanos);
+                    if (chunks > 0) {
+                        Utils.writeAndReplace(worlds.get(world).getAsFile(pos).toPath(), region);
+                        Metrics.Counter.CHUNKS.add(chunks);
+                    }
+                } finally {
+                    region.release();
+                }
+                Metrics.Counter.REGIONS.increment();
+            });
+        }
+
+        logger.success("Generated %d chunks (%.2f MB)", Metrics.Counter.CHUNKS.get(), Metrics.Counter.BYTES_WRITTEN.get() / (1024.0d * 1024.0d));
+    }
+
+    /**
+     * Generates regions. Each thread needs its own instance.
+     */
+    protected static class Generator {
+        protected final long seed;
+        protected final int density;
+        protected final int size;
+        protected final double sizeSpread;
+        protected final int timeSpread;
+        protected final int fragmentation;
+        protected final PDeflater deflater;
+
+        //the phases of the waves which make up the terrain
+        protected final double[] phases = new double[4];
+
+        protected final int[] order = new int[32 * 32];
+        protected final int[] heights = new int[16 * 16];
+        protected final byte[] blocks = new byte[16 * 16 * 16];
+
+        public Generator(long seed, int density, int size, double sizeSpread, int timeSpread, int fragmentation, int level) {
+            this.seed = seed;
+            this.density = density;
+            this.size = size;
+            this.sizeSpread = sizeSpread;
+            this.timeSpread = timeSpread;
+            this.fragmentation = fragmentation;
+            this.deflater = Zlib.PROVIDER.deflater(Zlib.PROVIDER.deflateOptions().withLevel(level));
+
+            SplittableRandom random = new SplittableRandom(seed);
+            for (int i = 0; i < this.phases.length; i++) {
+                this.phases[i] = random.nextDouble() * 2.0d * PI;
+            }
+        }
+
+        /**
+         * Generates a region.
+         *
+         * @param dst   the buffer to write the region to. Must already contain empty headers
+         * @param world the index of the world the region belongs to
+         * @return the number of generated chunks
+         */
+        public int region(@NonNull ByteBuf dst, int world, int regionX, int regionZ) throws IOException {
+            //every region gets its own random number generator, so the output doesn't depend on the order in which regions are generated
+            SplittableRandom random = new SplittableRandom(this.seed * 0x9E3779B97F4A7C15L
+                                                           ^ world * 0xC2B2AE3D27D4EB4FL
+                                                           ^ regionX * 0x165667B19E3779F9L
+                                                           ^ regionZ * 0x27D4EB2F165667C5L);
+
+            for (int i = 0; i < this.order.length; i++) {
+                this.order[i] = i;
+            }
+            if (this.fragmentation > 0) { //shuffle the order in which chunks are stored
+                for (int i = this.order.length - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int tmp = this.order[i];
+                    this.order[i] = this.order[j];
+                    this.order[j] = tmp;
+                }
+            }
+
+            int chunks = 0;
+            ByteBuf nbt = PooledByteBufAllocator.DEFAULT.ioBuffer();
+            try {
+                for (int i : this.order) {
+                    if (random.nextInt(100) >= this.density) {
+                        continue;
+                    }
+
+                    int x = i & 0x1F;
+                    int z = i >> 5;
+                    this.chunk(nbt.clear(), random, (regionX << 5) | x, (regionZ << 5) | z);
+
+                    int start = dst.writerIndex();
+                    dst.writeInt(-1).writeByte(ID_ZLIB);
+                    this.deflater.compressGrowing(nbt, dst);
+                    Metrics.Counter.BYTES_DEFLATED.add(dst.writerIndex() - start - 5);
+                    dst.setInt(start, dst.writerIndex() - start - 4);
+                    dst.writeBytes(EMPTY_SECTOR, 0, ((dst.writerIndex() - 1 >> 12) + 1 << 12) - dst.writerIndex()); //pad to next sector
+
+                    dst.setInt(getOffsetIndex(x, z), ((start >> 12) << 8) | ((dst.writerIndex() - start) >> 12));
+                    dst.setInt(getTimestampIndex(x, z), BASE_TIME - (int) random.nextLong(this.timeSpread + 1L));
+                    chunks++;
+
+                    if (random.nextInt(100) < this.fragmentation) { //leave some unused sectors behind the chunk
+                        dst.writeZero(random.nextInt(1, 9) * SECTOR_BYTES);
+                    }
+                }
+            } finally {
+                nbt.release();
+            }
+            return chunks;
+        }
+
+        /**
+         * Writes the NBT data of a chunk.
+         */
+        protected void chunk(@NonNull ByteBuf dst, @NonNull SplittableRandom random, int chunkX, int chunkZ) {
+            int minHeight = Integer.MAX_VALUE;
+            int maxHeight = SEA_LEVEL;
+            for (int i = 0; i < 16 * 16; i++) {
+                int height = this.height((chunkX << 4) | (i & 0xF), (chunkZ << 4) | (i >> 4));
+                this.heights[i] = height;
+                minHeight = min(minHeight, height);
+                maxHeight = max(maxHeight, height);
+            }
+
+            writeTag(dst, TAG_COMPOUND, EMPTY_NAME);
+            writeTag(dst, TAG_INT, DATA_VERSION).writeInt(1343); //1.12.2
+            writeTag(dst, TAG_COMPOUND, LEVEL_TAG);
+            writeTag(dst, TAG_INT, X_POS).writeInt(chunkX);
+            writeTag(dst, TAG_INT, Z_POS).writeInt(chunkZ);
+            writeTag(dst, TAG_LONG, LAST_UPDATE).writeLong(random.nextInt(1 << 20));
+            writeTag(dst, TAG_BYTE, TERRAIN_POPULATED).writeByte(1);
+
+            writeTag(dst, TAG_INT_ARRAY, HEIGHT_MAP).writeInt(16 * 16);
+            for (int i = 0; i < 16 * 16; i++) { //the lowest y level which receives full sky light
+                dst.writeInt(max(this.heights[i], SEA_LEVEL) + 1);
+            }
+
+            int minSection = max(minHeight - 3, 0) >> 4;
+            int maxSection = maxHeight >> 4;
+            writeTag(dst, TAG_LIST, SECTIONS).writeByte(TAG_COMPOUND).writeInt(maxSection - minSection + 1);
+            for (int section = minSection; section <= maxSection; section++) {
+                for (int y = 0; y < 16; y++) {
+                    int blockY = (section << 4) | y;
+                    for (int i = 0; i < 16 * 16; i++) {
+                        int height = this.heights[i];
+                        byte block;
+                        if (blockY > height) {
+                            block = blockY <= SEA_LEVEL ? WATER : 0;
+                        } else if (blockY == height) {
+                            block = height < SEA_LEVEL ? SAND : GRASS;
+                        } else if (blockY >= height - 3) {
+                            block = DIRT;
+                        } else {
+                            block = STONE;
+                        }
+                        this.blocks[(y << 8) | i] = block;
+                    }
+                }
+
+                writeTag(dst, TAG_BYTE, Y).writeByte(section);
+                writeTag(dst, TAG_BYTE_ARRAY, BLOCKS).writeInt(this.blocks.length).writeBytes(this.blocks);
+                dst.writeByte(TAG_END);
+            }
+
+            //random bytes don't compress at all, so they make the size of the stored chunk predictable
+            int padding = this.padding(random);
+            writeTag(dst, TAG_BYTE_ARRAY, PADDING).writeInt(padding);
+            for (int i = 0; i < padding >> 3; i++) {
+                dst.writeLong(random.nextLong());
+            }
+            for (int i = padding & ~7; i < padding; i++) {
+                dst.writeByte(random.nextInt());
+            }
+
+            dst.writeByte(TAG_END); //Level
+            dst.writeByte(TAG_END); //root
+        }
+
+        /**
+         * @return the terrain height at the given block column
+         */
+        protected int height(int x, int z) {
+            return 64 + (int) (10.0d * sin(x * 0.011d + this.phases[0]) * cos(z * 0.013d + this.phases[1])
+                               + 6.0d * sin((x - z) * 0.027d + this.phases[2])
+                               + 3.0d * cos((x + z) * 0.051d + this.phases[3]));
+        }
+
+        /**
+         * @return a log-normally distributed padding size, with a mean of {@link #size}
+         */
+        protected int padding(@NonNull SplittableRandom random) {
+            if (this.size == 0) {
+                return 0;
+            }
+
+            //Box-Muller transform
+            double gaussian = sqrt(-2.0d * log(1.0d - random.nextDouble())) * cos(2.0d * PI * random.nextDouble());
+            double factor = exp(this.sizeSpread * gaussian - this.sizeSpread * this.sizeSpread * 0.5d);
+            return (int) min(this.size * factor, MAX_PADDING);
+        }
+    }
+}
@@ -30,6 +30,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author DaPorkchop_
@@ -44,7 +45,7 @@ public class Arguments {
     protected final boolean hasSources;
 
     public Arguments(boolean hasDst, boolean hasSources, @NonNull Option... options) {
-        this.options = Arrays.stream(options).collect(Collectors.toMap(o -> String.format("-%s", o.name()), o -> o));
+        this.options = Stream.concat(Arrays.stream(options), Option.GLOBAL.stream()).collect(Collectors.toMap(o -> String.format("-%s", o.name()), o -> o));
 
         this.hasDst = hasDst;
         this.hasSources = hasSources;
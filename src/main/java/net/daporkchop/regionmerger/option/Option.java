@@ -26,6 +26,7 @@ import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.Accessors;
 import net.daporkchop.lib.common.misc.string.PStrings;
+import net.daporkchop.regionmerger.util.Workers;
 import net.daporkchop.regionmerger.util.World;
 
 import java.io.File;
@@ -33,7 +34,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -41,6 +41,11 @@ import java.util.stream.Collectors;
  * @author DaPorkchop_
  */
 public interface Option<V> {
+    /**
+     * The maximum parallelism of a {@link java.util.concurrent.ForkJoinPool}.
+     */
+    int MAX_THREADS = 0x7FFF;
+
     Option<World> DESTINATION = new BaseOption<World>("dst") {
         @Override
         public World parse(@NonNull String word, @NonNull Iterator<String> itr) {
@@ -56,11 +61,13 @@ public interface Option<V> {
     Option<List<World>> SOURCES = new BaseOption<List<World>>("src") {
         @Override
         public List<World> parse(@NonNull String word, @NonNull Iterator<String> itr) {
-            List<World> sources = new LinkedList<>();
+            List<String> paths = new ArrayList<>();
             do {
-                sources.add(new World(new File(word), true));
+                paths.add(word);
             } while (itr.hasNext() && (word = itr.next()) != null);
-            return new ArrayList<>(sources);
+
+            //scanning a world's directory is mostly waiting on the file system, so load all the sources at once
+            return paths.parallelStream().map(path -> new World(new File(path), true)).collect(Collectors.toList());
         }
 
         @Override
@@ -69,6 +76,41 @@ public interface Option<V> {
         }
     };
 
+    /**
+     * The file to write metrics snapshots to. Accepted by every mode.
+     */
+    Option<String> METRICS = text("-metrics", null);
+
+    /**
+     * The number of threads to use for CPU-bound work. Accepted by every mode.
+     */
+    Option<Integer> THREADS = integer("-threads", Workers.DEFAULT_THREADS, 1, MAX_THREADS);
+
+    /**
+     * The number of threads to use for I/O-bound work. Accepted by every mode.
+     */
+    Option<Integer> IO_THREADS = integer("-ioThreads", Workers.DEFAULT_IO_THREADS, 1, MAX_THREADS);
+
+    /**
+     * The maximum number of region files which may be open at once. Accepted by every mode.
+     */
+    Option<Integer> MAX_OPEN_FILES = integer("-maxOpenFiles", Workers.DEFAULT_MAX_OPEN_FILES, 1, Integer.MAX_VALUE);
+
+    /**
+     * Whether or not region headers should be scanned using virtual threads. Accepted by every mode.
+     */
+    Option<Boolean> VIRTUAL_THREADS = flag("-virtualThreads");
+
+    /**
+     * The maximum number of batched header reads which may be in flight at once. Accepted by every mode.
+     */
+    Option<Integer> QUEUE_DEPTH = integer("-queueDepth", Workers.DEFAULT_QUEUE_DEPTH, 1, MAX_THREADS);
+
+    /**
+     * The options which are accepted by every mode.
+     */
+    List<Option<?>> GLOBAL = Collections.unmodifiableList(Arrays.asList(METRICS, THREADS, IO_THREADS, MAX_OPEN_FILES, VIRTUAL_THREADS, QUEUE_DEPTH));
+
     static Option<Boolean> flag(@NonNull String name) {
         return new BaseOption<Boolean>(name) {
             @Override
@@ -120,21 +162,48 @@ public interface Option<V> {
     }
 
     static <E extends Enum<E>> Option<E> ofEnum(@NonNull String name, @NonNull Class<E> type, E fallback) {
-        return new BaseOption<E>(name) {
+        return ofEnums(name, fallback, type);
+    }
+
+    /**
+     * Like {@link #ofEnum(String, Class, Enum)}, but accepts the constants of several enums which implement a common interface.
+     */
+    @SafeVarargs
+    static <V> Option<V> ofEnums(@NonNull String name, V fallback, @NonNull Class<? extends V>... types) {
+        List<V> values = Arrays.stream(types).flatMap(type -> Arrays.stream(type.getEnumConstants())).collect(Collectors.toList());
+        return new BaseOption<V>(name) {
             @Override
-            public E parse(@NonNull String word, @NonNull Iterator<String> itr) {
+            public V parse(@NonNull String word, @NonNull Iterator<String> itr) {
                 String text = itr.next();
-                return Arrays.stream(type.getEnumConstants())
-                        .filter(value -> value.name().equalsIgnoreCase(text))
+                return values.stream()
+                        .filter(value -> ((Enum<?>) value).name().equalsIgnoreCase(text))
                         .findAny()
                         .orElseThrow(() -> new IllegalArgumentException(PStrings.fastFormat(
                                 "Invalid enum type name: \"%s\" (expected one of %s)",
                                 text,
-                                Arrays.stream(type.getEnumConstants()).map(Enum::name).collect(Collectors.joining(", ", "[", "]")))));
+                                values.stream().map(value -> ((Enum<?>) value).name()).collect(Collectors.joining(", ", "[", "]")))));
+            }
+
+            @Override
+            public V fallbackValue() {
+                return fallback;
+            }
+        };
+    }
+
+    static <E extends Enum<E>> Option<List<E>> ofEnumList(@NonNull String name, @NonNull Class<E> type, List<E> fallback) {
+        Option<E> element = ofEnum(name, type, null);
+        return new BaseOption<List<E>>(name) {
+            @Override
+            public List<E> parse(@NonNull String word, @NonNull Iterator<String> itr) {
+                return Arrays.stream(itr.next().split(","))
+                        .map(text -> element.parse(word, Collections.singletonList(text).iterator()))
+                        .distinct()
+                        .collect(Collectors.toList());
             }
 
             @Override
-            public E fallbackValue() {
+            public List<E> fallbackValue() {
                 return fallback;
             }
         };
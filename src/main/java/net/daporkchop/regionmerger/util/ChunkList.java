@@ -0,0 +1,165 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.lib.unsafe.PUnsafe;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Parser for CSV files containing lists of chunk positions.
+ * <p>
+ * The first line must be either {@code x,z} or {@code z,x}, and every following line contains a single chunk position. Blank lines are ignored.
+ * <p>
+ * The file is memory-mapped and split into segments which are parsed in parallel straight from the raw bytes, and the positions are collected into
+ * a {@link ChunkMaskMap}. Memory usage therefore only depends on the number of distinct regions, not on the length of the list.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class ChunkList {
+    protected static final OpenOption[] READ_OPEN_OPTIONS = { StandardOpenOption.READ };
+
+    protected static final long SEGMENT_SIZE = 64L << 20L;
+    protected static final int MAX_LINE_LENGTH = 64;
+
+    public ChunkMaskMap read(@NonNull Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, READ_OPEN_OPTIONS)) {
+            long size = channel.size();
+
+            ByteBuffer head = ByteBuffer.allocate(toInt(min(size, MAX_LINE_LENGTH)));
+            Utils.readFully(channel, head, 0L);
+            int headerLength = 0;
+            while (headerLength < head.capacity() && head.get(headerLength) != '\n') {
+                headerLength++;
+            }
+            String header = new String(head.array(), 0, headerLength, StandardCharsets.US_ASCII).trim();
+            checkArg("x,z".equals(header) || "z,x".equals(header), header);
+
+            final boolean swap = header.charAt(0) == 'z';
+            final long dataStart = min(size, headerLength + 1L);
+            final int segments = toInt((size - dataStart + SEGMENT_SIZE - 1L) / SEGMENT_SIZE);
+
+            return IntStream.range(0, segments).parallel()
+                    .mapToObj(i -> {
+                        try {
+                            return parseSegment(channel, size, dataStart, dataStart + i * SEGMENT_SIZE, min(size, dataStart + (i + 1L) * SEGMENT_SIZE), swap);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .collect(ChunkMaskMap::new, ChunkMaskMap::or, ChunkMaskMap::or);
+        }
+    }
+
+    /**
+     * Parses all lines which start in the given range of the file.
+     */
+    protected ChunkMaskMap parseSegment(@NonNull FileChannel channel, long size, long dataStart, long start, long end, boolean swap) throws IOException {
+        //map one byte before the segment to find out whether or not it starts on a line boundary, and enough bytes after the end to finish the last line
+        long mapStart = start == dataStart ? start : start - 1L;
+        long mapEnd = min(size, end + MAX_LINE_LENGTH);
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+        try {
+            ChunkMaskMap map = new ChunkMaskMap();
+            final int limit = toInt(end - mapStart);
+            final int capacity = buf.capacity();
+            final boolean eof = mapEnd == size;
+
+            int pos = 0;
+            if (start != dataStart) { //skip the partial line at the start, it belongs to the previous segment
+                while (pos < capacity && buf.get(pos++) != '\n') {
+                }
+            }
+
+            while (pos < limit) {
+                final int lineStart = pos;
+                byte c = buf.get(pos);
+                if (c == '\r' || c == '\n') { //blank line
+                    pos += c == '\r' && pos + 1 < capacity && buf.get(pos + 1) == '\n' ? 2 : 1;
+                    continue;
+                }
+
+                int a = 0;
+                int b = 0;
+                for (int field = 0; field < 2; field++) {
+                    boolean negative = pos < capacity && buf.get(pos) == '-';
+                    if (negative) {
+                        pos++;
+                    }
+
+                    int digitsStart = pos;
+                    long value = 0L;
+                    while (pos < capacity && (c = buf.get(pos)) >= '0' && c <= '9') {
+                        value = value * 10L + (c - '0');
+                        checkArg(value <= (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE), "coordinate out of range at byte %d", mapStart + lineStart);
+                        pos++;
+                    }
+                    checkArg(pos != digitsStart, "invalid line at byte %d", mapStart + lineStart);
+                    if (negative) {
+                        value = -value;
+                    }
+
+                    if (field == 0) {
+                        checkArg(pos < capacity && buf.get(pos) == ',', "invalid line at byte %d", mapStart + lineStart);
+                        pos++;
+                        a = (int) value;
+                    } else {
+                        b = (int) value;
+                    }
+                }
+
+                if (pos < capacity && buf.get(pos) == '\r') {
+                    pos++;
+                }
+                if (pos < capacity) {
+                    checkArg(buf.get(pos) == '\n', "invalid line at byte %d", mapStart + lineStart);
+                    pos++;
+                } else {
+                    checkArg(eof, "line too long at byte %d", mapStart + lineStart);
+                }
+
+                if (swap) {
+                    map.setChunk(b, a);
+                } else {
+                    map.setChunk(a, b);
+                }
+            }
+            return map;
+        } finally {
+            PUnsafe.pork_releaseBuffer(buf);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Helper methods for working with 1024-bit chunk masks.
+ * <p>
+ * A chunk mask is a {@code long[}{@link #WORDS}{@code ]} with one bit per chunk in a region. The bit for the chunk at local position (x,z) is at index
+ * {@code x | (z << 5)}, which is the same order in which chunks are stored in a region's offset and timestamp tables.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class ChunkMask {
+    public static final int WORDS = 32 * 32 / Long.SIZE;
+
+    public int index(int x, int z) {
+        return x | (z << 5);
+    }
+
+    public boolean get(@NonNull long[] mask, int x, int z) {
+        int i = index(x, z);
+        return (mask[i >>> 6] & (1L << i)) != 0L;
+    }
+
+    public void set(@NonNull long[] mask, int x, int z) {
+        int i = index(x, z);
+        mask[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * Gets the 32 bits of the given row of a chunk mask.
+     *
+     * @param mask the chunk mask
+     * @param z    the local Z coordinate of the row
+     * @return the row, where bit {@code x} is set if the chunk at (x,z) is set
+     */
+    public int row(@NonNull long[] mask, int z) {
+        return (int) (mask[z >>> 1] >>> ((z & 1) << 5));
+    }
+
+    public void clear(@NonNull long[] mask) {
+        Arrays.fill(mask, 0L);
+    }
+
+    public void fill(@NonNull long[] mask) {
+        Arrays.fill(mask, -1L);
+    }
+
+    public void invert(@NonNull long[] mask) {
+        for (int i = 0; i < WORDS; i++) {
+            mask[i] = ~mask[i];
+        }
+    }
+
+    public boolean isEmpty(@NonNull long[] mask) {
+        long bits = 0L;
+        for (int i = 0; i < WORDS; i++) {
+            bits |= mask[i];
+        }
+        return bits == 0L;
+    }
+
+    public boolean isFull(@NonNull long[] mask) {
+        long bits = -1L;
+        for (int i = 0; i < WORDS; i++) {
+            bits &= mask[i];
+        }
+        return bits == -1L;
+    }
+
+    public int count(@NonNull long[] mask) {
+        int count = 0;
+        for (int i = 0; i < WORDS; i++) {
+            count += Long.bitCount(mask[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Sets the bit of every chunk which is present in the given region headers.
+     *
+     * @param headers a buffer containing (at least) the offset table of a region
+     * @param mask    the chunk mask to OR the present chunks into
+     */
+    public void orPresent(@NonNull ByteBuffer headers, @NonNull long[] mask) {
+        HeaderOps.INSTANCE.orPresent(headers, mask);
+    }
+
+    /**
+     * Splits the set bits of a chunk mask into non-overlapping rectangles.
+     * <p>
+     * This works greedily: every run of set bits in a row is extended downwards for as long as the following rows contain the whole run. The result isn't
+     * necessarily minimal, but it is exact, and a full mask always results in a single rectangle.
+     *
+     * @param mask     the chunk mask
+     * @param offsetX  the value to add to all X coordinates
+     * @param offsetZ  the value to add to all Z coordinates
+     * @param callback the callback to pass the rectangles to
+     */
+    public void forEachRect(@NonNull long[] mask, int offsetX, int offsetZ, @NonNull RectCallback callback) {
+        int[] rows = new int[32];
+        for (int z = 0; z < 32; z++) {
+            rows[z] = row(mask, z);
+        }
+
+        for (int z = 0; z < 32; z++) {
+            while (rows[z] != 0) {
+                int minX = Integer.numberOfTrailingZeros(rows[z]);
+                int length = Integer.numberOfTrailingZeros(~(rows[z] >>> minX));
+                int run = length == 32 ? -1 : ((1 << length) - 1) << minX;
+
+                int maxZ = z;
+                while (maxZ < 31 && (rows[maxZ + 1] & run) == run) {
+                    maxZ++;
+                }
+                for (int i = z; i <= maxZ; i++) {
+                    rows[i] &= ~run;
+                }
+                callback.accept(offsetX + minX, offsetZ + z, offsetX + minX + length - 1, offsetZ + maxZ);
+            }
+        }
+    }
+
+    /**
+     * Receives rectangles from {@link #forEachRect(long[], int, int, RectCallback)}. All coordinates are inclusive.
+     */
+    @FunctionalInterface
+    public interface RectCallback {
+        void accept(int minX, int minZ, int maxX, int maxZ);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import net.daporkchop.lib.common.math.BinMath;
+
+/**
+ * An open-addressing hash map from region positions to {@link ChunkMask chunk masks}.
+ * <p>
+ * All keys and masks are stored in flat primitive arrays, so each region costs a fixed 137 bytes (at full load) rather than a handful of objects.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author DaPorkchop_
+ */
+public final class ChunkMaskMap {
+    protected static final int DEFAULT_CAPACITY = 256;
+
+    protected long[] keys;
+    protected long[] masks;
+    protected boolean[] used;
+    protected int size;
+
+    public ChunkMaskMap() {
+        this.allocate(DEFAULT_CAPACITY);
+    }
+
+    protected void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.masks = new long[capacity * ChunkMask.WORDS];
+        this.used = new boolean[capacity];
+    }
+
+    protected static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    /**
+     * @return the number of regions in this map
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of slots in this map. Valid slot indices are in range {@code [0, capacity())}
+     */
+    public int capacity() {
+        return this.keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return this.used[slot];
+    }
+
+    public long key(int slot) {
+        return this.keys[slot];
+    }
+
+    public int regionX(int slot) {
+        return BinMath.unpackX(this.keys[slot]);
+    }
+
+    public int regionZ(int slot) {
+        return BinMath.unpackY(this.keys[slot]);
+    }
+
+    /**
+     * Copies the chunk mask in the given slot into the given array.
+     */
+    public long[] mask(int slot, @NonNull long[] dst) {
+        System.arraycopy(this.masks, slot * ChunkMask.WORDS, dst, 0, ChunkMask.WORDS);
+        return dst;
+    }
+
+    /**
+     * Gets the slot index for the given key, inserting an empty chunk mask if it isn't already present.
+     */
+    public int slot(long key) {
+        if (this.size >= (this.keys.length >> 1) + (this.keys.length >> 2)) { //load factor 0.75
+            this.grow();
+        }
+
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while (this.used[slot]) {
+            if (this.keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        this.used[slot] = true;
+        this.keys[slot] = key;
+        this.size++;
+        return slot;
+    }
+
+    /**
+     * Sets the bit for the given chunk.
+     *
+     * @param chunkX the chunk's global X coordinate
+     * @param chunkZ the chunk's global Z coordinate
+     */
+    public void setChunk(int chunkX, int chunkZ) {
+        int slot = this.slot(BinMath.packXY(chunkX >> 5, chunkZ >> 5));
+        int i = ChunkMask.index(chunkX & 0x1F, chunkZ & 0x1F);
+        this.masks[slot * ChunkMask.WORDS + (i >>> 6)] |= 1L << i;
+    }
+
+    /**
+     * ORs all of the chunk masks from the given map into this one.
+     *
+     * @return this map
+     */
+    public ChunkMaskMap or(@NonNull ChunkMaskMap other) {
+        for (int otherSlot = 0; otherSlot < other.keys.length; otherSlot++) {
+            if (other.used[otherSlot]) {
+                int slot = this.slot(other.keys[otherSlot]);
+                for (int i = 0; i < ChunkMask.WORDS; i++) {
+                    this.masks[slot * ChunkMask.WORDS + i] |= other.masks[otherSlot * ChunkMask.WORDS + i];
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return the total number of set bits in all chunk masks
+     */
+    public long countChunks() {
+        long count = 0L;
+        for (long bits : this.masks) {
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    protected void grow() {
+        long[] oldKeys = this.keys;
+        long[] oldMasks = this.masks;
+        boolean[] oldUsed = this.used;
+
+        this.allocate(oldKeys.length << 1);
+        this.size = 0;
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldUsed[oldSlot]) {
+                int slot = this.slot(oldKeys[oldSlot]);
+                System.arraycopy(oldMasks, oldSlot * ChunkMask.WORDS, this.masks, slot * ChunkMask.WORDS, ChunkMask.WORDS);
+            }
+        }
+    }
+}
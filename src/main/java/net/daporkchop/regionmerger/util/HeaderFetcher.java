@@ -0,0 +1,410 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ReferenceCountUtil;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import net.daporkchop.lib.math.vector.i.Vec2i;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+
+/**
+ * Reads the headers of many regions at once.
+ * <p>
+ * Regions are first queued using {@link #add(World, Vec2i)}. {@link #fetch(int)} then issues a positional read through an {@link AsynchronousFileChannel}
+ * for every one of them before waiting for any to complete, so the disk sees the whole batch at once rather than one read per thread. The reads are
+ * completed on {@link Workers#fetch()}, so the number of reads in flight is limited by {@code --queueDepth} (or only by {@code --maxOpenFiles} if
+ * virtual threads are used) rather than by the number of threads waiting for them.
+ * <p>
+ * The headers are read into a ring of direct buffers which belongs to the fetcher and is reused by every batch. Callers which need the headers of a
+ * region from every source at once obtain a fetcher using {@link #acquire()}, which grows to however many regions are queued. Callers which handle each
+ * region on its own should use {@link #acquire(int, Handler)} instead, which reads and hands over the queued regions every {@link #BATCH_SIZE} regions,
+ * so that it never needs more than {@link #BATCH_SIZE} buffers.
+ * <p>
+ * Fetchers are pooled, and must be closed once they are no longer needed. At most one fetcher for every task which the
+ * {@link Workers#scan() scan pool} can run at once is kept in the pool, and only the buffers of the first {@link #BATCH_SIZE} slots of each.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author DaPorkchop_
+ */
+public final class HeaderFetcher implements AutoCloseable {
+    /**
+     * A good number of regions to fetch at once for callers which may split their work into batches of any size.
+     */
+    public static final int BATCH_SIZE = 32;
+
+    protected static final Set<OpenOption> READ_OPEN_OPTIONS = Collections.singleton(StandardOpenOption.READ);
+
+    protected static final Queue<HeaderFetcher> POOL = new ConcurrentLinkedQueue<>();
+    protected static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+    /**
+     * @return a {@link HeaderFetcher} with no queued regions, which keeps all queued regions until {@link #fetch(int)} is called
+     */
+    public static HeaderFetcher acquire() {
+        HeaderFetcher fetcher = POOL.poll();
+        if (fetcher == null) {
+            return new HeaderFetcher();
+        }
+        POOL_SIZE.decrementAndGet();
+        return fetcher;
+    }
+
+    /**
+     * Gets a {@link HeaderFetcher} with no queued regions, which reads the queued regions and passes each of them to the given handler whenever
+     * {@link #BATCH_SIZE} of them have been queued. Once all regions have been queued, the remaining ones must be read using {@link #flush()}.
+     *
+     * @param size    the number of bytes to read from each region. May not be more than {@code HEADER_BYTES}
+     * @param handler the handler to pass every region to
+     */
+    public static HeaderFetcher acquire(int size, @NonNull Handler handler) {
+        checkArg(size >= 0 && size <= HEADER_BYTES, "size (%d) must be in range [0, %d]", size, HEADER_BYTES);
+        HeaderFetcher fetcher = acquire();
+        fetcher.size = size;
+        fetcher.handler = handler;
+        return fetcher;
+    }
+
+    protected World[] worlds = new World[BATCH_SIZE];
+    protected Vec2i[] positions = new Vec2i[BATCH_SIZE];
+    protected ByteBuf[] buffers = new ByteBuf[BATCH_SIZE];
+    protected long[] lengths = new long[BATCH_SIZE];
+    protected Throwable[] failures = new Throwable[BATCH_SIZE];
+    protected int count;
+    protected int size;
+    protected Handler handler;
+
+    protected HeaderFetcher() {
+    }
+
+    /**
+     * @return the number of queued regions
+     */
+    public int count() {
+        return this.count;
+    }
+
+    /**
+     * Queues the given region to be read by the next call to {@link #fetch(int)}.
+     * <p>
+     * If this fetcher has a {@link Handler} and a whole batch is already queued, that batch is {@link #flush() flushed} first.
+     *
+     * @return the slot which the region's headers will be read into
+     */
+    public int add(@NonNull World world, @NonNull Vec2i pos) throws IOException {
+        if (this.handler != null && this.count == BATCH_SIZE) {
+            this.flush();
+        }
+
+        int slot = this.count++;
+        if (slot == this.worlds.length) {
+            int capacity = slot << 1;
+            this.worlds = Arrays.copyOf(this.worlds, capacity);
+            this.positions = Arrays.copyOf(this.positions, capacity);
+            this.buffers = Arrays.copyOf(this.buffers, capacity);
+            this.lengths = Arrays.copyOf(this.lengths, capacity);
+            this.failures = Arrays.copyOf(this.failures, capacity);
+        }
+        this.worlds[slot] = world;
+        this.positions[slot] = pos;
+        return slot;
+    }
+
+    /**
+     * Reads the first bytes of every queued region, and waits until all of them have been read.
+     * <p>
+     * If a region can't be read, the exception is thrown by {@link #headers(int)} and {@link #length(int)} for its slot, so that the others can still
+     * be used.
+     *
+     * @param size the number of bytes to read from each region. May not be more than {@code HEADER_BYTES}. If a region's file is shorter than this, the
+     *             rest of its headers are filled with zeroes
+     */
+    public void fetch(int size) {
+        checkArg(size >= 0 && size <= HEADER_BYTES, "size (%d) must be in range [0, %d]", size, HEADER_BYTES);
+        this.size = size;
+
+        CountDownLatch latch = new CountDownLatch(this.count);
+        for (int slot = 0; slot < this.count; slot++) {
+            ByteBuf buffer = this.buffers[slot];
+            if (buffer == null) {
+                buffer = this.buffers[slot] = PooledByteBufAllocator.DEFAULT.directBuffer(HEADER_BYTES, HEADER_BYTES);
+            }
+            buffer.clear();
+            this.lengths[slot] = -1L;
+            this.failures[slot] = null;
+
+            long startNanos = System.nanoTime();
+            Path file = this.worlds[slot].getAsFile(this.positions[slot]).toPath();
+            try {
+                long length = this.worlds[slot].readIndexedHeaders(this.positions[slot], file, buffer, size);
+                if (length >= 0L) {
+                    this.complete(slot, length, startNanos, latch);
+                    continue;
+                }
+            } catch (Throwable t) {
+                this.failures[slot] = t;
+                latch.countDown();
+                continue;
+            }
+
+            //the permit is released by the read once it's finished, so acquiring them one at a time can't deadlock
+            Workers.Permit permit = Workers.openFiles(1);
+            AsynchronousFileChannel channel = null;
+            try {
+                channel = AsynchronousFileChannel.open(file, READ_OPEN_OPTIONS, Workers.fetch());
+                long length = channel.size();
+                new Read(slot, channel, permit, buffer.nioBuffer(0, toInt(min(size, length))), length, startNanos, latch).start();
+            } catch (Throwable t) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        t.addSuppressed(e);
+                    }
+                }
+                permit.close();
+                this.failures[slot] = t;
+                latch.countDown();
+            }
+        }
+
+        //the buffers may not be touched again until every read is finished, even if this thread is interrupted
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reads all queued regions, passes each of them to this fetcher's {@link Handler}, and then removes them.
+     */
+    public void flush() throws IOException {
+        checkState(this.handler != null, "fetcher has no handler");
+        this.fetch(this.size);
+        try {
+            for (int slot = 0; slot < this.count; slot++) {
+                this.handler.handle(this, slot);
+            }
+        } finally {
+            this.clear();
+        }
+    }
+
+    protected void complete(int slot, long length, long startNanos, @NonNull CountDownLatch latch) {
+        ByteBuf buffer = this.buffers[slot];
+        this.lengths[slot] = length;
+        Metrics.Counter.BYTES_READ.add(buffer.writerIndex());
+        //a truncated region simply has no chunks past the end of the file, rather than whatever the previous batch left in the buffer
+        buffer.writeZero(this.size - buffer.writerIndex());
+        Metrics.Phase.READ.since(startNanos);
+        latch.countDown();
+    }
+
+    public World world(int slot) {
+        checkIndex(this.count, slot);
+        return this.worlds[slot];
+    }
+
+    public Vec2i position(int slot) {
+        checkIndex(this.count, slot);
+        return this.positions[slot];
+    }
+
+    /**
+     * Gets the headers which were read into the given slot by the last call to {@link #fetch(int)}.
+     * <p>
+     * The buffer always contains exactly as many bytes as were requested, even if the region's file is shorter.
+     * <p>
+     * The returned buffer belongs to this fetcher and is overwritten by the next batch, so it must neither be released nor used after this fetcher
+     * is closed.
+     */
+    public ByteBuf headers(int slot) throws IOException {
+        this.check(slot);
+        return this.buffers[slot];
+    }
+
+    /**
+     * @return the length of the region's file
+     */
+    public long length(int slot) throws IOException {
+        this.check(slot);
+        return this.lengths[slot];
+    }
+
+    protected void check(int slot) throws IOException {
+        checkIndex(this.count, slot);
+        Throwable t = this.failures[slot];
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Removes all queued regions, so that the next batch may be queued.
+     */
+    public void clear() {
+        Arrays.fill(this.worlds, 0, this.count, null);
+        Arrays.fill(this.positions, 0, this.count, null);
+        Arrays.fill(this.failures, 0, this.count, null);
+        this.count = 0;
+    }
+
+    /**
+     * Removes all queued regions and returns this fetcher to the pool.
+     * <p>
+     * Regions which are still queued are not handed to the {@link Handler}.
+     */
+    @Override
+    public void close() {
+        this.clear();
+        this.handler = null;
+
+        if (POOL_SIZE.incrementAndGet() <= Workers.scan().parallelism()) {
+            //a few callers need many more slots than a single batch, but only keep as many as a batch needs
+            if (this.buffers.length > BATCH_SIZE) {
+                this.release(BATCH_SIZE);
+                this.worlds = Arrays.copyOf(this.worlds, BATCH_SIZE);
+                this.positions = Arrays.copyOf(this.positions, BATCH_SIZE);
+                this.buffers = Arrays.copyOf(this.buffers, BATCH_SIZE);
+                this.lengths = Arrays.copyOf(this.lengths, BATCH_SIZE);
+                this.failures = Arrays.copyOf(this.failures, BATCH_SIZE);
+            }
+            POOL.add(this);
+        } else { //the pool is full
+            POOL_SIZE.decrementAndGet();
+            this.release(0);
+        }
+    }
+
+    protected void release(int fromSlot) {
+        for (int slot = fromSlot; slot < this.buffers.length; slot++) {
+            ReferenceCountUtil.release(this.buffers[slot]);
+            this.buffers[slot] = null;
+        }
+    }
+
+    /**
+     * Handles the headers of a single region read by a {@link HeaderFetcher}.
+     *
+     * @see #acquire(int, Handler)
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * @param fetcher the fetcher which read the region's headers. {@link HeaderFetcher#headers(int)} may only be used until this method returns
+         * @param slot    the slot containing the region's headers
+         */
+        void handle(@NonNull HeaderFetcher fetcher, int slot) throws IOException;
+    }
+
+    /**
+     * A read of a single region's headers, which re-issues itself until all of the requested bytes have been read.
+     */
+    @RequiredArgsConstructor
+    protected final class Read implements CompletionHandler<Integer, Void> {
+        protected final int slot;
+        protected final AsynchronousFileChannel channel;
+        protected final Workers.Permit permit;
+        protected final ByteBuffer dst;
+        protected final long length;
+        protected final long startNanos;
+        protected final CountDownLatch latch;
+
+        protected void start() {
+            if (this.dst.hasRemaining()) {
+                this.channel.read(this.dst, this.dst.position(), null, this);
+            } else {
+                this.finish(null);
+            }
+        }
+
+        @Override
+        public void completed(Integer result, Void attachment) {
+            if (result < 0) { //the file was truncated while it was being read
+                this.finish(new IOException("Unexpected end of region file: " + HeaderFetcher.this.positions[this.slot]));
+            } else {
+                this.start();
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            this.finish(exc);
+        }
+
+        protected void finish(Throwable failure) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            } finally {
+                this.permit.close();
+            }
+
+            if (failure != null) {
+                HeaderFetcher.this.failures[this.slot] = failure;
+                this.latch.countDown();
+            } else {
+                HeaderFetcher.this.buffers[this.slot].writerIndex(this.dst.position());
+                HeaderFetcher.this.complete(this.slot, this.length, this.startNanos, this.latch);
+            }
+        }
+    }
+}
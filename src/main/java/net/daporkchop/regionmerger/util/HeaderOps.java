@@ -0,0 +1,190 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+
+import java.nio.ByteBuffer;
+
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+
+/**
+ * Bulk operations on the offset and timestamp tables of region headers.
+ * <p>
+ * Every table has one entry per chunk, in the order described in {@link ChunkMask}. All operations work on whole tables at a time rather than on one
+ * chunk at a time, so that {@link #INSTANCE} can process many chunks at once using the Vector API. That implementation lives in the Java 21 classes
+ * of the multi-release jar, and is only used if the JVM was started with {@code --add-modules jdk.incubator.vector}. Otherwise, the scalar
+ * implementation in this class is used, and both always give the same results.
+ * <p>
+ * All buffers must contain a region's headers starting at index {@code 0}.
+ *
+ * @author DaPorkchop_
+ */
+public class HeaderOps {
+    /**
+     * The number of entries in each table.
+     */
+    public static final int CHUNKS = 32 * 32;
+
+    /**
+     * The fastest available implementation.
+     */
+    public static final HeaderOps INSTANCE = create();
+
+    protected static HeaderOps create() {
+        try {
+            return (HeaderOps) Class.forName("net.daporkchop.regionmerger.util.VectorHeaderOps").newInstance();
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException | LinkageError e) {
+            //we're either running on an older JVM or the jdk.incubator.vector module hasn't been added
+            return new HeaderOps();
+        }
+    }
+
+    protected HeaderOps() {
+    }
+
+    /**
+     * Sets the bit of every chunk which is present in the given region headers.
+     *
+     * @param headers a buffer containing (at least) the offset table of a region
+     * @param mask    the chunk mask to OR the present chunks into
+     */
+    public void orPresent(@NonNull ByteBuffer headers, @NonNull long[] mask) {
+        for (int word = 0; word < ChunkMask.WORDS; word++) {
+            long bits = 0L;
+            for (int bit = 0, offsetIndex = word << 8; bit < Long.SIZE; bit++, offsetIndex += 4) {
+                if (headers.getInt(offsetIndex) != 0) {
+                    bits |= 1L << bit;
+                }
+            }
+            mask[word] |= bits;
+        }
+    }
+
+    /**
+     * @param headers a buffer containing (at least) the offset table of a region
+     * @return the number of chunks which are present in the given region headers
+     */
+    public int countPresent(@NonNull ByteBuffer headers) {
+        int count = 0;
+        for (int i = 0; i < CHUNKS; i++) {
+            if (headers.getInt(i << 2) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Increments the count of every chunk which is present in the given region headers.
+     *
+     * @param headers a buffer containing (at least) the offset table of a region
+     * @param counts  the counts for each chunk
+     */
+    public void addPresent(@NonNull ByteBuffer headers, @NonNull int[] counts) {
+        for (int i = 0; i < CHUNKS; i++) {
+            if (headers.getInt(i << 2) != 0) {
+                counts[i]++;
+            }
+        }
+    }
+
+    /**
+     * Selects the given region for every chunk which is present in it and has a timestamp greater than the one of the currently selected region.
+     *
+     * @param headers    a buffer containing the offset and timestamp tables of a region
+     * @param source     the index of the region
+     * @param timestamps the timestamps of the currently selected regions. Chunks which haven't been selected yet must be {@link Integer#MIN_VALUE}
+     * @param winners    the indices of the currently selected regions
+     * @param offsets    the offset table entries of the currently selected regions
+     */
+    public void selectYoungest(@NonNull ByteBuffer headers, int source, @NonNull int[] timestamps, @NonNull int[] winners, @NonNull int[] offsets) {
+        for (int i = 0; i < CHUNKS; i++) {
+            int offset = headers.getInt(i << 2);
+            int timestamp = headers.getInt(SECTOR_BYTES + (i << 2));
+            if (offset != 0 && timestamp > timestamps[i]) {
+                timestamps[i] = timestamp;
+                winners[i] = source;
+                offsets[i] = offset;
+            }
+        }
+    }
+
+    /**
+     * Selects the given region for every chunk which is present in it and has a timestamp less than the one of the currently selected region.
+     *
+     * @param headers    a buffer containing the offset and timestamp tables of a region
+     * @param source     the index of the region
+     * @param timestamps the timestamps of the currently selected regions. Chunks which haven't been selected yet must be {@link Integer#MAX_VALUE}
+     * @param winners    the indices of the currently selected regions
+     * @param offsets    the offset table entries of the currently selected regions
+     */
+    public void selectOldest(@NonNull ByteBuffer headers, int source, @NonNull int[] timestamps, @NonNull int[] winners, @NonNull int[] offsets) {
+        for (int i = 0; i < CHUNKS; i++) {
+            int offset = headers.getInt(i << 2);
+            int timestamp = headers.getInt(SECTOR_BYTES + (i << 2));
+            if (offset != 0 && timestamp < timestamps[i]) {
+                timestamps[i] = timestamp;
+                winners[i] = source;
+                offsets[i] = offset;
+            }
+        }
+    }
+
+    /**
+     * Selects the given region for every chunk which is present in it and for which no region has been selected yet.
+     *
+     * @param headers a buffer containing (at least) the offset table of a region
+     * @param source  the index of the region
+     * @param winners the indices of the currently selected regions, or {@code -1} for chunks which haven't been selected yet
+     * @param offsets the offset table entries of the currently selected regions
+     */
+    public void selectFirst(@NonNull ByteBuffer headers, int source, @NonNull int[] winners, @NonNull int[] offsets) {
+        for (int i = 0; i < CHUNKS; i++) {
+            int offset = headers.getInt(i << 2);
+            if (offset != 0 && winners[i] < 0) {
+                winners[i] = source;
+                offsets[i] = offset;
+            }
+        }
+    }
+
+    /**
+     * Sums the lengths (in sectors) of a range of entries in an offset table.
+     *
+     * @param offsets the offset table
+     * @param from    the index of the first entry to sum
+     * @param count   the number of entries to sum
+     * @return the total number of sectors
+     */
+    public int sumSectors(@NonNull int[] offsets, int from, int count) {
+        int sum = 0;
+        for (int i = from, end = from + count; i < end; i++) {
+            sum += offsets[i] & 0xFF;
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations (in nanoseconds) with power-of-two bucket boundaries.
+ * <p>
+ * Bucket {@code i} contains all values in range {@code [2^(i-1), 2^i)}, so percentiles are only accurate to within a factor of two. That's plenty to tell
+ * a 100µs read apart from a 10ms one, and recording a value is only a couple of atomic increments.
+ *
+ * @author DaPorkchop_
+ */
+public final class Histogram {
+    public static final int BUCKETS = Long.SIZE + 1;
+
+    protected final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    protected final LongAdder count = new LongAdder();
+    protected final LongAdder sum = new LongAdder();
+    protected final AtomicLong max = new AtomicLong();
+
+    protected static int bucket(long value) {
+        return Long.SIZE - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * @return the (exclusive) upper bound of the given bucket
+     */
+    public static long upperBound(int bucket) {
+        return bucket >= Long.SIZE - 1 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    public void record(long value) {
+        if (value < 0L) {
+            value = 0L;
+        }
+        this.buckets.getAndIncrement(bucket(value));
+        this.count.increment();
+        this.sum.add(value);
+        this.max.accumulateAndGet(value, Math::max);
+    }
+
+    public long count() {
+        return this.count.sum();
+    }
+
+    public long sum() {
+        return this.sum.sum();
+    }
+
+    public long max() {
+        return this.max.get();
+    }
+
+    public double mean() {
+        long count = this.count();
+        return count == 0L ? 0.0d : (double) this.sum() / (double) count;
+    }
+
+    /**
+     * @return the number of values in the given bucket
+     */
+    public long bucketCount(int bucket) {
+        return this.buckets.get(bucket);
+    }
+
+    /**
+     * Estimates the given percentile.
+     *
+     * @param percentile the percentile, in range {@code [0, 1]}
+     * @return the upper bound of the bucket containing the percentile, clamped to the largest recorded value
+     */
+    public long percentile(double percentile) {
+        long count = this.count();
+        if (count == 0L) {
+            return 0L;
+        }
+
+        long target = Math.max((long) Math.ceil(percentile * count), 1L);
+        long seen = 0L;
+        for (int i = 0; i < BUCKETS; i++) {
+            if ((seen += this.buckets.get(i)) >= target) {
+                return Math.min(upperBound(i), this.max());
+            }
+        }
+        return this.max();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+import lombok.NonNull;
+
+import static net.daporkchop.regionmerger.util.Metrics.*;
+
+/**
+ * The JDK Flight Recorder events emitted by {@link Metrics}.
+ * <p>
+ * This class may only be loaded if {@code jdk.jfr} is present, which isn't the case on Java 8 builds older than 8u262.
+ *
+ * @author DaPorkchop_
+ */
+final class JfrEvents {
+    static void register() {
+        FlightRecorder.addPeriodicEvent(CountersEvent.class, () -> {
+            CountersEvent event = new CountersEvent();
+            event.mode = mode();
+            event.regions = Counter.REGIONS.get();
+            event.chunks = Counter.CHUNKS.get();
+            event.bytesRead = Counter.BYTES_READ.get();
+            event.bytesWritten = Counter.BYTES_WRITTEN.get();
+            event.bytesInflated = Counter.BYTES_INFLATED.get();
+            event.bytesDeflated = Counter.BYTES_DEFLATED.get();
+            event.commit();
+        });
+    }
+
+    static void phase(@NonNull Phase phase, long nanos) {
+        PhaseEvent event = new PhaseEvent();
+        if (event.shouldCommit()) {
+            event.mode = mode();
+            event.phase = phase.metricName;
+            event.time = nanos;
+            event.commit();
+        }
+    }
+
+    @Name("net.daporkchop.regionmerger.Phase")
+    @Label("Region Phase")
+    @Description("The time spent reading, processing or writing a single region")
+    @Category("RegionMerger")
+    @StackTrace(false)
+    static final class PhaseEvent extends Event {
+        @Label("Mode")
+        String mode;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("net.daporkchop.regionmerger.Counters")
+    @Label("Counters")
+    @Description("The totals of all counters since the current mode was started")
+    @Category("RegionMerger")
+    @StackTrace(false)
+    @Period("1 s")
+    static final class CountersEvent extends Event {
+        @Label("Mode")
+        String mode;
+
+        @Label("Regions")
+        long regions;
+
+        @Label("Chunks")
+        long chunks;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Bytes Inflated")
+        @DataAmount
+        long bytesInflated;
+
+        @Label("Bytes Deflated")
+        @DataAmount
+        long bytesDeflated;
+    }
+}
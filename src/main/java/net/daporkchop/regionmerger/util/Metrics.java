@@ -0,0 +1,376 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.lib.logging.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static net.daporkchop.lib.logging.Logging.*;
+
+/**
+ * Process-wide counters and latency histograms shared by all modes.
+ * <p>
+ * Modes count what they do via {@link Counter} and time the work they do on each region via {@link Phase}. Comparing the time spent in
+ * {@link Phase#READ}/{@link Phase#WRITE} with the time spent in {@link Phase#PROCESS} shows whether a run is I/O-bound or CPU-bound.
+ * <p>
+ * Everything is also emitted as JDK Flight Recorder events (if JFR is available), and can optionally be written to a snapshot file in either JSON or
+ * Prometheus text format.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class Metrics {
+    protected static final double MB = 1024.0d * 1024.0d;
+    protected static final double[] PERCENTILES = { 0.5d, 0.9d, 0.99d };
+
+    //only export the buckets from ~1µs to ~1min, so that the set of series stays the same between snapshots
+    protected static final int PROMETHEUS_MIN_BUCKET = 10;
+    protected static final int PROMETHEUS_MAX_BUCKET = 36;
+
+    protected static final boolean JFR = jfr();
+
+    protected static volatile String mode = "none";
+    protected static volatile long startNanos = System.nanoTime();
+    protected static volatile Path snapshotPath;
+
+    protected boolean jfr() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            JfrEvents.register();
+            return true;
+        } catch (Throwable t) { //jdk.jfr isn't present on older Java 8 builds
+            return false;
+        }
+    }
+
+    /**
+     * @return the name of the currently running mode
+     */
+    public String mode() {
+        return mode;
+    }
+
+    /**
+     * Resets the timer and sets the mode name which all metrics will be tagged with.
+     *
+     * @param name     the name of the mode
+     * @param snapshot the file to write snapshots to, or {@code null} if snapshots shouldn't be written
+     */
+    public void begin(@NonNull String name, Path snapshot) {
+        mode = name;
+        snapshotPath = snapshot;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Logs a summary of all metrics and writes the final snapshot.
+     */
+    public void finish() {
+        Logger channel = logger.channel("Metrics");
+        double seconds = elapsedNanos() / 1_000_000_000.0d;
+
+        channel.info("%d regions, %d chunks", Counter.REGIONS.get(), Counter.CHUNKS.get());
+        channel.info("Read %.2f MB (%.2f MB/s), wrote %.2f MB (%.2f MB/s)",
+                Counter.BYTES_READ.get() / MB, Counter.BYTES_READ.get() / MB / seconds,
+                Counter.BYTES_WRITTEN.get() / MB, Counter.BYTES_WRITTEN.get() / MB / seconds);
+        if (Counter.BYTES_INFLATED.get() != 0L || Counter.BYTES_DEFLATED.get() != 0L) {
+            channel.info("Inflated %.2f MB (%.2f MB/s), deflated %.2f MB (%.2f MB/s)",
+                    Counter.BYTES_INFLATED.get() / MB, Counter.BYTES_INFLATED.get() / MB / seconds,
+                    Counter.BYTES_DEFLATED.get() / MB, Counter.BYTES_DEFLATED.get() / MB / seconds);
+        }
+
+        long totalPhaseNanos = 0L;
+        for (Phase phase : Phase.values()) {
+            totalPhaseNanos += phase.histogram.sum();
+        }
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = phase.histogram;
+            if (histogram.count() != 0L) {
+                channel.info("%-7s %d regions, %s total (%.1f%%), mean %.3fms, p50 %.3fms, p90 %.3fms, p99 %.3fms, max %.3fms",
+                        phase.metricName + ':', histogram.count(), Utils.formatDuration(TimeUnit.NANOSECONDS.toMillis(histogram.sum())),
+                        histogram.sum() * 100.0d / totalPhaseNanos, histogram.mean() / 1_000_000.0d,
+                        histogram.percentile(0.5d) / 1_000_000.0d, histogram.percentile(0.9d) / 1_000_000.0d, histogram.percentile(0.99d) / 1_000_000.0d,
+                        histogram.max() / 1_000_000.0d);
+            }
+        }
+
+        writeSnapshot();
+    }
+
+    /**
+     * @return the number of nanoseconds since {@link #begin(String, Path)} was called
+     */
+    public long elapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Starts a daemon thread which periodically logs the progress, throughput and ETA of the current mode, and writes a snapshot if enabled.
+     * <p>
+     * Progress is measured using {@link Counter#REGIONS}.
+     *
+     * @param action the verb to describe the progress with, e.g. {@code "Processed"}
+     * @param total  the total number of regions which will be processed
+     * @param delay  the time between updates (in milliseconds). If {@code 0}, nothing will be done
+     */
+    public Progress progress(@NonNull String action, long total, int delay) {
+        Progress progress = new Progress(action, total, delay, Counter.REGIONS.get());
+        if (delay > 0) {
+            progress.thread.setDaemon(true);
+            progress.thread.start();
+        }
+        return progress;
+    }
+
+    /**
+     * Writes a snapshot of all metrics to the snapshot file, if one was set.
+     * <p>
+     * If the file name ends with {@code .json} the snapshot is written as JSON, otherwise it is written in Prometheus' text exposition format.
+     */
+    public void writeSnapshot() {
+        Path path = snapshotPath;
+        if (path == null) {
+            return;
+        }
+
+        String snapshot = path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json") ? toJson() : toPrometheus();
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tmpPath, snapshot.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to write metrics snapshot to %s", path);
+            logger.warn(e);
+        }
+    }
+
+    public String toJson() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\n  \"mode\": \"").append(mode).append("\",\n  \"elapsed_ns\": ").append(elapsedNanos()).append(",\n  \"counters\": {");
+        for (Counter counter : Counter.values()) {
+            builder.append(counter.ordinal() == 0 ? "\n" : ",\n").append("    \"").append(counter.metricName).append("\": ").append(counter.get());
+        }
+        builder.append("\n  },\n  \"phases\": {");
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = phase.histogram;
+            builder.append(phase.ordinal() == 0 ? "\n" : ",\n").append("    \"").append(phase.metricName).append("\": {")
+                    .append("\"count\": ").append(histogram.count())
+                    .append(", \"sum_ns\": ").append(histogram.sum())
+                    .append(", \"max_ns\": ").append(histogram.max());
+            for (double percentile : PERCENTILES) {
+                builder.append(", \"p").append((int) (percentile * 100.0d)).append("_ns\": ").append(histogram.percentile(percentile));
+            }
+            builder.append('}');
+        }
+        return builder.append("\n  }\n}\n").toString();
+    }
+
+    public String toPrometheus() {
+        StringBuilder builder = new StringBuilder();
+        String labels = "mode=\"" + mode + '"';
+
+        builder.append("# HELP regionmerger_elapsed_seconds Time since the mode was started.\n")
+                .append("# TYPE regionmerger_elapsed_seconds gauge\n")
+                .append("regionmerger_elapsed_seconds{").append(labels).append("} ").append(elapsedNanos() / 1_000_000_000.0d).append('\n');
+
+        for (Counter counter : Counter.values()) {
+            String name = "regionmerger_" + counter.metricName + "_total";
+            builder.append("# HELP ").append(name).append(' ').append(counter.help).append('\n')
+                    .append("# TYPE ").append(name).append(" counter\n")
+                    .append(name).append('{').append(labels).append("} ").append(counter.get()).append('\n');
+        }
+
+        builder.append("# HELP regionmerger_phase_seconds Time spent in each phase of processing a region.\n")
+                .append("# TYPE regionmerger_phase_seconds histogram\n");
+        for (Phase phase : Phase.values()) {
+            Histogram histogram = phase.histogram;
+            String phaseLabels = labels + ",phase=\"" + phase.metricName + '"';
+
+            long cumulative = 0L;
+            for (int i = 0; i <= PROMETHEUS_MAX_BUCKET; i++) {
+                cumulative += histogram.bucketCount(i);
+                if (i < PROMETHEUS_MIN_BUCKET) {
+                    continue;
+                }
+                builder.append("regionmerger_phase_seconds_bucket{").append(phaseLabels).append(",le=\"")
+                        .append(Histogram.upperBound(i) / 1_000_000_000.0d).append("\"} ").append(cumulative).append('\n');
+            }
+            builder.append("regionmerger_phase_seconds_bucket{").append(phaseLabels).append(",le=\"+Inf\"} ").append(histogram.count()).append('\n')
+                    .append("regionmerger_phase_seconds_sum{").append(phaseLabels).append("} ").append(histogram.sum() / 1_000_000_000.0d).append('\n')
+                    .append("regionmerger_phase_seconds_count{").append(phaseLabels).append("} ").append(histogram.count()).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A monotonically increasing count of something.
+     */
+    @RequiredArgsConstructor
+    public enum Counter {
+        REGIONS("regions", "Number of regions which have been processed."),
+        CHUNKS("chunks", "Number of chunks which have been processed."),
+        BYTES_READ("bytes_read", "Bytes read from region files."),
+        BYTES_WRITTEN("bytes_written", "Bytes written to region files."),
+        BYTES_INFLATED("bytes_inflated", "Uncompressed size of all inflated chunks."),
+        BYTES_DEFLATED("bytes_deflated", "Compressed size of all deflated chunks.");
+
+        protected final String metricName;
+        protected final String help;
+        protected final LongAdder adder = new LongAdder();
+
+        public void add(long value) {
+            this.adder.add(value);
+        }
+
+        public void increment() {
+            this.adder.increment();
+        }
+
+        public long get() {
+            return this.adder.sum();
+        }
+    }
+
+    /**
+     * A step in the processing of a single region.
+     */
+    @RequiredArgsConstructor
+    public enum Phase {
+        /**
+         * Reading a region (or its headers) from disk.
+         */
+        READ("read"),
+        /**
+         * Doing something with the contents of a region, such as merging, recompressing or rendering it.
+         */
+        PROCESS("process"),
+        /**
+         * Writing a region to disk.
+         */
+        WRITE("write");
+
+        protected final String metricName;
+        protected final Histogram histogram = new Histogram();
+
+        /**
+         * Records the time spent in this phase for a single region.
+         *
+         * @param nanos the time (in nanoseconds)
+         */
+        public void record(long nanos) {
+            this.histogram.record(nanos);
+            if (JFR) {
+                JfrEvents.phase(this, nanos);
+            }
+        }
+
+        /**
+         * Records the time spent in this phase since the given {@link System#nanoTime()} timestamp.
+         */
+        public void since(long startNanos) {
+            this.record(System.nanoTime() - startNanos);
+        }
+
+        public Histogram histogram() {
+            return this.histogram;
+        }
+    }
+
+    /**
+     * Reports progress of the current mode until closed.
+     *
+     * @see #progress(String, long, int)
+     */
+    public static final class Progress implements AutoCloseable {
+        protected final String action;
+        protected final long total;
+        protected final int delay;
+        protected final long baseline;
+        protected final Thread thread;
+
+        protected Progress(@NonNull String action, long total, int delay, long baseline) {
+            this.action = action;
+            this.total = total;
+            this.delay = delay;
+            this.baseline = baseline;
+            this.thread = delay > 0 ? new Thread(this::run, "Progress") : null;
+        }
+
+        protected void run() {
+            Logger channel = logger.channel("Progress");
+            long startNanos = System.nanoTime();
+            long lastNanos = startNanos;
+            long lastRead = Counter.BYTES_READ.get();
+            long lastWritten = Counter.BYTES_WRITTEN.get();
+
+            boolean running = true;
+            while (running) {
+                try {
+                    Thread.sleep(this.delay);
+                } catch (InterruptedException e) {
+                    running = false; //print the final state before exiting
+                }
+
+                long now = System.nanoTime();
+                long done = Counter.REGIONS.get() - this.baseline;
+                long read = Counter.BYTES_READ.get();
+                long written = Counter.BYTES_WRITTEN.get();
+                double seconds = (now - lastNanos) / 1_000_000_000.0d;
+
+                channel.info("%s %d/%d regions (%.3f%%, %d chunks, read %.2f MB/s, wrote %.2f MB/s, ETA %s)",
+                        this.action, done, this.total, this.total == 0L ? 100.0d : done * 100.0d / this.total, Counter.CHUNKS.get(),
+                        (read - lastRead) / MB / seconds, (written - lastWritten) / MB / seconds,
+                        done == 0L ? "unknown" : Utils.formatDuration(TimeUnit.NANOSECONDS.toMillis((now - startNanos) / done * Math.max(this.total - done, 0L))));
+                writeSnapshot();
+
+                lastNanos = now;
+                lastRead = read;
+                lastWritten = written;
+                if (done >= this.total) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (this.thread != null && this.thread.isAlive()) {
+                this.thread.interrupt();
+                try {
+                    this.thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import io.netty.buffer.ByteBuf;
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for scanning through uncompressed NBT data in place, without building a tree of tag objects.
+ * <p>
+ * All methods work on absolute indices into a {@link ByteBuf} and never modify its reader or writer index. Compounds are iterated by the caller: starting at
+ * the index of a compound's payload, {@link #tagId(ByteBuf, int)} gives the type of the next entry ({@link #TAG_END} once there are no more entries),
+ * {@link #payload(ByteBuf, int)} the index of its payload and {@link #skip(ByteBuf, int, int)} the index of the entry after it. Names are compared against
+ * pre-encoded byte arrays with {@link #nameEquals(ByteBuf, int, byte[])}, so uninteresting tags can be skipped without decoding anything.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class NBT {
+    public static final int TAG_END = 0;
+    public static final int TAG_BYTE = 1;
+    public static final int TAG_SHORT = 2;
+    public static final int TAG_INT = 3;
+    public static final int TAG_LONG = 4;
+    public static final int TAG_FLOAT = 5;
+    public static final int TAG_DOUBLE = 6;
+    public static final int TAG_BYTE_ARRAY = 7;
+    public static final int TAG_STRING = 8;
+    public static final int TAG_LIST = 9;
+    public static final int TAG_COMPOUND = 10;
+    public static final int TAG_INT_ARRAY = 11;
+    public static final int TAG_LONG_ARRAY = 12;
+
+    /**
+     * Encodes a tag name for use with {@link #nameEquals(ByteBuf, int, byte[])}.
+     */
+    public byte[] name(@NonNull String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param entry the index of a compound entry
+     * @return the type of the entry
+     */
+    public int tagId(@NonNull ByteBuf buf, int entry) {
+        return buf.getUnsignedByte(entry);
+    }
+
+    /**
+     * @param entry the index of a compound entry
+     * @return whether or not the entry's name is equal to the given encoded name
+     */
+    public boolean nameEquals(@NonNull ByteBuf buf, int entry, @NonNull byte[] name) {
+        if (buf.getUnsignedShort(entry + 1) != name.length) {
+            return false;
+        }
+        for (int i = 0, index = entry + 3; i < name.length; i++, index++) {
+            if (buf.getByte(index) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param entry the index of a compound entry
+     * @return the index of the entry's payload
+     */
+    public int payload(@NonNull ByteBuf buf, int entry) {
+        return entry + 3 + buf.getUnsignedShort(entry + 1);
+    }
+
+    /**
+     * @param entry the index of a compound entry
+     * @return the index of the compound entry following the given one
+     */
+    public int next(@NonNull ByteBuf buf, int entry) {
+        return skip(buf, payload(buf, entry), tagId(buf, entry));
+    }
+
+    /**
+     * @param root the index of a named root tag, such as the start of a chunk's data
+     * @return the index of the root compound's payload
+     */
+    public int rootCompound(@NonNull ByteBuf buf, int root) {
+        if (tagId(buf, root) != TAG_COMPOUND) {
+            throw new IllegalArgumentException(String.format("root tag isn't a compound (type %d)", tagId(buf, root)));
+        }
+        return payload(buf, root);
+    }
+
+    /**
+     * Finds the index of the compound entry with the given name.
+     *
+     * @param compound the index of the compound's payload
+     * @return the index of the entry, or {@code -1} if the compound doesn't contain an entry with the given name
+     */
+    public int find(@NonNull ByteBuf buf, int compound, @NonNull byte[] name) {
+        for (int entry = compound; tagId(buf, entry) != TAG_END; entry = next(buf, entry)) {
+            if (nameEquals(buf, entry, name)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param list the index of a list's payload
+     * @return the type of the list's elements
+     */
+    public int listType(@NonNull ByteBuf buf, int list) {
+        return buf.getUnsignedByte(list);
+    }
+
+    /**
+     * @param array the index of a list's or array's payload
+     * @return the number of elements in the list or array
+     */
+    public int length(@NonNull ByteBuf buf, int array, int id) {
+        return buf.getInt(id == TAG_LIST ? array + 1 : array);
+    }
+
+    /**
+     * @param array the index of a list's or array's payload
+     * @return the index of the list's or array's first element
+     */
+    public int elements(int array, int id) {
+        return id == TAG_LIST ? array + 5 : array + 4;
+    }
+
+    /**
+     * @param string the index of a string's payload
+     * @return the decoded string
+     */
+    public String string(@NonNull ByteBuf buf, int string) {
+        return buf.toString(string + 2, buf.getUnsignedShort(string), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skips over a tag's payload.
+     *
+     * @param index the index of the payload
+     * @param id    the type of the tag
+     * @return the index of the first byte after the payload
+     */
+    public int skip(@NonNull ByteBuf buf, int index, int id) {
+        switch (id) {
+            case TAG_END:
+                return index;
+            case TAG_BYTE:
+                return index + 1;
+            case TAG_SHORT:
+                return index + 2;
+            case TAG_INT:
+            case TAG_FLOAT:
+                return index + 4;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                return index + 8;
+            case TAG_BYTE_ARRAY:
+                return index + 4 + buf.getInt(index);
+            case TAG_STRING:
+                return index + 2 + buf.getUnsignedShort(index);
+            case TAG_LIST: {
+                int type = buf.getUnsignedByte(index);
+                int length = buf.getInt(index + 1);
+                index += 5;
+                switch (type) { //fixed-size elements can be skipped all at once
+                    case TAG_END:
+                        return index;
+                    case TAG_BYTE:
+                        return index + length;
+                    case TAG_SHORT:
+                        return index + length * 2;
+                    case TAG_INT:
+                    case TAG_FLOAT:
+                        return index + length * 4;
+                    case TAG_LONG:
+                    case TAG_DOUBLE:
+                        return index + length * 8;
+                }
+                for (int i = 0; i < length; i++) {
+                    index = skip(buf, index, type);
+                }
+                return index;
+            }
+            case TAG_COMPOUND: {
+                int entry = index;
+                while (tagId(buf, entry) != TAG_END) {
+                    entry = next(buf, entry);
+                }
+                return entry + 1;
+            }
+            case TAG_INT_ARRAY:
+                return index + 4 + buf.getInt(index) * 4;
+            case TAG_LONG_ARRAY:
+                return index + 4 + buf.getInt(index) * 8;
+        }
+        throw new IllegalArgumentException("invalid tag type: " + id);
+    }
+
+    /**
+     * Writes the type and name of a compound entry. The caller is responsible for writing the entry's payload afterwards.
+     *
+     * @param name the entry's encoded name
+     * @return the buffer
+     */
+    public ByteBuf writeTag(@NonNull ByteBuf buf, int id, @NonNull byte[] name) {
+        return buf.writeByte(id).writeShort(name.length).writeBytes(name);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * Streaming PNG encoder.
+ * <p>
+ * The image is split into horizontal bands of scanlines which are requested from a {@link RowSource}, filtered and deflated in parallel. Every band except
+ * the last one is terminated with a sync flush, so the compressed bands can simply be concatenated into a single zlib stream, and the checksums of the
+ * individual bands are combined into the stream's Adler-32. Only a few bands are in memory at any time, regardless of the size of the image.
+ * <p>
+ * Supported formats are 8-bit RGBA, as well as grayscale and indexed color with bit depths of up to 8 bits.
+ *
+ * @author DaPorkchop_
+ */
+public final class PngWriter implements AutoCloseable {
+    public static final int COLOR_GRAYSCALE = 0;
+    public static final int COLOR_INDEXED = 3;
+    public static final int COLOR_RGBA = 6;
+
+    protected static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+    protected static final int TARGET_BAND_BYTES = 4 << 20;
+    protected static final int ADLER_BASE = 65521;
+
+    protected final OutputStream out;
+    protected final CRC32 crc = new CRC32();
+
+    protected final int width;
+    protected final int height;
+    protected final int bitDepth;
+    protected final int colorType;
+    protected final int level;
+    protected final int bytesPerPixel;
+    protected final int rowBytes;
+
+    protected boolean headerWritten;
+
+    /**
+     * @param path      the path to the file to write the image to
+     * @param width     the width of the image
+     * @param height    the height of the image
+     * @param bitDepth  the number of bits per sample
+     * @param colorType the PNG color type, one of {@link #COLOR_GRAYSCALE}, {@link #COLOR_INDEXED} or {@link #COLOR_RGBA}
+     * @param level     the deflate compression level
+     */
+    public PngWriter(@NonNull Path path, int width, int height, int bitDepth, int colorType, int level) throws IOException {
+        this.width = positive(width, "width");
+        this.height = positive(height, "height");
+        this.bitDepth = bitDepth;
+        this.colorType = colorType;
+        this.level = level;
+
+        if (colorType == COLOR_RGBA) {
+            checkArg(bitDepth == 8, "unsupported bit depth for RGBA: %d", bitDepth);
+            this.bytesPerPixel = 4;
+            this.rowBytes = multiplyExact(width, 4);
+        } else {
+            checkArg(colorType == COLOR_GRAYSCALE || colorType == COLOR_INDEXED, "unsupported color type: %d", colorType);
+            checkArg(bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8, "unsupported bit depth: %d", bitDepth);
+            this.bytesPerPixel = 1;
+            this.rowBytes = toInt(((long) width * bitDepth + 7L) >> 3L);
+        }
+
+        this.out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+        this.out.write(SIGNATURE);
+
+        byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = (byte) bitDepth;
+        ihdr[9] = (byte) colorType;
+        this.writeChunk("IHDR", ihdr, 0, ihdr.length);
+    }
+
+    /**
+     * Writes the image's palette. Must be called before {@link #write(RowSource)} if the image uses indexed color.
+     *
+     * @param colors the palette entries, as ARGB colors
+     */
+    public void palette(@NonNull int... colors) throws IOException {
+        checkState(!this.headerWritten, "image data already written");
+
+        byte[] plte = new byte[colors.length * 3];
+        byte[] trns = new byte[colors.length];
+        boolean transparent = false;
+        for (int i = 0; i < colors.length; i++) {
+            plte[i * 3] = (byte) (colors[i] >>> 16);
+            plte[i * 3 + 1] = (byte) (colors[i] >>> 8);
+            plte[i * 3 + 2] = (byte) colors[i];
+            trns[i] = (byte) (colors[i] >>> 24);
+            transparent |= trns[i] != (byte) 0xFF;
+        }
+        this.writeChunk("PLTE", plte, 0, plte.length);
+        if (transparent) {
+            this.writeChunk("tRNS", trns, 0, trns.length);
+        }
+    }
+
+    /**
+     * Encodes and writes all of the image's pixels.
+     *
+     * @param source the source to read rows of pixels from. It will be called from multiple threads at once
+     */
+    public void write(@NonNull RowSource source) throws IOException {
+        checkState(!this.headerWritten, "image data already written");
+        this.headerWritten = true;
+
+        final int rowsPerBand = max(1, TARGET_BAND_BYTES / (this.rowBytes + 1));
+        final int bands = (this.height - 1) / rowsPerBand + 1;
+        final int batchSize = Workers.cpu().parallelism() << 1;
+
+        long adler = 1L;
+        for (int batchStart = 0; batchStart < bands; batchStart += batchSize) {
+            List<Band> batch = IntStream.range(batchStart, min(batchStart + batchSize, bands)).parallel()
+                    .mapToObj(band -> this.encodeBand(source, band * rowsPerBand, min((band + 1) * rowsPerBand, this.height), band == bands - 1))
+                    .collect(Collectors.toList());
+
+            for (Band band : batch) {
+                byte[] data = band.compressed;
+                int length = data.length;
+                if (band.firstRow == 0) { //prefix the zlib header
+                    data = Arrays.copyOf(data, max(data.length, length + 2));
+                    System.arraycopy(data, 0, data, 2, length);
+                    data[0] = 0x78;
+                    data[1] = (byte) (this.level >= 7 ? 0xDA : this.level == 0 || this.level == 1 ? 0x01 : 0x9C);
+                    length += 2;
+                }
+
+                adler = combineAdler32(adler, band.adler, band.rawLength);
+                if (band.lastRow == this.height) { //append the zlib trailer
+                    data = Arrays.copyOf(data, max(data.length, length + 4));
+                    putInt(data, length, (int) adler);
+                    length += 4;
+                }
+                this.writeChunk("IDAT", data, 0, length);
+            }
+        }
+    }
+
+    protected Band encodeBand(@NonNull RowSource source, int firstRow, int lastRow, boolean last) {
+        int stride = this.rowBytes + 1;
+        byte[] raw = new byte[(lastRow - firstRow) * stride];
+        int[] pixels = new int[this.width];
+        for (int z = firstRow; z < lastRow; z++) {
+            source.row(z, pixels);
+            this.encodeRow(pixels, raw, (z - firstRow) * stride);
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(raw, 0, raw.length);
+
+        Deflater deflater = new Deflater(this.level, true);
+        try {
+            deflater.setInput(raw);
+            if (last) {
+                deflater.finish();
+            }
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length >> 2);
+            byte[] buf = new byte[1 << 16];
+            int flush = last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            int n;
+            do {
+                n = deflater.deflate(buf, 0, buf.length, flush);
+                compressed.write(buf, 0, n);
+            } while (last ? !deflater.finished() : n == buf.length);
+
+            return new Band(firstRow, lastRow, compressed.toByteArray(), adler.getValue(), raw.length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    protected void encodeRow(@NonNull int[] pixels, @NonNull byte[] dst, int offset) {
+        if (this.colorType == COLOR_RGBA) {
+            dst[offset++] = 1; //sub filter
+            for (int x = 0, prev = 0; x < this.width; x++) {
+                int argb = pixels[x];
+                dst[offset++] = (byte) ((argb >>> 16) - (prev >>> 16));
+                dst[offset++] = (byte) ((argb >>> 8) - (prev >>> 8));
+                dst[offset++] = (byte) (argb - prev);
+                dst[offset++] = (byte) ((argb >>> 24) - (prev >>> 24));
+                prev = argb;
+            }
+        } else {
+            dst[offset++] = 0; //no filter
+            int bitDepth = this.bitDepth;
+            int sampleMask = (1 << bitDepth) - 1;
+            int bits = 0;
+            int bitCount = 0;
+            for (int x = 0; x < this.width; x++) {
+                bits = (bits << bitDepth) | (pixels[x] & sampleMask);
+                if ((bitCount += bitDepth) == 8) {
+                    dst[offset++] = (byte) bits;
+                    bits = 0;
+                    bitCount = 0;
+                }
+            }
+            if (bitCount != 0) { //pad the last byte
+                dst[offset] = (byte) (bits << (8 - bitCount));
+            }
+        }
+    }
+
+    protected void writeChunk(@NonNull String type, @NonNull byte[] data, int offset, int length) throws IOException {
+        byte[] header = new byte[8];
+        putInt(header, 0, length);
+        System.arraycopy(type.getBytes(StandardCharsets.US_ASCII), 0, header, 4, 4);
+
+        this.crc.reset();
+        this.crc.update(header, 4, 4);
+        this.crc.update(data, offset, length);
+
+        byte[] trailer = new byte[4];
+        putInt(trailer, 0, (int) this.crc.getValue());
+
+        this.out.write(header);
+        this.out.write(data, offset, length);
+        this.out.write(trailer);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.headerWritten) {
+                this.writeChunk("IEND", new byte[0], 0, 0);
+            }
+        } finally {
+            this.out.close();
+        }
+    }
+
+    protected static void putInt(@NonNull byte[] dst, int offset, int value) {
+        dst[offset] = (byte) (value >>> 24);
+        dst[offset + 1] = (byte) (value >>> 16);
+        dst[offset + 2] = (byte) (value >>> 8);
+        dst[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Computes the Adler-32 checksum of the concatenation of two byte sequences from the checksums of the individual sequences, in the same way as
+     * zlib's {@code adler32_combine}.
+     *
+     * @param adler1  the checksum of the first sequence
+     * @param adler2  the checksum of the second sequence
+     * @param length2 the length of the second sequence
+     * @return the checksum of both sequences
+     */
+    protected static long combineAdler32(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFFL;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFFL) + ADLER_BASE - 1L;
+        sum2 += ((adler1 >>> 16L) & 0xFFFFL) + ((adler2 >>> 16L) & 0xFFFFL) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE << 1) {
+            sum2 -= ADLER_BASE << 1;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16L);
+    }
+
+    /**
+     * Provides the pixels of an image, one row at a time.
+     */
+    @FunctionalInterface
+    public interface RowSource {
+        /**
+         * Gets a row of pixels.
+         * <p>
+         * For RGBA images every pixel is an ARGB color, otherwise it is a grayscale sample or palette index.
+         *
+         * @param z   the index of the row
+         * @param dst the array to store the row's pixels in
+         */
+        void row(int z, @NonNull int[] dst);
+    }
+
+    @AllArgsConstructor
+    protected static final class Band {
+        protected final int firstRow;
+        protected final int lastRow;
+        protected final byte[] compressed;
+        protected final long adler;
+        protected final int rawLength;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+
+/**
+ * A file which caches a fixed-size block of pixels for each region, along with a stamp identifying the version of the region it was computed from.
+ * <p>
+ * The file consists of a short header, the pixel blocks one after another, and an index of {@code (key, stamp, block)} entries sorted by key, followed by
+ * the number of index entries. Opening a cache only reads the index, blocks are read on demand with positional reads.
+ * <p>
+ * New blocks are appended after the existing ones (overwriting the old index, which is kept in memory), and {@link #finish(LongPredicate)} writes the new
+ * index behind them. The header is marked as dirty while the cache is open, so a run which doesn't finish leaves behind an invalid cache, which is discarded
+ * the next time it is opened. Blocks which were replaced stay in the file until they make up more than half of it, at which point the live blocks are
+ * copied into a new file.
+ * <p>
+ * {@link #get(long, long, int[])} and {@link #put(long, long, int[])} are thread-safe.
+ *
+ * @author DaPorkchop_
+ */
+public final class RegionCache implements AutoCloseable {
+    protected static final int MAGIC = 0x52474E43;
+    protected static final int VERSION = 1;
+    protected static final int DIRTY = 0;
+    protected static final int HEADER_BYTES = 12;
+    protected static final int INDEX_ENTRY_BYTES = 24;
+
+    protected static final OpenOption[] OPEN_OPTIONS = { StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE };
+    protected static final OpenOption[] WRITE_OPEN_OPTIONS = { StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
+
+    protected final Path path;
+    protected final int pixels;
+    protected final long blockBytes;
+    protected final ThreadLocal<ByteBuffer> buffers;
+    protected final FileChannel channel;
+
+    //the index of the existing cache, sorted by key
+    protected final long[] oldKeys;
+    protected final long[] oldStamps;
+    protected final long[] oldBlocks;
+
+    //the blocks which were put since the cache was opened
+    protected long[] keys = new long[1024];
+    protected long[] stamps = new long[1024];
+    protected long[] blocks = new long[1024];
+    protected int count;
+    protected long blockCount;
+
+    /**
+     * @param path   the path to the cache file
+     * @param pixels the number of pixels in each block. If an existing cache uses a different number, it is discarded
+     */
+    public RegionCache(@NonNull Path path, int pixels) throws IOException {
+        this.path = path;
+        this.pixels = positive(pixels, "pixels");
+        this.blockBytes = pixels * 4L;
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(pixels * 4));
+        this.channel = FileChannel.open(path, OPEN_OPTIONS);
+
+        long[] oldKeys = new long[0];
+        long[] oldStamps = new long[0];
+        long[] oldBlocks = new long[0];
+        try {
+            long size = this.channel.size();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            if (size >= HEADER_BYTES + 4) {
+                Utils.readFully(this.channel, header, 0L);
+                Utils.readFully(this.channel, trailer, size - 4L);
+            }
+
+            int count = trailer.getInt(0);
+            long indexPos = size - 4L - (long) count * INDEX_ENTRY_BYTES;
+            if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION && header.getInt(8) == pixels
+                && count >= 0 && indexPos >= HEADER_BYTES && (indexPos - HEADER_BYTES) % this.blockBytes == 0L) {
+                ByteBuffer index = ByteBuffer.allocate(toInt((long) count * INDEX_ENTRY_BYTES));
+                Utils.readFully(this.channel, index, indexPos);
+                index.flip();
+
+                oldKeys = new long[count];
+                oldStamps = new long[count];
+                oldBlocks = new long[count];
+                for (int i = 0; i < count; i++) {
+                    oldKeys[i] = index.getLong();
+                    oldStamps[i] = index.getLong();
+                    oldBlocks[i] = index.getLong();
+                }
+                this.blockCount = (indexPos - HEADER_BYTES) / this.blockBytes;
+            } else {
+                if (size != 0L) {
+                    logger.warn("Discarding invalid or incompatible cache file %s", path);
+                }
+                this.channel.truncate(0L);
+            }
+            this.writeHeader(this.channel, DIRTY);
+        } catch (IOException | RuntimeException e) {
+            this.channel.close();
+            throw e;
+        }
+        this.oldKeys = oldKeys;
+        this.oldStamps = oldStamps;
+        this.oldBlocks = oldBlocks;
+    }
+
+    /**
+     * @return the number of regions in the existing cache
+     */
+    public int oldSize() {
+        return this.oldKeys.length;
+    }
+
+    /**
+     * Reads a block from the existing cache.
+     *
+     * @param key   the region's key
+     * @param stamp the stamp of the current version of the region
+     * @param dst   the array to read the pixels into
+     * @return whether or not the cache contained a block for the given key with the given stamp. If {@code false}, the contents of {@code dst} are unchanged
+     */
+    public boolean get(long key, long stamp, @NonNull int[] dst) throws IOException {
+        int i = Arrays.binarySearch(this.oldKeys, key);
+        if (i < 0 || this.oldStamps[i] != stamp) {
+            return false;
+        }
+
+        this.readBlock(this.channel, this.oldBlocks[i], dst);
+        return true;
+    }
+
+    /**
+     * Stores a block in the cache, replacing any existing block for the same key. Each key may only be put once.
+     *
+     * @param key   the region's key
+     * @param stamp the stamp of the version of the region the pixels were computed from
+     * @param src   the array containing the pixels
+     */
+    public void put(long key, long stamp, @NonNull int[] src) throws IOException {
+        long block;
+        synchronized (this) {
+            int i = this.count++;
+            if (i == this.keys.length) {
+                this.keys = Arrays.copyOf(this.keys, i << 1);
+                this.stamps = Arrays.copyOf(this.stamps, i << 1);
+                this.blocks = Arrays.copyOf(this.blocks, i << 1);
+            }
+            block = this.blockCount++;
+            this.keys[i] = key;
+            this.stamps[i] = stamp;
+            this.blocks[i] = block;
+        }
+
+        this.writeBlock(this.channel, block, src);
+    }
+
+    /**
+     * Writes the index, making all of the blocks which were put since the cache was opened visible to the next run.
+     *
+     * @param keep a predicate which selects the blocks from the existing cache which should be kept if they weren't replaced
+     */
+    public synchronized void finish(@NonNull LongPredicate keep) throws IOException {
+        long[] replaced = Arrays.copyOf(this.keys, this.count);
+        Arrays.sort(replaced);
+
+        //every key is only put once, so the position of each new entry's key in the sorted keys is its position in the new index
+        int[] newOrder = new int[this.count];
+        for (int i = 0; i < this.count; i++) {
+            newOrder[Arrays.binarySearch(replaced, this.keys[i])] = i;
+        }
+
+        //append the surviving old entries to the new ones
+        int total = this.count;
+        long[] keys = Arrays.copyOf(this.keys, this.count + this.oldKeys.length);
+        long[] stamps = Arrays.copyOf(this.stamps, keys.length);
+        long[] blocks = Arrays.copyOf(this.blocks, keys.length);
+        for (int i = 0; i < this.oldKeys.length; i++) {
+            long key = this.oldKeys[i];
+            if (Arrays.binarySearch(replaced, key) < 0 && keep.test(key)) {
+                keys[total] = key;
+                stamps[total] = this.oldStamps[i];
+                blocks[total] = this.oldBlocks[i];
+                total++;
+            }
+        }
+
+        //the old entries are already sorted by key, so the index can be ordered by merging them with the sorted new entries
+        int[] order = new int[total];
+        for (int i = 0, newEntry = 0, oldEntry = this.count; i < total; i++) {
+            if (oldEntry < total && (newEntry == this.count || keys[oldEntry] < keys[newOrder[newEntry]])) {
+                order[i] = oldEntry++;
+            } else {
+                order[i] = newOrder[newEntry++];
+            }
+        }
+
+        if (this.blockCount > 2L * total + 1024L) { //most of the file is dead blocks, copy the live ones into a new file
+            logger.info("Compacting cache file %s...", this.path);
+            Path tmpPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+            try (FileChannel dst = FileChannel.open(tmpPath, WRITE_OPEN_OPTIONS)) {
+                int[] tmp = new int[this.pixels];
+                for (int i = 0; i < total; i++) {
+                    int entry = order[i];
+                    this.readBlock(this.channel, blocks[entry], tmp);
+                    this.writeBlock(dst, i, tmp);
+                    blocks[entry] = i;
+                }
+                this.writeIndex(dst, HEADER_BYTES + total * this.blockBytes, keys, stamps, blocks, order, total);
+                this.writeHeader(dst, VERSION);
+            }
+            this.channel.close();
+            Files.move(tmpPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            this.writeIndex(this.channel, HEADER_BYTES + this.blockCount * this.blockBytes, keys, stamps, blocks, order, total);
+            this.writeHeader(this.channel, VERSION);
+            this.channel.close();
+        }
+    }
+
+    protected void writeHeader(@NonNull FileChannel channel, int version) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(version).putInt(this.pixels).flip();
+        Utils.writeFully(channel, header, 0L);
+    }
+
+    protected void writeIndex(@NonNull FileChannel channel, long indexPos, @NonNull long[] keys, @NonNull long[] stamps, @NonNull long[] blocks,
+                              @NonNull int[] order, int total) throws IOException {
+        ByteBuffer index = ByteBuffer.allocate(total * INDEX_ENTRY_BYTES + 4);
+        for (int entry : order) {
+            index.putLong(keys[entry]).putLong(stamps[entry]).putLong(blocks[entry]);
+        }
+        index.putInt(total).flip();
+        Utils.writeFully(channel, index, indexPos);
+        channel.truncate(indexPos + index.capacity());
+    }
+
+    protected void readBlock(@NonNull FileChannel channel, long block, @NonNull int[] dst) throws IOException {
+        ByteBuffer buffer = this.buffers.get();
+        buffer.clear();
+        Utils.readFully(channel, buffer, HEADER_BYTES + block * this.blockBytes);
+        buffer.flip();
+        buffer.asIntBuffer().get(dst, 0, this.pixels);
+    }
+
+    protected void writeBlock(@NonNull FileChannel channel, long block, @NonNull int[] src) throws IOException {
+        ByteBuffer buffer = this.buffers.get();
+        buffer.clear();
+        buffer.asIntBuffer().put(src, 0, this.pixels);
+        Utils.writeFully(channel, buffer, HEADER_BYTES + block * this.blockBytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
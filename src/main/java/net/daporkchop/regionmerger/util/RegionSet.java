@@ -0,0 +1,260 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import net.daporkchop.lib.common.math.BinMath;
+import net.daporkchop.lib.math.vector.i.Vec2i;
+
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * An open-addressing hash set of region positions.
+ * <p>
+ * Positions are stored as {@link BinMath#packXY(int, int) packed} {@code long}s in flat primitive arrays, so each region costs 9 bytes (at full load)
+ * rather than a {@link Vec2i} and a hash table node. {@link Vec2i}s are only created when iterating over the set as a {@link Collection}.
+ * <p>
+ * Not thread-safe for writes, but any number of threads may read from a set concurrently once it is no longer being modified. Elements can't be removed.
+ *
+ * @author DaPorkchop_
+ */
+public final class RegionSet extends AbstractSet<Vec2i> {
+    protected static final int DEFAULT_CAPACITY = 256;
+
+    protected long[] keys;
+    protected boolean[] used;
+    protected int size;
+
+    public RegionSet() {
+        this.allocate(DEFAULT_CAPACITY);
+    }
+
+    protected void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.used = new boolean[capacity];
+    }
+
+    protected static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    public boolean add(int x, int z) {
+        return this.addKey(BinMath.packXY(x, z));
+    }
+
+    @Override
+    public boolean add(@NonNull Vec2i pos) {
+        return this.addKey(BinMath.packXY(pos.getX(), pos.getY()));
+    }
+
+    /**
+     * Adds the region with the given {@link BinMath#packXY(int, int) packed} position to this set.
+     *
+     * @return whether or not the region wasn't already present
+     */
+    public boolean addKey(long key) {
+        if (this.size >= (this.keys.length >> 1) + (this.keys.length >> 2)) { //load factor 0.75
+            this.grow();
+        }
+
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while (this.used[slot]) {
+            if (this.keys[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        this.used[slot] = true;
+        this.keys[slot] = key;
+        this.size++;
+        return true;
+    }
+
+    @Override
+    public boolean addAll(@NonNull Collection<? extends Vec2i> c) {
+        if (!(c instanceof RegionSet)) {
+            return super.addAll(c);
+        }
+
+        RegionSet other = (RegionSet) c;
+        boolean modified = false;
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.used[slot]) {
+                modified |= this.addKey(other.keys[slot]);
+            }
+        }
+        return modified;
+    }
+
+    public boolean contains(int x, int z) {
+        return this.containsKey(BinMath.packXY(x, z));
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Vec2i)) {
+            return false;
+        }
+        Vec2i pos = (Vec2i) o;
+        return this.containsKey(BinMath.packXY(pos.getX(), pos.getY()));
+    }
+
+    /**
+     * Checks whether or not the region with the given {@link BinMath#packXY(int, int) packed} position is present in this set.
+     */
+    public boolean containsKey(long key) {
+        int mask = this.keys.length - 1;
+        int slot = hash(key) & mask;
+        while (this.used[slot]) {
+            if (this.keys[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return a stream over the {@link BinMath#packXY(int, int) packed} positions of all regions in this set
+     */
+    public LongStream keys() {
+        return IntStream.range(0, this.keys.length).filter(slot -> this.used[slot]).mapToLong(slot -> this.keys[slot]);
+    }
+
+    @Override
+    public Iterator<Vec2i> iterator() {
+        return new Iterator<Vec2i>() {
+            int slot = RegionSet.this.nextUsed(0, RegionSet.this.keys.length);
+
+            @Override
+            public boolean hasNext() {
+                return this.slot < RegionSet.this.keys.length;
+            }
+
+            @Override
+            public Vec2i next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Vec2i pos = RegionSet.this.position(this.slot);
+                this.slot = RegionSet.this.nextUsed(this.slot + 1, RegionSet.this.keys.length);
+                return pos;
+            }
+        };
+    }
+
+    @Override
+    public Spliterator<Vec2i> spliterator() {
+        return new SlotSpliterator(0, this.keys.length);
+    }
+
+    protected int nextUsed(int slot, int end) {
+        while (slot < end && !this.used[slot]) {
+            slot++;
+        }
+        return slot;
+    }
+
+    protected Vec2i position(int slot) {
+        long key = this.keys[slot];
+        return new Vec2i(BinMath.unpackX(key), BinMath.unpackY(key));
+    }
+
+    protected void grow() {
+        long[] oldKeys = this.keys;
+        boolean[] oldUsed = this.used;
+
+        this.allocate(oldKeys.length << 1);
+        this.size = 0;
+        for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+            if (oldUsed[oldSlot]) {
+                this.addKey(oldKeys[oldSlot]);
+            }
+        }
+    }
+
+    /**
+     * Splits the set by ranges of slots, so that parallel streams over large sets are divided evenly without having to copy the positions first.
+     */
+    protected final class SlotSpliterator implements Spliterator<Vec2i> {
+        protected int slot;
+        protected final int end;
+
+        protected SlotSpliterator(int slot, int end) {
+            this.slot = slot;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(@NonNull Consumer<? super Vec2i> action) {
+            this.slot = RegionSet.this.nextUsed(this.slot, this.end);
+            if (this.slot < this.end) {
+                action.accept(RegionSet.this.position(this.slot++));
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(@NonNull Consumer<? super Vec2i> action) {
+            for (int slot = RegionSet.this.nextUsed(this.slot, this.end); slot < this.end; slot = RegionSet.this.nextUsed(slot + 1, this.end)) {
+                action.accept(RegionSet.this.position(slot));
+            }
+            this.slot = this.end;
+        }
+
+        @Override
+        public Spliterator<Vec2i> trySplit() {
+            int mid = (this.slot + this.end) >>> 1;
+            if (mid - this.slot < 64) {
+                return null;
+            }
+            Spliterator<Vec2i> prefix = new SlotSpliterator(this.slot, mid);
+            this.slot = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return (long) RegionSet.this.size * (this.end - this.slot) / RegionSet.this.keys.length;
+        }
+
+        @Override
+        public int characteristics() {
+            return DISTINCT | NONNULL;
+        }
+    }
+}
@@ -23,6 +23,9 @@ package net.daporkchop.regionmerger.util;
 import io.netty.buffer.ByteBuf;
 import lombok.NonNull;
 
+import java.util.Arrays;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
 import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
 
 /**
@@ -51,6 +54,16 @@ public enum Sort {
             }
             return best;
         }
+
+        @Override
+        public void selectAll(@NonNull ByteBuf[] regions, int count, @NonNull int[] winners, @NonNull int[] offsets) {
+            reset(winners, offsets);
+            int[] timestamps = TIMESTAMPS_CACHE.get();
+            Arrays.fill(timestamps, Integer.MIN_VALUE);
+            for (int i = 0; i < count; i++) {
+                HeaderOps.INSTANCE.selectYoungest(regions[i].nioBuffer(0, HEADER_BYTES), i, timestamps, winners, offsets);
+            }
+        }
     },
     OLDEST {
         @Override
@@ -72,6 +85,16 @@ public enum Sort {
             }
             return best;
         }
+
+        @Override
+        public void selectAll(@NonNull ByteBuf[] regions, int count, @NonNull int[] winners, @NonNull int[] offsets) {
+            reset(winners, offsets);
+            int[] timestamps = TIMESTAMPS_CACHE.get();
+            Arrays.fill(timestamps, Integer.MAX_VALUE);
+            for (int i = 0; i < count; i++) {
+                HeaderOps.INSTANCE.selectOldest(regions[i].nioBuffer(0, HEADER_BYTES), i, timestamps, winners, offsets);
+            }
+        }
     },
     INPUT_ORDER {
         @Override
@@ -86,7 +109,35 @@ public enum Sort {
             }
             return null;
         }
+
+        @Override
+        public void selectAll(@NonNull ByteBuf[] regions, int count, @NonNull int[] winners, @NonNull int[] offsets) {
+            reset(winners, offsets);
+            for (int i = 0; i < count; i++) {
+                HeaderOps.INSTANCE.selectFirst(regions[i].nioBuffer(0, SECTOR_BYTES), i, winners, offsets);
+            }
+        }
     };
 
+    protected static final ThreadLocal<int[]> TIMESTAMPS_CACHE = ThreadLocal.withInitial(() -> new int[HeaderOps.CHUNKS]);
+
+    protected static void reset(@NonNull int[] winners, @NonNull int[] offsets) {
+        checkArg(winners.length >= HeaderOps.CHUNKS && offsets.length >= HeaderOps.CHUNKS, "winners and offsets must have at least %d elements", HeaderOps.CHUNKS);
+        Arrays.fill(winners, 0, HeaderOps.CHUNKS, -1);
+        Arrays.fill(offsets, 0, HeaderOps.CHUNKS, 0);
+    }
+
     public abstract ByteBuf select(@NonNull ByteBuf[] regions, int count, int x, int z);
+
+    /**
+     * Selects the region for every chunk at once.
+     * <p>
+     * This gives the same results as calling {@link #select(ByteBuf[], int, int, int)} for every chunk, but works on whole header tables at a time
+     * using {@link HeaderOps}.
+     *
+     * @param winners an array to store the index of the selected region for every chunk in, or {@code -1} if no region contains the chunk. Indexed
+     *                by {@link ChunkMask#index(int, int)}
+     * @param offsets an array to store the offset table entry of the selected region for every chunk in, or {@code 0} if no region contains the chunk
+     */
+    public abstract void selectAll(@NonNull ByteBuf[] regions, int count, @NonNull int[] winners, @NonNull int[] offsets);
 }
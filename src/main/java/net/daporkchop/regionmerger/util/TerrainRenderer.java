@@ -0,0 +1,513 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import lombok.NonNull;
+import net.daporkchop.lib.compression.context.PInflater;
+import net.daporkchop.lib.compression.zlib.Zlib;
+import net.daporkchop.lib.compression.zlib.ZlibMode;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+import static net.daporkchop.regionmerger.util.NBT.*;
+
+/**
+ * Renders a top-down view of the terrain in a region, with one pixel per block column.
+ * <p>
+ * Each pixel's color is determined by the surface block of the column, which is found using the chunk's heightmap, and is shaded depending on the height
+ * of the column compared to the one north of it. Chunks are decoded with {@link NBT}, so only the heightmap, the palettes and the block data of the
+ * sections containing the surface are ever looked at, and only palette entries which actually end up on the surface have their names decoded.
+ * <p>
+ * Chunks from Minecraft 1.12 (numeric block IDs), 1.13-1.17 and 1.18+ are supported.
+ * <p>
+ * All buffers are reused between regions, so instances are not thread-safe and should be kept in a {@link ThreadLocal}.
+ *
+ * @author DaPorkchop_
+ */
+public final class TerrainRenderer {
+    public static final int SIZE = 32 * 16;
+
+    protected static final byte[] LEVEL = name("Level");
+    protected static final byte[] HEIGHTMAPS = name("Heightmaps");
+    protected static final byte[] MOTION_BLOCKING = name("MOTION_BLOCKING");
+    protected static final byte[] WORLD_SURFACE = name("WORLD_SURFACE");
+    protected static final byte[] LEGACY_HEIGHTMAP = name("HeightMap");
+    protected static final byte[] SECTIONS = name("sections");
+    protected static final byte[] LEGACY_SECTIONS = name("Sections");
+    protected static final byte[] Y_POS = name("yPos");
+    protected static final byte[] Y = name("Y");
+    protected static final byte[] PALETTE = name("palette");
+    protected static final byte[] DATA = name("data");
+    protected static final byte[] BLOCK_STATES = name("block_states");
+    protected static final byte[] LEGACY_PALETTE = name("Palette");
+    protected static final byte[] LEGACY_BLOCK_STATES = name("BlockStates");
+    protected static final byte[] LEGACY_BLOCKS = name("Blocks");
+    protected static final byte[] NAME = name("Name");
+
+    protected static final int NO_HEIGHT = Integer.MIN_VALUE;
+    protected static final int UNRESOLVED = 0;
+    protected static final int AIR = 1; //has an alpha of 0, so it can never be confused with a real color
+    protected static final int DEFAULT_COLOR = 0xFF8C8C8C;
+
+    protected static final Map<String, Integer> COLORS = new HashMap<>();
+    protected static final String[] LEGACY_NAMES = new String[256];
+
+    static {
+        color(AIR, "air", "cave_air", "void_air", "barrier", "light", "structure_void");
+        color(0x7FB238, "grass_block", "grass", "short_grass", "tall_grass", "fern", "large_fern", "slime_block", "sugar_cane");
+        color(0x007C00, "vine", "lily_pad", "cactus", "bamboo", "moss_block", "moss_carpet", "azalea", "flowering_azalea");
+        color(0x4040FF, "water", "bubble_column", "seagrass", "tall_seagrass", "kelp", "kelp_plant");
+        color(0xD45A12, "lava", "magma_block");
+        color(0xF7E9A3, "sand", "sandstone", "smooth_sandstone", "cut_sandstone", "chiseled_sandstone", "glowstone", "birch_planks", "end_stone_bricks");
+        color(0xD87F33, "red_sand", "red_sandstone", "smooth_red_sandstone", "cut_red_sandstone", "pumpkin", "carved_pumpkin", "acacia_planks", "orange_wool");
+        color(0x707070, "stone", "cobblestone", "mossy_cobblestone", "stone_bricks", "andesite", "gravel", "ore", "furnace", "smooth_stone", "tuff", "stone_slab");
+        color(0x646464, "deepslate", "cobbled_deepslate", "bedrock", "dispenser", "dropper");
+        color(0x976D4D, "dirt", "coarse_dirt", "rooted_dirt", "farmland", "dirt_path", "grass_path", "granite", "jungle_planks", "brown_mushroom_block");
+        color(0x815631, "podzol", "spruce_planks", "spruce_log", "oak_log", "mud");
+        color(0x8F7748, "oak_planks", "crafting_table", "bookshelf", "chest", "note_block", "dead_bush", "composter");
+        color(0xFFFFFF, "snow", "snow_block", "powder_snow", "white_wool", "white_concrete", "quartz_block", "diorite");
+        color(0xA0A0FF, "ice", "packed_ice", "blue_ice", "frosted_ice");
+        color(0xA4A8B8, "clay");
+        color(0x7F3FB2, "mycelium", "purpur_block", "purple_wool");
+        color(0x191919, "obsidian", "crying_obsidian", "coal_block", "black_wool", "black_concrete", "blackstone", "basalt");
+        color(0x700200, "netherrack", "nether_bricks", "crimson_nylium", "nether_wart_block", "red_nether_bricks");
+        color(0x167E86, "warped_nylium", "warped_wart_block");
+        color(0x664C33, "soul_sand", "soul_soil", "dark_oak_planks", "dark_oak_log");
+        color(0xDBD3A0, "end_stone");
+        color(0xD1B1A1, "terracotta", "white_terracotta", "calcite");
+        color(0xFF0000, "tnt", "redstone_block", "red_mushroom_block", "red_wool");
+        color(0x993333, "bricks", "brick_block", "red_concrete", "red_terracotta");
+        color(0xA7A7A7, "iron_block", "iron_bars", "anvil", "hopper", "cauldron", "heavy_weighted_pressure_plate");
+        color(0xFAEE4D, "gold_block", "hay_block", "sponge", "yellow_wool");
+        color(0x5CDBD5, "diamond_block", "prismarine_bricks", "dark_prismarine", "beacon");
+        color(0x4C7F99, "prismarine", "cyan_wool");
+        color(0x00D93A, "emerald_block");
+
+        //block names used in 1.12 (before the flattening), indexed by numeric block ID
+        String[] legacy = {
+                "air", "stone", "grass_block", "dirt", "cobblestone", "oak_planks", "oak_sapling", "bedrock", "water", "water",
+                "lava", "lava", "sand", "gravel", "gold_ore", "iron_ore", "coal_ore", "oak_log", "oak_leaves", "sponge",
+                "glass", "lapis_ore", "lapis_block", "dispenser", "sandstone", "note_block", "red_bed", "powered_rail", "detector_rail", "sticky_piston",
+                "cobweb", "grass", "dead_bush", "piston", "piston_head", "white_wool", "moving_piston", "dandelion", "poppy", "brown_mushroom",
+                "red_mushroom", "gold_block", "iron_block", "stone_slab", "stone_slab", "bricks", "tnt", "bookshelf", "mossy_cobblestone", "obsidian",
+                "torch", "fire", "spawner", "oak_stairs", "chest", "redstone_wire", "diamond_ore", "diamond_block", "crafting_table", "wheat",
+                "farmland", "furnace", "furnace", "oak_sign", "oak_door", "ladder", "rail", "cobblestone_stairs", "oak_wall_sign", "lever",
+                "stone_pressure_plate", "iron_door", "oak_pressure_plate", "redstone_ore", "redstone_ore", "redstone_torch", "redstone_torch", "stone_button", "snow", "ice",
+                "snow_block", "cactus", "clay", "sugar_cane", "jukebox", "oak_fence", "pumpkin", "netherrack", "soul_sand", "glowstone",
+                "nether_portal", "jack_o_lantern", "cake", "repeater", "repeater", "white_stained_glass", "oak_trapdoor", "infested_stone", "stone_bricks", "brown_mushroom_block",
+                "red_mushroom_block", "iron_bars", "glass_pane", "melon", "pumpkin_stem", "melon_stem", "vine", "oak_fence_gate", "brick_stairs", "stone_brick_stairs",
+                "mycelium", "lily_pad", "nether_bricks", "nether_brick_fence", "nether_brick_stairs", "nether_wart", "enchanting_table", "brewing_stand", "cauldron", "end_portal",
+                "end_portal_frame", "end_stone", "dragon_egg", "redstone_lamp", "redstone_lamp", "oak_slab", "oak_slab", "cocoa", "sandstone_stairs", "emerald_ore",
+                "ender_chest", "tripwire_hook", "tripwire", "emerald_block", "spruce_stairs", "birch_stairs", "jungle_stairs", "command_block", "beacon", "cobblestone_wall",
+                "flower_pot", "carrots", "potatoes", "oak_button", "skeleton_skull", "anvil", "trapped_chest", "light_weighted_pressure_plate", "heavy_weighted_pressure_plate", "comparator",
+                "comparator", "daylight_detector", "redstone_block", "nether_quartz_ore", "hopper", "quartz_block", "quartz_stairs", "activator_rail", "dropper", "white_terracotta",
+                "white_stained_glass_pane", "acacia_leaves", "acacia_log", "acacia_stairs", "dark_oak_stairs", "slime_block", "barrier", "iron_trapdoor", "prismarine", "sea_lantern",
+                "hay_block", "white_carpet", "terracotta", "coal_block", "packed_ice", "sunflower", "white_banner", "white_wall_banner", "daylight_detector", "red_sandstone",
+                "red_sandstone_stairs", "red_sandstone_slab", "red_sandstone_slab", "spruce_fence_gate", "birch_fence_gate", "jungle_fence_gate", "dark_oak_fence_gate", "acacia_fence_gate", "spruce_fence", "birch_fence",
+                "jungle_fence", "dark_oak_fence", "acacia_fence", "spruce_door", "birch_door", "jungle_door", "acacia_door", "dark_oak_door", "end_rod", "chorus_plant",
+                "chorus_flower", "purpur_block", "purpur_pillar", "purpur_stairs", "purpur_slab", "purpur_slab", "end_stone_bricks", "beetroots", "grass_path", "end_gateway",
+                "repeating_command_block", "chain_command_block", "frosted_ice", "magma_block", "nether_wart_block", "red_nether_bricks", "bone_block", "structure_void", "observer", "white_shulker_box",
+                "orange_shulker_box", "magenta_shulker_box", "light_blue_shulker_box", "yellow_shulker_box", "lime_shulker_box", "pink_shulker_box", "gray_shulker_box", "light_gray_shulker_box", "cyan_shulker_box", "purple_shulker_box",
+                "blue_shulker_box", "brown_shulker_box", "green_shulker_box", "red_shulker_box", "black_shulker_box", "white_glazed_terracotta", "orange_glazed_terracotta", "magenta_glazed_terracotta", "light_blue_glazed_terracotta", "yellow_glazed_terracotta",
+                "lime_glazed_terracotta", "pink_glazed_terracotta", "gray_glazed_terracotta", "light_gray_glazed_terracotta", "cyan_glazed_terracotta", "purple_glazed_terracotta", "blue_glazed_terracotta", "brown_glazed_terracotta", "green_glazed_terracotta", "red_glazed_terracotta",
+                "black_glazed_terracotta", "white_concrete", "white_concrete_powder"
+        };
+        System.arraycopy(legacy, 0, LEGACY_NAMES, 0, legacy.length);
+        Arrays.fill(LEGACY_NAMES, legacy.length, LEGACY_NAMES.length, "structure_block");
+    }
+
+    protected static void color(int color, @NonNull String... names) {
+        for (String name : names) {
+            COLORS.put(name, color == AIR ? AIR : 0xFF000000 | color);
+        }
+    }
+
+    /**
+     * Gets the color of the block with the given name.
+     * <p>
+     * Blocks which aren't listed explicitly are guessed based on their name, falling back to {@link #DEFAULT_COLOR}.
+     */
+    public static int colorOf(@NonNull String name) {
+        if (name.startsWith("minecraft:")) {
+            name = name.substring("minecraft:".length());
+        }
+
+        Integer color = COLORS.get(name);
+        if (color != null) {
+            return color;
+        } else if (name.endsWith("_leaves") || name.endsWith("_sapling")) {
+            return 0xFF007C00;
+        } else if (name.endsWith("_log") || name.endsWith("_wood") || name.endsWith("_planks") || name.endsWith("_stem") || name.endsWith("_hyphae")) {
+            return 0xFF8F7748;
+        } else if (name.endsWith("_ore")) {
+            return 0xFF707070;
+        } else if (name.endsWith("_terracotta")) {
+            return 0xFF9F5224;
+        } else if (name.endsWith("glass") || name.endsWith("glass_pane") || name.endsWith("_button") || name.endsWith("torch") || name.endsWith("_sign")) {
+            return AIR; //look through blocks which are (mostly) transparent
+        }
+        return DEFAULT_COLOR;
+    }
+
+    protected final PInflater inflater = Zlib.PROVIDER.inflater(Zlib.PROVIDER.inflateOptions().withMode(ZlibMode.AUTO));
+    protected final ByteBuf chunk = PooledByteBufAllocator.DEFAULT.ioBuffer(1 << 20);
+
+    protected final int[] colors = new int[SIZE * SIZE];
+    protected final int[] heights = new int[SIZE * SIZE];
+    protected final Map<String, Integer> colorCache = new HashMap<>();
+
+    //state of the chunk currently being decoded
+    protected final int[] columnHeights = new int[16 * 16];
+    protected int minY;
+    protected int maxY = Integer.MIN_VALUE;
+    protected int heightmap = -1;
+    protected int heightmapId;
+    protected int heightmapPriority;
+
+    //sections are stored in slots, which are looked up by section Y coordinate through sectionSlots
+    protected final int[] sectionSlots = new int[256];
+    protected int sectionCount;
+    protected int[] sectionYs = new int[32];
+    protected int[] sectionBlocks = new int[32];
+    protected int[] sectionData = new int[32];
+    protected int[] sectionBits = new int[32];
+    protected int[] sectionPaletteBase = new int[32];
+    protected int[] sectionPaletteSize = new int[32];
+
+    //the region selected for every chunk, and its offset table entry
+    protected final int[] winners = new int[HeaderOps.CHUNKS];
+    protected final int[] offsets = new int[HeaderOps.CHUNKS];
+
+    //the name indices and resolved colors of the palette entries of all sections
+    protected int paletteCount;
+    protected int[] paletteNames = new int[256];
+    protected int[] paletteColors = new int[256];
+
+    /**
+     * Renders the terrain in a region.
+     *
+     * @param regions the data of the region from every source which contains it. If a chunk is present in more than one of them, the youngest one is used
+     * @param count   the number of regions
+     * @param dst     the array to store the {@link #SIZE}x{@link #SIZE} ARGB pixels in. Pixels without any terrain are set to {@code 0}
+     */
+    public void render(@NonNull ByteBuf[] regions, int count, @NonNull int[] dst) {
+        Arrays.fill(this.colors, AIR);
+        Arrays.fill(this.heights, NO_HEIGHT);
+
+        Sort.YOUNGEST.selectAll(regions, count, this.winners, this.offsets);
+        for (int cz = 0; cz < 32; cz++) {
+            for (int cx = 0; cx < 32; cx++) {
+                int winner = this.winners[ChunkMask.index(cx, cz)];
+                if (winner >= 0) {
+                    try {
+                        this.renderChunk(regions[winner], cx, cz);
+                    } catch (RuntimeException e) {
+                        logger.warn("Unable to render chunk (%d,%d) in region: %s", cx, cz, e);
+                    } finally {
+                        this.resetChunk();
+                    }
+                }
+            }
+        }
+
+        //shade every column by comparing its height to the one north of it
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            int color = this.colors[i];
+            if ((color >>> 24) == 0) {
+                dst[i] = 0;
+                continue;
+            }
+
+            int height = this.heights[i];
+            int north = i >= SIZE && this.heights[i - SIZE] != NO_HEIGHT ? this.heights[i - SIZE] : height;
+            int factor = height > north ? 255 : height < north ? 180 : 220;
+            dst[i] = 0xFF000000
+                     | ((((color >>> 16) & 0xFF) * factor / 255) << 16)
+                     | ((((color >>> 8) & 0xFF) * factor / 255) << 8)
+                     | ((color & 0xFF) * factor / 255);
+        }
+    }
+
+    protected void renderChunk(@NonNull ByteBuf region, int cx, int cz) {
+        int pos = (region.getInt(getOffsetIndex(cx, cz)) >>> 8) * SECTOR_BYTES;
+        int length = region.getInt(pos);
+        if (length <= 1 || pos + 4 + length > region.writerIndex()) {
+            throw new IllegalStateException("chunk data is truncated");
+        }
+
+        ByteBuf buf;
+        int root;
+        byte compression = region.getByte(pos + 4);
+        if (compression == ID_GZIP || compression == ID_ZLIB) {
+            buf = this.chunk.clear();
+            this.inflater.decompressGrowing(region.slice(pos + 5, length - 1), buf);
+            root = 0;
+        } else if (compression == 3) { //uncompressed
+            buf = region;
+            root = pos + 5;
+        } else {
+            throw new IllegalStateException("unsupported compression type: " + compression);
+        }
+
+        this.decodeCompound(buf, rootCompound(buf, root));
+        if (this.heightmap < 0) { //not fully generated
+            return;
+        }
+        this.decodeHeightmap(buf);
+
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                int y = min(this.columnHeights[(z << 4) | x], this.maxY);
+                int color = AIR;
+                for (; y >= this.minY && (color = this.blockColor(buf, x, y, z)) == AIR; y--) {
+                }
+
+                if (color != AIR) {
+                    int i = (((cz << 4) | z) * SIZE) | (cx << 4) | x;
+                    this.colors[i] = color;
+                    this.heights[i] = y;
+                }
+            }
+        }
+    }
+
+    protected void decodeCompound(@NonNull ByteBuf buf, int compound) {
+        for (int entry = compound; ; ) {
+            int id = tagId(buf, entry);
+            if (id == TAG_END) {
+                return;
+            }
+
+            int payload = payload(buf, entry);
+            if (id == TAG_COMPOUND && nameEquals(buf, entry, LEVEL)) { //chunks from before 1.18 keep everything in the Level tag
+                this.decodeCompound(buf, payload);
+            } else if (id == TAG_COMPOUND && nameEquals(buf, entry, HEIGHTMAPS)) {
+                for (int heightmap = payload; tagId(buf, heightmap) != TAG_END; heightmap = next(buf, heightmap)) {
+                    if (tagId(buf, heightmap) == TAG_LONG_ARRAY) {
+                        if (nameEquals(buf, heightmap, MOTION_BLOCKING)) {
+                            this.setHeightmap(payload(buf, heightmap), TAG_LONG_ARRAY, 2);
+                        } else if (nameEquals(buf, heightmap, WORLD_SURFACE)) {
+                            this.setHeightmap(payload(buf, heightmap), TAG_LONG_ARRAY, 1);
+                        }
+                    }
+                }
+            } else if (id == TAG_INT_ARRAY && nameEquals(buf, entry, LEGACY_HEIGHTMAP)) {
+                this.setHeightmap(payload, TAG_INT_ARRAY, 0);
+            } else if (id == TAG_LIST && (nameEquals(buf, entry, SECTIONS) || nameEquals(buf, entry, LEGACY_SECTIONS)) && listType(buf, payload) == TAG_COMPOUND) {
+                int section = elements(payload, TAG_LIST);
+                for (int i = 0, length = length(buf, payload, TAG_LIST); i < length; i++) {
+                    section = this.decodeSection(buf, section);
+                }
+            } else if (id == TAG_INT && nameEquals(buf, entry, Y_POS)) {
+                this.minY = buf.getInt(payload) << 4;
+            }
+            entry = skip(buf, payload, id);
+        }
+    }
+
+    protected void setHeightmap(int payload, int id, int priority) {
+        if (this.heightmap < 0 || priority > this.heightmapPriority) {
+            this.heightmap = payload;
+            this.heightmapId = id;
+            this.heightmapPriority = priority;
+        }
+    }
+
+    /**
+     * @return the index of the first byte after the section
+     */
+    protected int decodeSection(@NonNull ByteBuf buf, int section) {
+        int y = 0;
+        int palette = -1;
+        int data = -1;
+        int blocks = -1;
+
+        int entry = section;
+        for (int id; (id = tagId(buf, entry)) != TAG_END; ) {
+            int payload = payload(buf, entry);
+            if (id == TAG_BYTE && nameEquals(buf, entry, Y)) {
+                y = buf.getByte(payload);
+            } else if (id == TAG_LIST && nameEquals(buf, entry, LEGACY_PALETTE)) {
+                palette = payload;
+            } else if (id == TAG_LONG_ARRAY && nameEquals(buf, entry, LEGACY_BLOCK_STATES)) {
+                data = payload;
+            } else if (id == TAG_BYTE_ARRAY && nameEquals(buf, entry, LEGACY_BLOCKS)) {
+                blocks = payload;
+            } else if (id == TAG_COMPOUND && nameEquals(buf, entry, BLOCK_STATES)) {
+                for (int states = payload; tagId(buf, states) != TAG_END; states = next(buf, states)) {
+                    if (tagId(buf, states) == TAG_LIST && nameEquals(buf, states, PALETTE)) {
+                        palette = payload(buf, states);
+                    } else if (tagId(buf, states) == TAG_LONG_ARRAY && nameEquals(buf, states, DATA)) {
+                        data = payload(buf, states);
+                    }
+                }
+            }
+            entry = skip(buf, payload, id);
+        }
+
+        if ((palette >= 0 && listType(buf, palette) == TAG_COMPOUND && length(buf, palette, TAG_LIST) > 0) || blocks >= 0) {
+            int slot = this.sectionCount++;
+            if (slot == this.sectionYs.length) {
+                int capacity = slot << 1;
+                this.sectionYs = Arrays.copyOf(this.sectionYs, capacity);
+                this.sectionBlocks = Arrays.copyOf(this.sectionBlocks, capacity);
+                this.sectionData = Arrays.copyOf(this.sectionData, capacity);
+                this.sectionBits = Arrays.copyOf(this.sectionBits, capacity);
+                this.sectionPaletteBase = Arrays.copyOf(this.sectionPaletteBase, capacity);
+                this.sectionPaletteSize = Arrays.copyOf(this.sectionPaletteSize, capacity);
+            }
+            this.sectionSlots[y & 0xFF] = slot + 1;
+            this.maxY = max(this.maxY, (y << 4) | 0xF);
+            this.sectionYs[slot] = y;
+            this.sectionBlocks[slot] = blocks;
+            this.sectionData[slot] = data;
+
+            if (blocks < 0) {
+                int size = length(buf, palette, TAG_LIST);
+                this.sectionBits[slot] = max(4, 32 - Integer.numberOfLeadingZeros(size - 1));
+                this.sectionPaletteBase[slot] = this.paletteCount;
+                this.sectionPaletteSize[slot] = size;
+                this.decodePalette(buf, palette, size);
+            }
+        }
+        return entry + 1;
+    }
+
+    protected void decodePalette(@NonNull ByteBuf buf, int palette, int size) {
+        if (this.paletteCount + size > this.paletteNames.length) {
+            int capacity = max(this.paletteNames.length << 1, this.paletteCount + size);
+            this.paletteNames = Arrays.copyOf(this.paletteNames, capacity);
+            this.paletteColors = Arrays.copyOf(this.paletteColors, capacity);
+        }
+
+        int state = elements(palette, TAG_LIST);
+        for (int i = 0; i < size; i++) {
+            int name = -1;
+            int entry = state;
+            for (int id; (id = tagId(buf, entry)) != TAG_END; entry = next(buf, entry)) {
+                if (id == TAG_STRING && nameEquals(buf, entry, NAME)) {
+                    name = payload(buf, entry);
+                }
+            }
+            state = entry + 1;
+
+            this.paletteNames[this.paletteCount] = name;
+            this.paletteColors[this.paletteCount] = UNRESOLVED;
+            this.paletteCount++;
+        }
+    }
+
+    protected void decodeHeightmap(@NonNull ByteBuf buf) {
+        if (this.heightmapId == TAG_INT_ARRAY) { //1.12: the lowest y level which receives full sky light
+            for (int i = 0; i < 16 * 16; i++) {
+                this.columnHeights[i] = buf.getInt(elements(this.heightmap, TAG_INT_ARRAY) + i * 4) - 1;
+            }
+            return;
+        }
+
+        //1.13+: one above the highest block, relative to the bottom of the world
+        int longs = length(buf, this.heightmap, TAG_LONG_ARRAY);
+        int bits = (longs << 6) % (16 * 16) == 0 ? (longs << 6) / (16 * 16) : 64 / ((16 * 16 + longs - 1) / longs);
+        for (int i = 0; i < 16 * 16; i++) {
+            this.columnHeights[i] = this.minY + unpack(buf, elements(this.heightmap, TAG_LONG_ARRAY), longs, bits, i, 16 * 16) - 1;
+        }
+    }
+
+    /**
+     * Gets the color of the block at the given position in the current chunk.
+     */
+    protected int blockColor(@NonNull ByteBuf buf, int x, int y, int z) {
+        int slot = this.sectionSlots[(y >> 4) & 0xFF] - 1;
+        if (slot < 0) { //missing sections are empty
+            return AIR;
+        }
+
+        int index = ((y & 0xF) << 8) | (z << 4) | x;
+        if (this.sectionBlocks[slot] >= 0) {
+            String name = LEGACY_NAMES[buf.getUnsignedByte(elements(this.sectionBlocks[slot], TAG_BYTE_ARRAY) + index)];
+            return this.colorCache.computeIfAbsent(name, TerrainRenderer::colorOf);
+        }
+
+        int state = 0;
+        int data = this.sectionData[slot];
+        if (data >= 0) {
+            state = unpack(buf, elements(data, TAG_LONG_ARRAY), length(buf, data, TAG_LONG_ARRAY), this.sectionBits[slot], index, 16 * 16 * 16);
+            if (state >= this.sectionPaletteSize[slot]) {
+                return DEFAULT_COLOR;
+            }
+        }
+
+        int paletteIndex = this.sectionPaletteBase[slot] + state;
+        int color = this.paletteColors[paletteIndex];
+        if (color == UNRESOLVED) {
+            int name = this.paletteNames[paletteIndex];
+            color = this.paletteColors[paletteIndex] = name < 0 ? DEFAULT_COLOR : this.colorCache.computeIfAbsent(string(buf, name), TerrainRenderer::colorOf);
+        }
+        return color;
+    }
+
+    protected void resetChunk() {
+        for (int i = 0; i < this.sectionCount; i++) {
+            this.sectionSlots[this.sectionYs[i] & 0xFF] = 0;
+        }
+        this.sectionCount = 0;
+        this.paletteCount = 0;
+        this.minY = 0;
+        this.maxY = Integer.MIN_VALUE;
+        this.heightmap = -1;
+    }
+
+    /**
+     * Gets a value from a packed long array.
+     * <p>
+     * Before 1.16, values were packed tightly and could span two longs. Since then, every long contains as many whole values as fit, which is detected
+     * using the array's length.
+     *
+     * @param index the index of the first long
+     * @param longs the number of longs in the array
+     * @param bits  the number of bits per value
+     * @param i     the index of the value
+     * @param count the total number of values in the array
+     */
+    protected static int unpack(@NonNull ByteBuf buf, int index, int longs, int bits, int i, int count) {
+        long mask = (1L << bits) - 1L;
+        if (longs * 64 == count * bits) { //tightly packed
+            int bit = i * bits;
+            int word = bit >>> 6;
+            int shift = bit & 63;
+            long value = buf.getLong(index + (word << 3)) >>> shift;
+            if (shift + bits > 64) {
+                value |= buf.getLong(index + ((word + 1) << 3)) << (64 - shift);
+            }
+            return (int) (value & mask);
+        } else {
+            int perLong = 64 / bits;
+            return (int) ((buf.getLong(index + ((i / perLong) << 3)) >>> ((i % perLong) * bits)) & mask);
+        }
+    }
+}
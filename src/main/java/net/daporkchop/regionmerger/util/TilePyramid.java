@@ -0,0 +1,188 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import net.daporkchop.lib.common.function.io.IOConsumer;
+import net.daporkchop.lib.common.math.BinMath;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+
+/**
+ * A pyramid of square PNG tiles, laid out as {@code <root>/<zoom>/<x>/<y>.png}.
+ * <p>
+ * Zoom level {@code 0} is the full resolution, and every coarser level has a zoom level one lower than the previous one, at half the resolution. Tile
+ * coordinates may be negative, and the tile at ({@code x},{@code y}) on zoom level {@code z} covers the full-resolution pixels starting at
+ * ({@code x * TILE_SIZE << -z},{@code y * TILE_SIZE << -z}). This is the same scheme as is used by Leaflet's {@code CRS.Simple}.
+ * <p>
+ * Tiles which are completely transparent are not stored.
+ *
+ * @author DaPorkchop_
+ */
+public final class TilePyramid {
+    public static final int TILE_SHIFT = 8;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+
+    protected final Path root;
+
+    public TilePyramid(@NonNull Path root) {
+        this.root = root;
+    }
+
+    protected Path path(int zoom, int x, int y) {
+        return this.root.resolve(String.valueOf(zoom)).resolve(String.valueOf(x)).resolve(y + ".png");
+    }
+
+    /**
+     * Writes a tile, or deletes it if it is completely transparent.
+     *
+     * @param zoom the zoom level
+     * @param x    the tile's X coordinate
+     * @param y    the tile's Y coordinate
+     * @param argb the tile's pixels, as ARGB colors in row-major order
+     */
+    public void write(int zoom, int x, int y, @NonNull int[] argb) throws IOException {
+        Path path = this.path(zoom, x, y);
+
+        boolean empty = true;
+        for (int i = 0; empty && i < TILE_SIZE * TILE_SIZE; i++) {
+            empty = (argb[i] >>> 24) == 0;
+        }
+        if (empty) {
+            Files.deleteIfExists(path);
+            return;
+        }
+
+        Files.createDirectories(path.getParent());
+        try (PngWriter writer = new PngWriter(path, TILE_SIZE, TILE_SIZE, 8, PngWriter.COLOR_RGBA, Deflater.DEFAULT_COMPRESSION)) {
+            writer.write((z, row) -> System.arraycopy(argb, z << TILE_SHIFT, row, 0, TILE_SIZE));
+        }
+    }
+
+    /**
+     * Reads a tile.
+     *
+     * @param zoom the zoom level
+     * @param x    the tile's X coordinate
+     * @param y    the tile's Y coordinate
+     * @param argb the array to store the tile's pixels in. If the tile doesn't exist, it is filled with transparent pixels
+     */
+    public void read(int zoom, int x, int y, @NonNull int[] argb) throws IOException {
+        Path path = this.path(zoom, x, y);
+        if (!Files.exists(path)) {
+            Arrays.fill(argb, 0, TILE_SIZE * TILE_SIZE, 0);
+            return;
+        }
+
+        BufferedImage image = ImageIO.read(path.toFile());
+        if (image == null || image.getWidth() != TILE_SIZE || image.getHeight() != TILE_SIZE) {
+            throw new IOException("invalid tile: " + path);
+        }
+        image.getRGB(0, 0, TILE_SIZE, TILE_SIZE, argb, 0, TILE_SIZE);
+    }
+
+    /**
+     * Rebuilds all of the coarser zoom levels which are affected by a change to the given full-resolution tiles.
+     * <p>
+     * Each level is built in parallel by downsampling the tiles of the level below it, and levels are built until all of the given bounds fit into 2x2
+     * tiles. Tiles on either side of the origin never merge into the same tile, so a single tile can't be guaranteed.
+     *
+     * @param dirty the positions of the full-resolution tiles which were changed, packed using {@link BinMath#packXY(int, int)}
+     * @param minX  the minimum X coordinate of all full-resolution tiles
+     * @param minY  the minimum Y coordinate of all full-resolution tiles
+     * @param maxX  the maximum X coordinate of all full-resolution tiles
+     * @param maxY  the maximum Y coordinate of all full-resolution tiles
+     * @return the lowest zoom level
+     */
+    public int buildLevels(@NonNull Set<Long> dirty, int minX, int minY, int maxX, int maxY) {
+        int zoom = 0;
+        while (maxX - minX > 1 || maxY - minY > 1) {
+            minX >>= 1;
+            minY >>= 1;
+            maxX >>= 1;
+            maxY >>= 1;
+
+            dirty = dirty.stream()
+                    .map(pos -> BinMath.packXY(BinMath.unpackX(pos) >> 1, BinMath.unpackY(pos) >> 1))
+                    .collect(Collectors.toSet());
+
+            final int childZoom = zoom--;
+            final int parentZoom = zoom;
+            dirty.parallelStream().forEach((IOConsumer<Long>) pos -> this.downsample(childZoom, parentZoom, BinMath.unpackX(pos), BinMath.unpackY(pos)));
+        }
+        return zoom;
+    }
+
+    protected void downsample(int childZoom, int parentZoom, int x, int y) throws IOException {
+        int[] child = new int[TILE_SIZE * TILE_SIZE];
+        int[] parent = new int[TILE_SIZE * TILE_SIZE];
+        final int half = TILE_SIZE >> 1;
+
+        for (int i = 0; i < 4; i++) {
+            int dx = i & 1;
+            int dy = i >> 1;
+            this.read(childZoom, (x << 1) | dx, (y << 1) | dy, child);
+
+            for (int py = 0; py < half; py++) {
+                for (int px = 0; px < half; px++) {
+                    int src = (py << (TILE_SHIFT + 1)) | (px << 1);
+                    parent[((dy * half + py) << TILE_SHIFT) | (dx * half + px)] = average(child[src], child[src + 1], child[src + TILE_SIZE], child[src + TILE_SIZE + 1]);
+                }
+            }
+        }
+
+        this.write(parentZoom, x, y, parent);
+    }
+
+    /**
+     * Averages four ARGB colors. Transparent pixels don't contribute to the color, but do contribute to the alpha.
+     */
+    protected static int average(int c0, int c1, int c2, int c3) {
+        int a = 0;
+        int r = 0;
+        int g = 0;
+        int b = 0;
+        int count = 0;
+        for (int i = 0; i < 4; i++) {
+            int c = i == 0 ? c0 : i == 1 ? c1 : i == 2 ? c2 : c3;
+            int alpha = c >>> 24;
+            if (alpha != 0) {
+                a += alpha;
+                r += (c >>> 16) & 0xFF;
+                g += (c >>> 8) & 0xFF;
+                b += c & 0xFF;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        return ((a >> 2) << 24) | ((r / count) << 16) | ((g / count) << 8) | (b / count);
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import net.daporkchop.lib.unsafe.PUnsafe;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.IntSummaryStatistics;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+
+/**
+ * A 2D raster of {@code int}s which is split into square tiles that are stored in a memory-mapped scratch file rather than on the heap.
+ * <p>
+ * Tiles are only allocated once something is written to them, every tile which was never written to is implicitly filled with the raster's fill value.
+ * The size of a raster is therefore only limited by the available disk space, and sparse rasters only take up as much space as the tiles which are
+ * actually used.
+ * <p>
+ * Writes to distinct pixels may be done concurrently from multiple threads.
+ *
+ * @author DaPorkchop_
+ */
+public final class TiledRaster implements AutoCloseable {
+    public static final int TILE_SHIFT = 10;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+    public static final int TILE_MASK = TILE_SIZE - 1;
+
+    protected static final long TILE_BYTES = (long) TILE_SIZE * TILE_SIZE * Integer.BYTES;
+    protected static final OpenOption[] SCRATCH_OPEN_OPTIONS = {
+            StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SPARSE,
+            StandardOpenOption.DELETE_ON_CLOSE
+    };
+
+    protected final FileChannel channel;
+    protected final AtomicReferenceArray<IntBuffer> tiles;
+    protected final MappedByteBuffer[] mappings;
+    protected int allocatedTiles;
+
+    protected final int sizeX;
+    protected final int sizeZ;
+    protected final int tilesX;
+    protected final int tilesZ;
+    protected final int fill;
+
+    /**
+     * @param scratch the path to the scratch file. Any existing file will be overwritten, and it will be deleted when the raster is closed
+     * @param sizeX   the size of the raster along the X axis
+     * @param sizeZ   the size of the raster along the Z axis
+     * @param fill    the initial value of every pixel
+     */
+    public TiledRaster(@NonNull Path scratch, int sizeX, int sizeZ, int fill) throws IOException {
+        this.sizeX = positive(sizeX, "sizeX");
+        this.sizeZ = positive(sizeZ, "sizeZ");
+        this.tilesX = ((sizeX - 1) >> TILE_SHIFT) + 1;
+        this.tilesZ = ((sizeZ - 1) >> TILE_SHIFT) + 1;
+        this.fill = fill;
+
+        this.tiles = new AtomicReferenceArray<>(multiplyExact(this.tilesX, this.tilesZ));
+        this.mappings = new MappedByteBuffer[this.tiles.length()];
+        this.channel = FileChannel.open(scratch, SCRATCH_OPEN_OPTIONS);
+    }
+
+    public int sizeX() {
+        return this.sizeX;
+    }
+
+    public int sizeZ() {
+        return this.sizeZ;
+    }
+
+    public int tilesX() {
+        return this.tilesX;
+    }
+
+    public int tilesZ() {
+        return this.tilesZ;
+    }
+
+    /**
+     * @return the value of every pixel which hasn't been written to
+     */
+    public int fill() {
+        return this.fill;
+    }
+
+    /**
+     * Gets the given tile.
+     *
+     * @param tx the tile's X coordinate
+     * @param tz the tile's Z coordinate
+     * @return the tile's pixels, in row-major order, or {@code null} if the tile hasn't been allocated
+     */
+    public IntBuffer tile(int tx, int tz) {
+        return this.tiles.get(tz * this.tilesX + tx);
+    }
+
+    protected IntBuffer tileOrAllocate(int tx, int tz) {
+        int index = tz * this.tilesX + tx;
+        IntBuffer tile = this.tiles.get(index);
+        return tile != null ? tile : this.allocate(index);
+    }
+
+    protected synchronized IntBuffer allocate(int index) {
+        IntBuffer tile = this.tiles.get(index);
+        if (tile == null) {
+            try {
+                MappedByteBuffer mapping = this.channel.map(FileChannel.MapMode.READ_WRITE, this.allocatedTiles++ * TILE_BYTES, TILE_BYTES);
+                tile = mapping.order(ByteOrder.nativeOrder()).asIntBuffer();
+                for (int i = 0, fill = this.fill; i < TILE_SIZE * TILE_SIZE; i++) {
+                    tile.put(i, fill);
+                }
+                this.mappings[index] = mapping;
+                this.tiles.set(index, tile);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Copies a rectangle of pixels into this raster.
+     *
+     * @param x     the X coordinate of the rectangle
+     * @param z     the Z coordinate of the rectangle
+     * @param sizeX the size of the rectangle along the X axis
+     * @param sizeZ the size of the rectangle along the Z axis
+     * @param data  the pixels, in row-major order
+     */
+    public void set(int x, int z, int sizeX, int sizeZ, @NonNull int[] data) {
+        checkRangeLen(this.sizeX, x, sizeX);
+        checkRangeLen(this.sizeZ, z, sizeZ);
+        checkRangeLen(data.length, 0, sizeX * sizeZ);
+
+        for (int dz = 0; dz < sizeZ; dz++) {
+            int pz = z + dz;
+            for (int dx = 0; dx < sizeX; ) {
+                int px = x + dx;
+                IntBuffer tile = this.tileOrAllocate(px >> TILE_SHIFT, pz >> TILE_SHIFT);
+                int run = min(sizeX - dx, TILE_SIZE - (px & TILE_MASK));
+                for (int i = 0, src = dz * sizeX + dx, dst = ((pz & TILE_MASK) << TILE_SHIFT) | (px & TILE_MASK); i < run; i++) {
+                    tile.put(dst + i, data[src + i]);
+                }
+                dx += run;
+            }
+        }
+    }
+
+    /**
+     * Copies a horizontal run of pixels out of this raster.
+     *
+     * @param x      the X coordinate of the first pixel
+     * @param z      the Z coordinate of the row
+     * @param length the number of pixels to copy
+     * @param dst    the array to copy the pixels into
+     * @param offset the index in the array to copy the first pixel to
+     */
+    public void getRow(int x, int z, int length, @NonNull int[] dst, int offset) {
+        checkRangeLen(this.sizeX, x, length);
+        checkIndex(this.sizeZ, z);
+        checkRangeLen(dst.length, offset, length);
+
+        for (int dx = 0; dx < length; ) {
+            int px = x + dx;
+            IntBuffer tile = this.tile(px >> TILE_SHIFT, z >> TILE_SHIFT);
+            int run = min(length - dx, TILE_SIZE - (px & TILE_MASK));
+            if (tile == null) {
+                for (int i = 0, fill = this.fill; i < run; i++) {
+                    dst[offset + dx + i] = fill;
+                }
+            } else {
+                for (int i = 0, src = ((z & TILE_MASK) << TILE_SHIFT) | (px & TILE_MASK); i < run; i++) {
+                    dst[offset + dx + i] = tile.get(src + i);
+                }
+            }
+            dx += run;
+        }
+    }
+
+    /**
+     * Computes statistics over every pixel in this raster which is not negative, processing tiles in parallel.
+     * <p>
+     * Pixels which are outside of the raster's bounds but still inside an allocated tile are included, so they should be left at a negative fill value.
+     */
+    public IntSummaryStatistics nonNegativeStatistics() {
+        return IntStream.range(0, this.tiles.length()).parallel()
+                .mapToObj(this.tiles::get)
+                .filter(tile -> tile != null)
+                .map(tile -> {
+                    IntSummaryStatistics stats = new IntSummaryStatistics();
+                    for (int i = 0; i < TILE_SIZE * TILE_SIZE; i++) {
+                        int value = tile.get(i);
+                        if (value >= 0) {
+                            stats.accept(value);
+                        }
+                    }
+                    return stats;
+                })
+                .collect(IntSummaryStatistics::new, IntSummaryStatistics::combine, IntSummaryStatistics::combine);
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < this.mappings.length; i++) {
+            if (this.mappings[i] != null) {
+                PUnsafe.pork_releaseBuffer(this.mappings[i]);
+                this.mappings[i] = null;
+                this.tiles.set(i, null);
+            }
+        }
+        this.channel.close();
+    }
+}
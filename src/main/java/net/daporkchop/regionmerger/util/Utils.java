@@ -26,6 +26,7 @@ import lombok.experimental.UtilityClass;
 import net.daporkchop.lib.common.misc.string.PStrings;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.CopyOption;
 import java.nio.file.Files;
@@ -33,8 +34,12 @@ import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
+import static java.lang.Math.*;
 import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+import static net.daporkchop.regionmerger.Main.*;
 
 /**
  * @author DaPorkchop_
@@ -42,6 +47,7 @@ import static net.daporkchop.lib.common.util.PValidation.*;
 @UtilityClass
 public class Utils {
     protected static final OpenOption[] WRITE_OPEN_OPTIONS = { StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
+    protected static final OpenOption[] READ_OPEN_OPTIONS = { StandardOpenOption.READ };
     protected static final CopyOption[] REPLACE_COPY_OPTIONS = { StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE };
 
     public String formatDuration(long duration) {
@@ -74,15 +80,130 @@ public class Utils {
         } while (data.isReadable());
     }
 
+    public void writeFully(@NonNull FileChannel channel, @NonNull ByteBuffer data) throws IOException {
+        do {
+            channel.write(data);
+        } while (data.hasRemaining());
+    }
+
+    public void writeFully(@NonNull FileChannel channel, @NonNull ByteBuffer data, long position) throws IOException {
+        do {
+            position += channel.write(data, position);
+        } while (data.hasRemaining());
+    }
+
     public void writeAndReplace(@NonNull Path dstPath, @NonNull ByteBuf data) throws IOException {
         Path tmpPath = dstPath.resolveSibling(dstPath.getFileName() + ".tmp");
+        long startNanos = System.nanoTime();
+        int bytes = data.readableBytes();
 
         //write to temporary file
-        try (FileChannel channel = FileChannel.open(tmpPath, WRITE_OPEN_OPTIONS)) {
+        try (Workers.Permit permit = Workers.openFiles(1);
+             FileChannel channel = FileChannel.open(tmpPath, WRITE_OPEN_OPTIONS)) {
             writeFully(channel, data);
         }
 
         //replace real file (atomically)
         Files.move(tmpPath, dstPath, REPLACE_COPY_OPTIONS);
+
+        Metrics.Counter.BYTES_WRITTEN.add(bytes);
+        Metrics.Phase.WRITE.since(startNanos);
+    }
+
+    public void readFully(@NonNull FileChannel channel, @NonNull ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file at position " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Rewrites a region file so that all of its chunks are stored contiguously, dropping all sectors which aren't referenced by the offset table.
+     * <p>
+     * The chunks are streamed into a temporary file in the order in which they are stored, which then atomically replaces the original file. Unlike
+     * {@code optimize}, chunks are neither reordered nor recompressed, and the region never needs to be loaded into memory all at once.
+     *
+     * @param path the path to the region file
+     * @return the number of bytes which were freed
+     */
+    public long compactRegion(@NonNull Path path) throws IOException {
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        long startNanos = System.nanoTime();
+
+        long oldSize;
+        int sector = HEADER_BYTES / SECTOR_BYTES;
+        try (Workers.Permit permit = Workers.openFiles(2);
+             FileChannel src = FileChannel.open(path, READ_OPEN_OPTIONS);
+             FileChannel dst = FileChannel.open(tmpPath, WRITE_OPEN_OPTIONS)) {
+            oldSize = src.size();
+
+            ByteBuffer headers = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(src, headers, 0L);
+
+            //sort chunks by their current position in the file, packing the sector into the high bits and the chunk index into the low bits
+            long[] chunks = new long[32 * 32];
+            int count = 0;
+            for (int i = 0; i < 32 * 32; i++) {
+                int offset = headers.getInt(i << 2);
+                if (offset != 0) {
+                    chunks[count++] = ((long) (offset >>> 8) << 32L) | i;
+                }
+            }
+            Arrays.sort(chunks, 0, count);
+
+            ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+            dst.position(HEADER_BYTES);
+            for (int j = 0; j < count; j++) {
+                int offsetIndex = (int) chunks[j] << 2;
+                long srcPos = (chunks[j] >>> 32L) * SECTOR_BYTES;
+                int oldSectors = headers.getInt(offsetIndex) & 0xFF;
+
+                //only copy the bytes actually used by the chunk, unless the length prefix is broken
+                lengthBuffer.clear();
+                int bytes = srcPos + 4L <= oldSize && src.read(lengthBuffer, srcPos) == 4 ? lengthBuffer.getInt(0) + 4 : -1;
+                if (bytes <= 4 || bytes > oldSectors * SECTOR_BYTES) {
+                    bytes = oldSectors * SECTOR_BYTES;
+                }
+                bytes = toInt(max(0L, min(bytes, oldSize - srcPos)));
+
+                long copied = 0L;
+                while (copied < bytes) {
+                    long transferred = src.transferTo(srcPos + copied, bytes - copied, dst);
+                    if (transferred <= 0L) { //the file was truncated while it was being copied, treat it as the end of the file
+                        break;
+                    }
+                    copied += transferred;
+                }
+                bytes = (int) copied;
+
+                if (bytes == 0) { //the chunk is entirely past the end of the file, drop it
+                    headers.putInt(offsetIndex, 0);
+                    headers.putInt(SECTOR_BYTES + offsetIndex, 0);
+                    continue;
+                }
+                int sectors = (bytes - 1 >> 12) + 1;
+                writeFully(dst, ByteBuffer.wrap(EMPTY_SECTOR, 0, (sectors << 12) - bytes)); //pad to next sector
+
+                headers.putInt(offsetIndex, (sector << 8) | sectors);
+                sector += sectors;
+            }
+
+            headers.clear();
+            while (headers.hasRemaining()) {
+                dst.write(headers, headers.position());
+            }
+        }
+
+        //replace real file (atomically)
+        Files.move(tmpPath, path, REPLACE_COPY_OPTIONS);
+
+        //the chunks are copied straight from one file to the other, so this counts as both reading and writing the whole region
+        Metrics.Counter.BYTES_READ.add((long) sector * SECTOR_BYTES);
+        Metrics.Counter.BYTES_WRITTEN.add((long) sector * SECTOR_BYTES);
+        Metrics.Phase.WRITE.since(startNanos);
+        return oldSize - (long) sector * SECTOR_BYTES;
     }
 }
@@ -0,0 +1,47 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Access to virtual threads.
+ * <p>
+ * Virtual threads require Java 21, but this project targets Java 8. The jar is therefore a multi-release jar, and on Java 21 or newer this class is
+ * replaced with the version in {@code src/main/java21}.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class VirtualThreads {
+    /**
+     * Creates an {@link ExecutorService} which starts a new virtual thread for every task.
+     *
+     * @param name the prefix for the names of the created threads
+     * @return the executor, or {@code null} if virtual threads are not available on the current JVM
+     */
+    public ExecutorService newExecutor(@NonNull String name) {
+        return null;
+    }
+}
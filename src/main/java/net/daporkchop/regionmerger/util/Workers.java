@@ -0,0 +1,400 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import lombok.experimental.UtilityClass;
+import net.daporkchop.lib.common.function.io.IOConsumer;
+import net.daporkchop.lib.common.function.io.IOFunction;
+import net.daporkchop.lib.common.function.io.IORunnable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+
+/**
+ * The thread pools which all modes do their work on, and a limit on the number of region files which may be open at once.
+ * <p>
+ * There are two pools: a {@link #cpu() CPU pool} for work which is limited by computation (recompressing, rendering, generating), and an
+ * {@link #io() I/O pool} for work which mostly waits on the disk (scanning headers, copying chunks). They are sized independently, so that the I/O
+ * pool can be shrunk to avoid overwhelming a network share or grown far beyond the number of cores to keep a fast SSD's queue full.
+ * <p>
+ * Modes are run on the CPU pool, so parallel streams which aren't explicitly run on the I/O pool are still limited by {@code --threads} rather than
+ * by the size of the common pool.
+ * <p>
+ * Paths which do nothing but read region headers use the {@link #scan() scan pool}. If virtual threads were requested and are available, it starts a
+ * virtual thread for every region, which allows as many header reads to be in flight at once as there may be open files. Otherwise, it is the same as
+ * the I/O pool.
+ * <p>
+ * Region headers which are read in batches by a {@link HeaderFetcher} are read on the {@link #fetch() fetch executor} instead, which has one thread
+ * for every read that may be in flight at once. If the scan pool uses virtual threads, so does the fetch executor, so batched reads are also limited
+ * only by the number of open files rather than by {@code --queueDepth}.
+ *
+ * @author DaPorkchop_
+ */
+@UtilityClass
+public class Workers {
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_IO_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_MAX_OPEN_FILES = 1024;
+    public static final int DEFAULT_QUEUE_DEPTH = 64;
+
+    protected static volatile Pool cpu = new ForkJoinBackedPool("CPU", DEFAULT_THREADS);
+    protected static volatile Pool io = new ForkJoinBackedPool("I/O", DEFAULT_IO_THREADS);
+    protected static volatile Pool scan = io;
+    protected static volatile Semaphore files = new Semaphore(DEFAULT_MAX_OPEN_FILES);
+    protected static volatile ExecutorService fetch = newFetchExecutor(DEFAULT_QUEUE_DEPTH);
+
+    /**
+     * Replaces the pools and the open file limit. Must be called before any work is started.
+     *
+     * @param threads        the number of threads in the CPU pool
+     * @param ioThreads      the number of threads in the I/O pool
+     * @param maxOpenFiles   the maximum number of region files which may be open at once
+     * @param virtualThreads whether or not the scan pool should use virtual threads
+     * @param queueDepth     the maximum number of batched header reads which may be in flight at once. Ignored if virtual threads are used
+     */
+    public synchronized void configure(int threads, int ioThreads, int maxOpenFiles, boolean virtualThreads, int queueDepth) {
+        positive(threads, "threads");
+        positive(ioThreads, "ioThreads");
+        positive(maxOpenFiles, "maxOpenFiles");
+        positive(queueDepth, "queueDepth");
+
+        cpu.shutdown();
+        io.shutdown();
+        scan.shutdown();
+        fetch.shutdown();
+        cpu = new ForkJoinBackedPool("CPU", threads);
+        io = new ForkJoinBackedPool("I/O", ioThreads);
+        files = new Semaphore(maxOpenFiles);
+
+        ExecutorService virtualExecutor = virtualThreads ? VirtualThreads.newExecutor("Scan") : null;
+        if (virtualExecutor != null) {
+            scan = new VirtualThreadPool(virtualExecutor, maxOpenFiles);
+            //batched header reads would otherwise be limited to --queueDepth at a time, no matter how many virtual threads are waiting for them
+            fetch = VirtualThreads.newExecutor("Fetch");
+        } else {
+            if (virtualThreads) {
+                logger.warn("Virtual threads require Java 21 or newer, falling back to the I/O pool.");
+            }
+            scan = io;
+            fetch = newFetchExecutor(queueDepth);
+        }
+    }
+
+    /**
+     * @return the pool for CPU-bound work
+     */
+    public Pool cpu() {
+        return cpu;
+    }
+
+    /**
+     * @return the pool for I/O-bound work
+     */
+    public Pool io() {
+        return io;
+    }
+
+    /**
+     * @return the pool for work which consists of nothing but reading region headers
+     */
+    public Pool scan() {
+        return scan;
+    }
+
+    /**
+     * @return the executor which completes the reads issued by {@link HeaderFetcher}s
+     */
+    public ExecutorService fetch() {
+        return fetch;
+    }
+
+    protected ExecutorService newFetchExecutor(int threads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "Fetch worker #" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Blocks until the given number of region files may be opened.
+     * <p>
+     * The returned {@link Permit} must be closed once the files have been closed again. A single caller which needs multiple files at once must acquire
+     * them all in a single call, otherwise two callers may deadlock while each holding part of what they need.
+     *
+     * @param count the number of files which will be opened
+     */
+    public Permit openFiles(int count) {
+        Semaphore semaphore = files;
+        semaphore.acquireUninterruptibly(count);
+        return () -> semaphore.release(count);
+    }
+
+    /**
+     * Allows opening a number of files until closed.
+     *
+     * @see #openFiles(int)
+     */
+    @FunctionalInterface
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * A thread pool which work can be submitted to.
+     */
+    public static abstract class Pool {
+        /**
+         * @return the number of tasks which this pool can run at once
+         */
+        public abstract int parallelism();
+
+        /**
+         * Runs the given task on this pool and waits for it to complete.
+         */
+        public abstract void run(@NonNull IORunnable task) throws IOException;
+
+        /**
+         * Runs the given action on every element of the given collection in parallel, and waits for all of them to complete.
+         */
+        public <T> void forEach(@NonNull Collection<T> collection, @NonNull IOConsumer<? super T> action) {
+            this.forEach(collection.spliterator(), action);
+        }
+
+        /**
+         * Runs the given action on every element of the given {@link Spliterator} in parallel, and waits for all of them to complete.
+         */
+        public abstract <T> void forEach(@NonNull Spliterator<T> spliterator, @NonNull IOConsumer<? super T> action);
+
+        /**
+         * Applies the given function to every element of the given {@link Spliterator} in parallel, and passes the results to the given action in
+         * encounter order.
+         * <p>
+         * The elements are processed in batches of {@link #parallelism()} * 4, so at most one batch of results needs to be buffered at a time.
+         */
+        @SuppressWarnings("unchecked")
+        public <T, R> void forEachOrdered(@NonNull Spliterator<T> spliterator, @NonNull IOFunction<? super T, ? extends R> function, @NonNull IOConsumer<? super R> action) throws IOException {
+            int batchSize = this.parallelism() << 2;
+            List<T> batch = new ArrayList<>(batchSize);
+            Object[] results = new Object[batchSize];
+            do {
+                batch.clear();
+                while (batch.size() < batchSize && spliterator.tryAdvance(batch::add)) {
+                }
+
+                this.forEach(IntStream.range(0, batch.size()).spliterator(), i -> results[i] = function.applyThrowing(batch.get(i)));
+                for (int i = 0; i < batch.size(); i++) {
+                    action.acceptThrowing((R) results[i]);
+                    results[i] = null;
+                }
+            } while (batch.size() == batchSize);
+        }
+
+        protected abstract void shutdown();
+    }
+
+    /**
+     * A {@link Pool} backed by a {@link ForkJoinPool}.
+     * <p>
+     * Any parallel streams used by tasks running on this pool will also be executed on this pool.
+     */
+    protected static final class ForkJoinBackedPool extends Pool {
+        protected final ForkJoinPool pool;
+        protected final int parallelism;
+
+        protected ForkJoinBackedPool(@NonNull String name, int parallelism) {
+            this.parallelism = parallelism;
+
+            AtomicInteger threadCount = new AtomicInteger();
+            this.pool = new ForkJoinPool(parallelism, pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName(name + " worker #" + threadCount.getAndIncrement());
+                return thread;
+            }, null, false);
+        }
+
+        @Override
+        public int parallelism() {
+            return this.parallelism;
+        }
+
+        @Override
+        public void run(@NonNull IORunnable task) throws IOException {
+            if (ForkJoinTask.getPool() == this.pool) { //already running on this pool
+                task.runThrowing();
+                return;
+            }
+
+            try {
+                this.pool.invoke(ForkJoinTask.adapt(() -> {
+                    try {
+                        task.runThrowing();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p>
+         * Unlike a parallel stream, the elements are split into enough batches to keep every thread of this pool busy, rather than a number based on
+         * the size of the common pool.
+         */
+        @Override
+        public <T> void forEach(@NonNull Spliterator<T> spliterator, @NonNull IOConsumer<? super T> action) {
+            ForEachTask<T> task = new ForEachTask<>(spliterator, action, Math.max(spliterator.estimateSize() / ((long) this.parallelism << 2L), 1L));
+            if (ForkJoinTask.getPool() == this.pool) {
+                task.invoke();
+            } else {
+                this.pool.invoke(task);
+            }
+        }
+
+        @Override
+        protected void shutdown() {
+            this.pool.shutdown();
+        }
+    }
+
+    /**
+     * A {@link Pool} which runs every element on its own virtual thread.
+     * <p>
+     * Virtual threads don't belong to a {@link ForkJoinPool} which parallel streams could use, so {@link #run(IORunnable)} simply runs the task on the
+     * calling thread.
+     */
+    protected static final class VirtualThreadPool extends Pool {
+        protected final ExecutorService executor;
+        protected final int maxInFlight;
+
+        protected VirtualThreadPool(@NonNull ExecutorService executor, int maxInFlight) {
+            this.executor = executor;
+            this.maxInFlight = maxInFlight;
+        }
+
+        @Override
+        public int parallelism() {
+            return this.maxInFlight;
+        }
+
+        @Override
+        public void run(@NonNull IORunnable task) throws IOException {
+            task.runThrowing();
+        }
+
+        @Override
+        public <T> void forEach(@NonNull Spliterator<T> spliterator, @NonNull IOConsumer<? super T> action) {
+            //virtual threads are cheap, but the buffers used by each of them aren't
+            Semaphore inFlight = new Semaphore(this.maxInFlight);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+
+            while (failure.get() == null && spliterator.tryAdvance(value -> {
+                inFlight.acquireUninterruptibly();
+                this.executor.execute(() -> {
+                    try {
+                        if (failure.get() == null) {
+                            action.acceptThrowing(value);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            })) {
+            }
+            inFlight.acquireUninterruptibly(this.maxInFlight); //wait for all tasks to complete
+
+            Throwable t = failure.get();
+            if (t instanceof IOException) {
+                throw new UncheckedIOException((IOException) t);
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t != null) {
+                throw new IllegalStateException(t);
+            }
+        }
+
+        @Override
+        protected void shutdown() {
+            this.executor.shutdown();
+        }
+    }
+
+    /**
+     * Splits a {@link Spliterator} until the batches are small enough, forking all but one of them and processing the last one in the current thread.
+     */
+    protected static final class ForEachTask<T> extends RecursiveAction {
+        protected final Spliterator<T> spliterator;
+        protected final IOConsumer<? super T> action;
+        protected final long threshold;
+
+        protected ForEachTask(@NonNull Spliterator<T> spliterator, @NonNull IOConsumer<? super T> action, long threshold) {
+            this.spliterator = spliterator;
+            this.action = action;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            Deque<ForEachTask<T>> forked = new ArrayDeque<>();
+            Spliterator<T> prefix;
+            while (this.spliterator.estimateSize() > this.threshold && (prefix = this.spliterator.trySplit()) != null) {
+                ForEachTask<T> task = new ForEachTask<>(prefix, this.action, this.threshold);
+                task.fork();
+                forked.push(task);
+            }
+
+            this.spliterator.forEachRemaining(this.action);
+
+            while (!forked.isEmpty()) {
+                forked.pop().join();
+            }
+        }
+    }
+}
@@ -20,6 +20,7 @@
 
 package net.daporkchop.regionmerger.util;
 
+import io.netty.buffer.ByteBuf;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.experimental.Accessors;
@@ -27,11 +28,19 @@ import net.daporkchop.lib.common.misc.file.PFiles;
 import net.daporkchop.lib.math.vector.i.Vec2i;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
 
 /**
  * @author DaPorkchop_
@@ -39,11 +48,12 @@ import java.util.stream.Collectors;
 @Getter
 @Accessors(fluent = true)
 public class World {
-    protected static final Pattern REGION_PATTERN = Pattern.compile("r\\.([-0-9]+)\\.([-0-9]+)\\.mca");
+    protected static final OpenOption[] READ_OPEN_OPTIONS = { StandardOpenOption.READ };
 
-    protected final Collection<Vec2i> regions;
+    protected final RegionSet regions;
     protected final File path;
     protected final boolean readOnly;
+    protected final WorldIndex index;
 
     public World(@NonNull File path, boolean readOnly) {
         this.path = path;
@@ -53,15 +63,144 @@ public class World {
             throw new IllegalStateException(String.format("World \"%s\" doesn't exist!", path.getAbsolutePath()));
         }
         PFiles.ensureDirectoryExists(this.path);
-        this.regions = Arrays.stream(this.path.listFiles())
-                .map(File::getName)
-                .map(REGION_PATTERN::matcher)
-                .filter(Matcher::matches)
-                .map(m -> new Vec2i(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))))
-                .collect(Collectors.toSet());
+        this.regions = new RegionSet();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.path.toPath())) {
+            for (Path file : stream) {
+                addRegion(this.regions, file.getFileName().toString());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        WorldIndex index = null;
+        try {
+            index = WorldIndex.load(this.path.toPath());
+        } catch (IOException e) {
+            logger.warn("Unable to load index of world \"%s\": %s", this.path.getAbsolutePath(), e);
+        }
+        this.index = index;
+    }
+
+    /**
+     * Adds the position of the region with the given file name to the given set, if the file name is a valid region file name ({@code r.<x>.<z>.mca}).
+     * <p>
+     * This is equivalent to matching the file name against {@code r\.(-?[0-9]+)\.(-?[0-9]+)\.mca}, but doesn't allocate anything.
+     */
+    protected static void addRegion(@NonNull RegionSet regions, @NonNull String name) {
+        int length = name.length();
+        if (length < 9 || name.charAt(0) != 'r' || name.charAt(1) != '.' || !name.endsWith(".mca")) {
+            return;
+        }
+
+        int end = length - 4;
+        int i = 2;
+        long x = 0L;
+        long z = 0L;
+        for (int field = 0; field < 2; field++) {
+            boolean negative = i < end && name.charAt(i) == '-';
+            if (negative) {
+                i++;
+            }
+
+            int digitsStart = i;
+            long value = 0L;
+            char c;
+            while (i < end && (c = name.charAt(i)) >= '0' && c <= '9') {
+                if ((value = value * 10L + (c - '0')) > 1L << 31L) {
+                    return;
+                }
+                i++;
+            }
+            if (i == digitsStart || (value = negative ? -value : value) > Integer.MAX_VALUE) {
+                return;
+            }
+
+            if (field == 0) {
+                if (i >= end || name.charAt(i) != '.') {
+                    return;
+                }
+                i++;
+                x = value;
+            } else {
+                z = value;
+            }
+        }
+
+        if (i == end) {
+            regions.add((int) x, (int) z);
+        }
     }
 
     public File getAsFile(@NonNull Vec2i regionPos) {
-        return new File(this.path, String.format("r.%d.%d.mca", regionPos.getX(), regionPos.getY()));
+        return new File(this.path, "r." + regionPos.getX() + '.' + regionPos.getY() + ".mca");
+    }
+
+    /**
+     * Reads the first bytes of the given region's file into the given buffer.
+     * <p>
+     * If no more than the region's headers are requested, they are read from the world's {@link WorldIndex index} if it is up to date.
+     *
+     * @param dst  the buffer to write to. {@code min(size, length of the region file)} bytes will be written. If the file is shorter than the region's
+     *             headers, the rest of them (up to {@code size}) is filled with zeroes
+     * @param size the maximum number of bytes to read
+     * @return the length of the region's file
+     */
+    public long readHeaders(@NonNull Vec2i regionPos, @NonNull ByteBuf dst, int size) throws IOException {
+        long startNanos = System.nanoTime();
+        int startIndex = dst.writerIndex();
+        long length;
+        try {
+            length = this.doReadHeaders(regionPos, dst, size);
+        } finally {
+            Metrics.Counter.BYTES_READ.add(dst.writerIndex() - startIndex);
+            Metrics.Phase.READ.since(startNanos);
+        }
+
+        //a truncated (or empty) region simply has no chunks past the end of its file, the same as with a HeaderFetcher
+        int padding = min(size, HEADER_BYTES) - (dst.writerIndex() - startIndex);
+        if (padding > 0) {
+            dst.writeZero(padding);
+        }
+        return length;
+    }
+
+    protected long doReadHeaders(@NonNull Vec2i regionPos, @NonNull ByteBuf dst, int size) throws IOException {
+        Path file = this.getAsFile(regionPos).toPath();
+        long indexedLength = this.readIndexedHeaders(regionPos, file, dst, size);
+        if (indexedLength >= 0L) {
+            return indexedLength;
+        }
+
+        try (Workers.Permit permit = Workers.openFiles(1);
+             FileChannel channel = FileChannel.open(file, READ_OPEN_OPTIONS)) {
+            long length = channel.size();
+            int count = (int) min(size, length);
+            int start = dst.writerIndex();
+            dst.ensureWritable(count);
+            for (int read; (read = dst.writerIndex() - start) < count; ) {
+                dst.writeBytes(channel, read, count - read);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Reads the first bytes of the given region's file into the given buffer from the world's {@link WorldIndex index}, if it is up to date.
+     *
+     * @return the length of the region's file, or {@code -1L} if the headers couldn't be read from the index. If {@code -1L}, nothing is written
+     */
+    protected long readIndexedHeaders(@NonNull Vec2i regionPos, @NonNull Path file, @NonNull ByteBuf dst, int size) throws IOException {
+        if (this.index == null || size > HEADER_BYTES) {
+            return -1L;
+        }
+
+        dst.ensureWritable(size);
+        ByteBuffer nio = dst.nioBuffer(dst.writerIndex(), size);
+        int start = nio.position();
+        long length = this.index.read(regionPos, file, nio);
+        if (length >= 0L) {
+            dst.writerIndex(dst.writerIndex() + nio.position() - start);
+        }
+        return length;
     }
 }
@@ -0,0 +1,232 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import lombok.NonNull;
+import net.daporkchop.lib.common.math.BinMath;
+import net.daporkchop.lib.math.vector.i.Vec2i;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static java.lang.Math.*;
+import static net.daporkchop.lib.common.util.PValidation.*;
+import static net.daporkchop.lib.logging.Logging.*;
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+
+/**
+ * An index of the headers of all regions in a world, stored in a single file in the world's directory.
+ * <p>
+ * For every region, the index stores its position, the modification time and length of its file, and the raw contents of its offset and timestamp tables.
+ * The entries are sorted by position, and all headers are stored one after another behind the entries, so the whole index can be read sequentially.
+ * <p>
+ * An entry is only used if the region's file still has the same modification time and length as when it was indexed. Otherwise the region is considered
+ * stale and its headers have to be read from the region file itself.
+ *
+ * @author DaPorkchop_
+ */
+public final class WorldIndex {
+    public static final String FILE_NAME = "regionmerger.index";
+
+    protected static final int MAGIC = 0x52474958;
+    protected static final int VERSION = 1;
+    protected static final int FILE_HEADER_BYTES = 12;
+    protected static final int ENTRY_BYTES = 24;
+
+    protected static final OpenOption[] READ_OPEN_OPTIONS = { StandardOpenOption.READ };
+    protected static final OpenOption[] WRITE_OPEN_OPTIONS = { StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING };
+
+    /**
+     * Loads the index of the world in the given directory.
+     *
+     * @return the index, or {@code null} if the world hasn't been indexed or the index is invalid
+     */
+    public static WorldIndex load(@NonNull Path directory) throws IOException {
+        Path path = directory.resolve(FILE_NAME);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, READ_OPEN_OPTIONS);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        try {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+            if (size >= FILE_HEADER_BYTES) {
+                Utils.readFully(channel, header, 0L);
+            }
+
+            int count = header.getInt(8);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || count < 0 || size != FILE_HEADER_BYTES + (long) count * (ENTRY_BYTES + HEADER_BYTES)) {
+                logger.warn("Ignoring invalid world index %s", path);
+                channel.close();
+                return null;
+            }
+
+            ByteBuffer entries = ByteBuffer.allocate(toInt((long) count * ENTRY_BYTES));
+            Utils.readFully(channel, entries, FILE_HEADER_BYTES);
+            entries.flip();
+
+            long[] keys = new long[count];
+            long[] mtimes = new long[count];
+            long[] lengths = new long[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = entries.getLong();
+                mtimes[i] = entries.getLong();
+                lengths[i] = entries.getLong();
+            }
+            return new WorldIndex(channel, keys, mtimes, lengths);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * (Re-)builds the index of the given world.
+     * <p>
+     * Regions whose entries in the world's existing index are still up to date are copied from it, all others are read from their region files.
+     *
+     * Every indexed region is counted in {@link Metrics.Counter#REGIONS}.
+     *
+     * @return the number of regions whose headers had to be read from their region files
+     */
+    public static long build(@NonNull World world) throws IOException {
+        Path path = world.path().toPath().resolve(FILE_NAME);
+        Path tmpPath = path.resolveSibling(FILE_NAME + ".tmp");
+
+        long[] keys = world.regions().keys().sorted().toArray();
+        long[] mtimes = new long[keys.length];
+        long[] lengths = new long[keys.length];
+        long dataStart = FILE_HEADER_BYTES + (long) keys.length * ENTRY_BYTES;
+        WorldIndex old = world.index();
+        AtomicLong read = new AtomicLong();
+
+        try (FileChannel channel = FileChannel.open(tmpPath, WRITE_OPEN_OPTIONS)) {
+            ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HEADER_BYTES));
+            Workers.io().forEach(IntStream.range(0, keys.length).spliterator(), i -> {
+                Vec2i pos = new Vec2i(BinMath.unpackX(keys[i]), BinMath.unpackY(keys[i]));
+                Path file = world.getAsFile(pos).toPath();
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                mtimes[i] = attributes.lastModifiedTime().toMillis();
+                lengths[i] = attributes.size();
+
+                ByteBuffer buffer = buffers.get();
+                buffer.clear();
+                if (old == null || !old.read(keys[i], mtimes[i], lengths[i], buffer)) {
+                    long startNanos = System.nanoTime();
+                    try (Workers.Permit permit = Workers.openFiles(1);
+                         FileChannel region = FileChannel.open(file, READ_OPEN_OPTIONS)) {
+                        buffer.limit(toInt(min(HEADER_BYTES, lengths[i])));
+                        Utils.readFully(region, buffer, 0L);
+                    }
+                    Metrics.Counter.BYTES_READ.add(buffer.position());
+                    Metrics.Phase.READ.since(startNanos);
+                    read.getAndIncrement();
+                }
+
+                buffer.limit(buffer.capacity());
+                while (buffer.hasRemaining()) { //pad truncated headers with zeroes
+                    buffer.put((byte) 0);
+                }
+
+                buffer.flip();
+                Utils.writeFully(channel, buffer, dataStart + (long) i * HEADER_BYTES);
+                Metrics.Counter.REGIONS.increment();
+            });
+
+            ByteBuffer entries = ByteBuffer.allocate(toInt(dataStart));
+            entries.putInt(MAGIC).putInt(VERSION).putInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                entries.putLong(keys[i]).putLong(mtimes[i]).putLong(lengths[i]);
+            }
+            entries.flip();
+            Utils.writeFully(channel, entries, 0L);
+        }
+
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return read.get();
+    }
+
+    protected final FileChannel channel;
+    protected final long[] keys;
+    protected final long[] mtimes;
+    protected final long[] lengths;
+    protected final long dataStart;
+
+    protected WorldIndex(@NonNull FileChannel channel, @NonNull long[] keys, @NonNull long[] mtimes, @NonNull long[] lengths) {
+        this.channel = channel;
+        this.keys = keys;
+        this.mtimes = mtimes;
+        this.lengths = lengths;
+        this.dataStart = FILE_HEADER_BYTES + (long) keys.length * ENTRY_BYTES;
+    }
+
+    /**
+     * @return the number of regions in this index
+     */
+    public int size() {
+        return this.keys.length;
+    }
+
+    /**
+     * Reads the headers of the given region from this index into the given buffer, if the index is up to date.
+     *
+     * @param file the region's file
+     * @param dst  the buffer to read the headers into. At most {@code min(dst.remaining(), length of the region file)} bytes are read
+     * @return the length of the region's file, or {@code -1L} if the index doesn't contain an up-to-date entry for the region. If {@code -1L}, nothing is read
+     */
+    public long read(@NonNull Vec2i pos, @NonNull Path file, @NonNull ByteBuffer dst) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return -1L;
+        }
+        long length = attributes.size();
+        return this.read(BinMath.packXY(pos.getX(), pos.getY()), attributes.lastModifiedTime().toMillis(), length, dst) ? length : -1L;
+    }
+
+    protected boolean read(long key, long mtime, long length, @NonNull ByteBuffer dst) throws IOException {
+        int i = Arrays.binarySearch(this.keys, key);
+        if (i < 0 || this.mtimes[i] != mtime || this.lengths[i] != length) {
+            return false;
+        }
+
+        int oldLimit = dst.limit();
+        dst.limit(toInt(min(oldLimit, dst.position() + min(HEADER_BYTES, length))));
+        Utils.readFully(this.channel, dst, this.dataStart + (long) i * HEADER_BYTES);
+        dst.limit(oldLimit);
+        return true;
+    }
+}
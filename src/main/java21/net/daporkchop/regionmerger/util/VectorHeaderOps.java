@@ -0,0 +1,142 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implementation of {@link HeaderOps} using the Vector API, which processes as many chunks at once as the CPU's widest integer vectors can hold.
+ * <p>
+ * The tables are first copied into {@code int[]}s, as loading vectors directly from a {@link ByteBuffer} requires the foreign memory API, which is
+ * still a preview feature in Java 21.
+ * <p>
+ * This class is compiled separately from the rest of the project, so it may not use lombok. It is loaded reflectively by {@link HeaderOps#create()}.
+ *
+ * @author DaPorkchop_
+ */
+final class VectorHeaderOps extends HeaderOps {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private static final ThreadLocal<int[]> OFFSETS_CACHE = ThreadLocal.withInitial(() -> new int[CHUNKS]);
+    private static final ThreadLocal<int[]> TIMESTAMPS_CACHE = ThreadLocal.withInitial(() -> new int[CHUNKS]);
+
+    /**
+     * Copies one of the tables in the given region headers into the given array.
+     *
+     * @param table the index of the table: {@code 0} for the offset table, {@code 1} for the timestamp table
+     */
+    private static int[] table(ByteBuffer headers, int table, int[] dst) {
+        ByteBuffer buffer = headers.duplicate(); //duplicates are always big-endian, just like the headers
+        buffer.clear().position(table * CHUNKS * Integer.BYTES);
+        buffer.asIntBuffer().get(dst, 0, CHUNKS);
+        return dst;
+    }
+
+    @Override
+    public void orPresent(ByteBuffer headers, long[] mask) {
+        int[] offsets = table(headers, 0, OFFSETS_CACHE.get());
+        for (int i = 0; i < CHUNKS; i += LANES) {
+            long bits = IntVector.fromArray(SPECIES, offsets, i).compare(VectorOperators.NE, 0).toLong();
+            mask[i >>> 6] |= bits << (i & 63);
+        }
+    }
+
+    @Override
+    public int countPresent(ByteBuffer headers) {
+        int[] offsets = table(headers, 0, OFFSETS_CACHE.get());
+        int count = 0;
+        for (int i = 0; i < CHUNKS; i += LANES) {
+            count += IntVector.fromArray(SPECIES, offsets, i).compare(VectorOperators.NE, 0).trueCount();
+        }
+        return count;
+    }
+
+    @Override
+    public void addPresent(ByteBuffer headers, int[] counts) {
+        int[] offsets = table(headers, 0, OFFSETS_CACHE.get());
+        for (int i = 0; i < CHUNKS; i += LANES) {
+            VectorMask<Integer> present = IntVector.fromArray(SPECIES, offsets, i).compare(VectorOperators.NE, 0);
+            IntVector.fromArray(SPECIES, counts, i).add(1, present).intoArray(counts, i);
+        }
+    }
+
+    @Override
+    public void selectYoungest(ByteBuffer headers, int source, int[] timestamps, int[] winners, int[] offsets) {
+        this.select(headers, source, timestamps, winners, offsets, VectorOperators.GT);
+    }
+
+    @Override
+    public void selectOldest(ByteBuffer headers, int source, int[] timestamps, int[] winners, int[] offsets) {
+        this.select(headers, source, timestamps, winners, offsets, VectorOperators.LT);
+    }
+
+    private void select(ByteBuffer headers, int source, int[] timestamps, int[] winners, int[] offsets, VectorOperators.Comparison comparison) {
+        int[] regionOffsets = table(headers, 0, OFFSETS_CACHE.get());
+        int[] regionTimestamps = table(headers, 1, TIMESTAMPS_CACHE.get());
+        for (int i = 0; i < CHUNKS; i += LANES) {
+            IntVector offset = IntVector.fromArray(SPECIES, regionOffsets, i);
+            IntVector timestamp = IntVector.fromArray(SPECIES, regionTimestamps, i);
+            IntVector best = IntVector.fromArray(SPECIES, timestamps, i);
+            VectorMask<Integer> selected = offset.compare(VectorOperators.NE, 0).and(timestamp.compare(comparison, best));
+
+            best.blend(timestamp, selected).intoArray(timestamps, i);
+            IntVector.fromArray(SPECIES, winners, i).blend(source, selected).intoArray(winners, i);
+            IntVector.fromArray(SPECIES, offsets, i).blend(offset, selected).intoArray(offsets, i);
+        }
+    }
+
+    @Override
+    public void selectFirst(ByteBuffer headers, int source, int[] winners, int[] offsets) {
+        int[] regionOffsets = table(headers, 0, OFFSETS_CACHE.get());
+        for (int i = 0; i < CHUNKS; i += LANES) {
+            IntVector offset = IntVector.fromArray(SPECIES, regionOffsets, i);
+            IntVector winner = IntVector.fromArray(SPECIES, winners, i);
+            VectorMask<Integer> selected = offset.compare(VectorOperators.NE, 0).and(winner.compare(VectorOperators.LT, 0));
+
+            winner.blend(source, selected).intoArray(winners, i);
+            IntVector.fromArray(SPECIES, offsets, i).blend(offset, selected).intoArray(offsets, i);
+        }
+    }
+
+    @Override
+    public int sumSectors(int[] offsets, int from, int count) {
+        int sum = 0;
+        int i = from;
+        for (int end = from + SPECIES.loopBound(count); i < end; i += LANES) {
+            sum += IntVector.fromArray(SPECIES, offsets, i).and(0xFF).reduceLanes(VectorOperators.ADD);
+        }
+        for (int end = from + count; i < end; i++) {
+            sum += offsets[i] & 0xFF;
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return "vector (" + LANES + " lanes)";
+    }
+}
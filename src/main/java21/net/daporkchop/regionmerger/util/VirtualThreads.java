@@ -0,0 +1,50 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads.
+ * <p>
+ * This is the Java 21 version of this class, which is packaged into {@code META-INF/versions/21} of the multi-release jar. It is compiled separately
+ * from the rest of the project, so it may not use lombok.
+ *
+ * @author DaPorkchop_
+ */
+public final class VirtualThreads {
+    /**
+     * Creates an {@link ExecutorService} which starts a new virtual thread for every task.
+     *
+     * @param name the prefix for the names of the created threads
+     * @return the executor, which is never {@code null} on this JVM
+     */
+    public static ExecutorService newExecutor(String name) {
+        Objects.requireNonNull(name, "name");
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + " virtual thread #", 0L).factory());
+    }
+
+    private VirtualThreads() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class ChunkListTest {
+    protected static final String DATA = "0,0\n1,2\r\n\n-1,-33\r\n\r\n2147483647,-2147483648\n\n31,32\n-2147483648,2147483647";
+    protected static final String[] EXPECTED = {
+            "0,0", "1,2", "-1,-33", "2147483647,-2147483648", "31,32", "-2147483648,2147483647"
+    };
+
+    protected static Set<String> chunks(ChunkMaskMap map) {
+        Set<String> chunks = new TreeSet<>();
+        long[] mask = new long[ChunkMask.WORDS];
+        for (int slot = 0; slot < map.capacity(); slot++) {
+            if (map.isUsed(slot)) {
+                map.mask(slot, mask);
+                for (int z = 0; z < 32; z++) {
+                    for (int x = 0; x < 32; x++) {
+                        if (ChunkMask.get(mask, x, z)) {
+                            chunks.add(((map.regionX(slot) << 5) | x) + "," + ((map.regionZ(slot) << 5) | z));
+                        }
+                    }
+                }
+            }
+        }
+        return chunks;
+    }
+
+    protected static Set<String> expected(boolean swap) {
+        Set<String> chunks = new TreeSet<>();
+        for (String line : EXPECTED) {
+            int i = line.indexOf(',');
+            chunks.add(swap ? line.substring(i + 1) + ',' + line.substring(0, i) : line);
+        }
+        return chunks;
+    }
+
+    protected static Path write(String contents) throws IOException {
+        Path path = Files.createTempFile("chunklist", ".csv");
+        path.toFile().deleteOnExit();
+        Files.write(path, contents.getBytes(StandardCharsets.US_ASCII));
+        return path;
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        assertEquals(expected(false), chunks(ChunkList.read(write("x,z\n" + DATA))));
+        assertEquals(expected(true), chunks(ChunkList.read(write("z,x\r\n" + DATA + "\r\n"))));
+        assertEquals(0L, ChunkList.read(write("x,z\n")).countChunks());
+        assertEquals(0L, ChunkList.read(write("x,z\n\r\n\n")).countChunks());
+    }
+
+    @Test
+    public void testSegmentBoundaries() throws IOException {
+        String header = "x,z\n";
+        Path path = write(header + DATA);
+        try (FileChannel channel = FileChannel.open(path)) {
+            long size = channel.size();
+            long dataStart = header.length();
+            for (long split = dataStart; split <= size; split++) {
+                ChunkMaskMap map = ChunkList.parseSegment(channel, size, dataStart, dataStart, split, false);
+                if (split < size) {
+                    map.or(ChunkList.parseSegment(channel, size, dataStart, split, size, false));
+                }
+                assertEquals("split at byte " + split, expected(false), chunks(map));
+            }
+        }
+    }
+
+    @Test
+    public void testOverflow() throws IOException {
+        for (String line : new String[]{ "2147483648,0", "0,-2147483649", "99999999999999999999,0", "0,4294967296" }) {
+            try {
+                ChunkList.read(write("x,z\n0,0\n" + line + '\n'));
+                fail(line);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+
+    @Test
+    public void testInvalid() throws IOException {
+        for (String line : new String[]{ "1", "1,", ",1", "1;2", "-,1", "1,2,3" }) {
+            try {
+                ChunkList.read(write("x,z\n" + line + '\n'));
+                fail(line);
+            } catch (IllegalArgumentException e) {
+                //expected
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+/**
+ * Checks that {@link HeaderOps#INSTANCE} gives the same results as the scalar implementation.
+ * <p>
+ * The Vector API implementation is only tested if it is available, i.e. if the tests are run on Java 21 with {@code --add-modules jdk.incubator.vector}.
+ *
+ * @author DaPorkchop_
+ */
+public class HeaderOpsTest {
+    protected static final int ROUNDS = 256;
+    protected static final int SOURCES = 4;
+
+    /**
+     * Creates random region headers, in which chunks are often missing and timestamps often collide.
+     */
+    protected static byte[] randomHeaders(Random random) {
+        ByteBuffer headers = ByteBuffer.allocate(HEADER_BYTES);
+        for (int i = 0; i < HeaderOps.CHUNKS; i++) {
+            headers.putInt(i << 2, random.nextInt(3) == 0 ? 0 : (random.nextInt(0xFFFF) + 2) << 8 | random.nextInt(256));
+            switch (random.nextInt(4)) {
+                case 0:
+                    headers.putInt(SECTOR_BYTES + (i << 2), random.nextInt());
+                    break;
+                case 1:
+                    headers.putInt(SECTOR_BYTES + (i << 2), random.nextBoolean() ? Integer.MIN_VALUE : Integer.MAX_VALUE);
+                    break;
+                default:
+                    headers.putInt(SECTOR_BYTES + (i << 2), random.nextInt(4));
+            }
+        }
+        return headers.array();
+    }
+
+    protected final HeaderOps scalar = new HeaderOps();
+    protected final HeaderOps vector = HeaderOps.INSTANCE;
+
+    @Test
+    public void testPresent() {
+        assumeTrue(this.vector.getClass() != HeaderOps.class);
+
+        Random random = new Random(12345L);
+        for (int round = 0; round < ROUNDS; round++) {
+            ByteBuffer headers = ByteBuffer.wrap(randomHeaders(random));
+
+            long[] expectedMask = new long[ChunkMask.WORDS];
+            long[] actualMask = new long[ChunkMask.WORDS];
+            expectedMask[0] = actualMask[0] = random.nextLong(); //the bits must be OR-ed into the existing mask
+            this.scalar.orPresent(headers, expectedMask);
+            this.vector.orPresent(headers, actualMask);
+            assertArrayEquals(expectedMask, actualMask);
+
+            assertEquals(this.scalar.countPresent(headers), this.vector.countPresent(headers));
+
+            int[] expectedCounts = new int[HeaderOps.CHUNKS];
+            int[] actualCounts = new int[HeaderOps.CHUNKS];
+            Arrays.fill(expectedCounts, round);
+            Arrays.fill(actualCounts, round);
+            this.scalar.addPresent(headers, expectedCounts);
+            this.vector.addPresent(headers, actualCounts);
+            assertArrayEquals(expectedCounts, actualCounts);
+        }
+    }
+
+    @Test
+    public void testSelect() {
+        assumeTrue(this.vector.getClass() != HeaderOps.class);
+
+        Random random = new Random(67890L);
+        for (int round = 0; round < ROUNDS; round++) {
+            ByteBuffer[] headers = new ByteBuffer[SOURCES];
+            for (int i = 0; i < SOURCES; i++) {
+                headers[i] = ByteBuffer.wrap(randomHeaders(random));
+            }
+
+            for (int mode = 0; mode < 3; mode++) {
+                int initialTimestamp = mode == 0 ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+                int[] expectedTimestamps = new int[HeaderOps.CHUNKS];
+                int[] actualTimestamps = new int[HeaderOps.CHUNKS];
+                int[] expectedWinners = new int[HeaderOps.CHUNKS];
+                int[] actualWinners = new int[HeaderOps.CHUNKS];
+                int[] expectedOffsets = new int[HeaderOps.CHUNKS];
+                int[] actualOffsets = new int[HeaderOps.CHUNKS];
+                Arrays.fill(expectedTimestamps, initialTimestamp);
+                Arrays.fill(actualTimestamps, initialTimestamp);
+                Arrays.fill(expectedWinners, -1);
+                Arrays.fill(actualWinners, -1);
+
+                for (int i = 0; i < SOURCES; i++) {
+                    switch (mode) {
+                        case 0:
+                            this.scalar.selectYoungest(headers[i], i, expectedTimestamps, expectedWinners, expectedOffsets);
+                            this.vector.selectYoungest(headers[i], i, actualTimestamps, actualWinners, actualOffsets);
+                            break;
+                        case 1:
+                            this.scalar.selectOldest(headers[i], i, expectedTimestamps, expectedWinners, expectedOffsets);
+                            this.vector.selectOldest(headers[i], i, actualTimestamps, actualWinners, actualOffsets);
+                            break;
+                        default:
+                            this.scalar.selectFirst(headers[i], i, expectedWinners, expectedOffsets);
+                            this.vector.selectFirst(headers[i], i, actualWinners, actualOffsets);
+                    }
+                }
+
+                assertArrayEquals(expectedTimestamps, actualTimestamps);
+                assertArrayEquals(expectedWinners, actualWinners);
+                assertArrayEquals(expectedOffsets, actualOffsets);
+            }
+
+            int[] offsets = new int[HeaderOps.CHUNKS];
+            headers[0].asIntBuffer().get(offsets);
+            for (int from = 0; from < HeaderOps.CHUNKS; from += 8) {
+                for (int count : new int[]{ 1, 8, 32 }) {
+                    if (from + count <= HeaderOps.CHUNKS) {
+                        assertEquals(this.scalar.sumSectors(offsets, from, count), this.vector.sumSectors(offsets, from, count));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Adapted from The MIT License (MIT)
+ *
+ * Copyright (c) 2018-2021 DaPorkchop_
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense, and/or sell copies of the Software, and to permit persons to whom the Software
+ * is furnished to do so, subject to the following conditions:
+ *
+ * Any persons and/or organizations using this software must include the above copyright notice and this permission notice,
+ * provide sufficient credit to the original authors of the project (IE: DaPorkchop_), as well as provide a link to the original project.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES
+ * OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS
+ * BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ *
+ */
+
+package net.daporkchop.regionmerger.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static net.daporkchop.mcworldlib.format.anvil.region.RegionConstants.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author DaPorkchop_
+ */
+public class SortTest {
+    @Test
+    public void testSelectAll() {
+        Random random = new Random(13579L);
+        int[] winners = new int[HeaderOps.CHUNKS];
+        int[] offsets = new int[HeaderOps.CHUNKS];
+        for (int round = 0; round < HeaderOpsTest.ROUNDS; round++) {
+            int count = random.nextInt(HeaderOpsTest.SOURCES) + 1;
+            ByteBuf[] regions = new ByteBuf[HeaderOpsTest.SOURCES];
+            for (int i = 0; i < count; i++) {
+                regions[i] = Unpooled.wrappedBuffer(HeaderOpsTest.randomHeaders(random));
+            }
+
+            for (Sort sort : Sort.values()) {
+                sort.selectAll(regions, count, winners, offsets);
+                for (int z = 0; z < 32; z++) {
+                    for (int x = 0; x < 32; x++) {
+                        int i = ChunkMask.index(x, z);
+                        ByteBuf expected = sort.select(regions, count, x, z);
+                        String message = sort + " round " + round + " at (" + x + ',' + z + ')';
+                        if (expected == null) {
+                            assertEquals(message, -1, winners[i]);
+                            assertEquals(message, 0, offsets[i]);
+                        } else {
+                            assertTrue(message, winners[i] >= 0);
+                            assertSame(message, expected, regions[winners[i]]);
+                            assertEquals(message, expected.getInt(getOffsetIndex(x, z)), offsets[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}